@@ -0,0 +1,59 @@
+package com.example.depthhive;
+
+import android.Manifest;
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/** Checks that the inference engine released on a memory trim comes back on resume. */
+@RunWith(AndroidJUnit4.class)
+public class DepthEstActivityTest {
+    /** Generous, since the first launch may auto-tune before the estimator is recreated. */
+    private static final long ESTIMATOR_TIMEOUT_MS = 60000;
+
+    @Rule
+    public final GrantPermissionRule cameraPermission =
+            GrantPermissionRule.grant(Manifest.permission.CAMERA);
+
+    @Test
+    public void trimThenResume_recreatesEstimator() {
+        try (ActivityScenario<DepthEstActivity> scenario =
+                ActivityScenario.launch(DepthEstActivity.class)) {
+            assertTrue(awaitEstimator(scenario));
+
+            scenario.moveToState(Lifecycle.State.CREATED);
+            scenario.onActivity(
+                    activity -> {
+                        activity.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+                        assertFalse(activity.hasDepthEstimator());
+                    });
+
+            scenario.moveToState(Lifecycle.State.RESUMED);
+            assertTrue(awaitEstimator(scenario));
+        }
+    }
+
+    /** Waits for the activity to have an estimator in place; returns false on timeout. */
+    private static boolean awaitEstimator(final ActivityScenario<DepthEstActivity> scenario) {
+        final long deadline = SystemClock.uptimeMillis() + ESTIMATOR_TIMEOUT_MS;
+        final boolean[] hasEstimator = new boolean[1];
+        while (SystemClock.uptimeMillis() < deadline) {
+            scenario.onActivity(activity -> hasEstimator[0] = activity.hasDepthEstimator());
+            if (hasEstimator[0]) {
+                return true;
+            }
+            SystemClock.sleep(50);
+        }
+        return false;
+    }
+}
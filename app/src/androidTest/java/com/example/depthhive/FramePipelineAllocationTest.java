@@ -0,0 +1,152 @@
+package com.example.depthhive;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.example.depthhive.env.AllocationCounter;
+import com.example.depthhive.env.FramePipeline;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs frames through a frame pool and a {@link FramePipeline} the way {@link DepthEstActivity}
+ * does, and checks that neither the frame source nor any stage allocates once warmed up. Camera
+ * and model are left out, so only the app-side hand-over is measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FramePipelineAllocationTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int NUM_JOBS = 3;
+    private static final int WARMUP_FRAMES = 50;
+    private static final int FRAMES = 500;
+    private static final long TIMEOUT_MS = 10000;
+
+    /** A frame travelling through the pipeline, like the job of {@link DepthEstActivity}. */
+    private static final class Job {
+        Frame frame;
+        int luminanceSum;
+    }
+
+    private final Object frameLock = new Object();
+    private final ArrayDeque<Frame> framePool = new ArrayDeque<Frame>();
+    private final AtomicInteger numRecycled = new AtomicInteger();
+
+    @Test
+    public void steadyState_allocatesNothing() {
+        assumeTrue("Allocations are only counted in debug builds.", AllocationCounter.ENABLED);
+        final byte[][] buffers = new byte[NUM_JOBS][WIDTH * HEIGHT * 3 / 2];
+        final Job[] jobs = new Job[NUM_JOBS];
+        for (int i = 0; i < NUM_JOBS; i++) {
+            jobs[i] = new Job();
+            framePool.add(new Frame());
+        }
+        final FramePipeline<Job> pipeline =
+                new FramePipeline<Job>(
+                        jobs,
+                        job -> {
+                            final byte[] luminance = job.frame.getLuminance();
+                            int sum = 0;
+                            for (int i = 0; i < luminance.length; i += 64) {
+                                sum += luminance[i];
+                            }
+                            job.luminanceSum = sum;
+                            return true;
+                        },
+                        job -> true,
+                        job -> true,
+                        job -> {
+                            job.frame.releaseBuffer();
+                            synchronized (frameLock) {
+                                framePool.add(job.frame);
+                            }
+                            job.frame = null;
+                            numRecycled.incrementAndGet();
+                            return true;
+                        });
+        final AllocationCounter source = new AllocationCounter();
+        try {
+            // Counting is off during the warm-up, so its sections add nothing.
+            int numSubmitted = runFrames(pipeline, source, buffers, WARMUP_FRAMES);
+            assertTrue(awaitRecycled(numSubmitted));
+
+            AllocationCounter.startCounting();
+            numSubmitted += runFrames(pipeline, source, buffers, FRAMES);
+            final boolean drained = awaitRecycled(numSubmitted);
+            AllocationCounter.stopCounting();
+            assertTrue(drained);
+
+            assertEquals(0f, source.getAveragePerSection(), 0f);
+            assertEquals(0f, pipeline.getAllocationsPerJob(FramePipeline.STAGE_CONVERT), 0f);
+            assertEquals(0f, pipeline.getAllocationsPerJob(FramePipeline.STAGE_INFER), 0f);
+            assertEquals(0f, pipeline.getAllocationsPerJob(FramePipeline.STAGE_POST), 0f);
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * Offers {@code numFrames} frames, dropping those for which no job or frame is free, the way
+     * the camera thread does.
+     *
+     * @return the number of frames submitted.
+     */
+    private int runFrames(
+            final FramePipeline<Job> pipeline,
+            final AllocationCounter source,
+            final byte[][] buffers,
+            final int numFrames) {
+        int numSubmitted = 0;
+        for (int i = 0; i < numFrames; i++) {
+            source.begin();
+            final Frame frame;
+            synchronized (frameLock) {
+                frame = framePool.poll();
+            }
+            final Job job = frame != null ? pipeline.obtain() : null;
+            if (job == null) {
+                if (frame != null) {
+                    synchronized (frameLock) {
+                        framePool.add(frame);
+                    }
+                }
+            } else {
+                frame.setPreviewBuffer(buffers[i % buffers.length], null, WIDTH, HEIGHT, i, 90);
+                job.frame = frame;
+                if (pipeline.submit(job)) {
+                    numSubmitted++;
+                } else {
+                    job.frame = null;
+                    frame.releaseBuffer();
+                    synchronized (frameLock) {
+                        framePool.add(frame);
+                    }
+                }
+            }
+            source.end();
+            // Paces the frames like a camera, outside the counted section.
+            SystemClock.sleep(1);
+        }
+        return numSubmitted;
+    }
+
+    /** Waits until {@code numSubmitted} jobs have left the pipeline; false on timeout. */
+    private boolean awaitRecycled(final int numSubmitted) {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (numRecycled.get() < numSubmitted) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                return false;
+            }
+            SystemClock.sleep(5);
+        }
+        return true;
+    }
+}
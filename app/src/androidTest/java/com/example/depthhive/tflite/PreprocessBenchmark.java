@@ -0,0 +1,181 @@
+package com.example.depthhive.tflite;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.support.common.ops.NormalizeOp;
+import org.tensorflow.lite.support.image.ImageProcessor;
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.image.ops.ResizeOp;
+import org.tensorflow.lite.support.image.ops.ResizeOp.ResizeMethod;
+import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp;
+import org.tensorflow.lite.support.image.ops.Rot90Op;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares per-frame time and allocations of the per-frame {@link ImageProcessor} chain that
+ * {@link DepthEstimator} used to build with the cached {@link PreprocessPlan}, and checks that
+ * both produce the same input tensor.
+ *
+ * <p>Results are logged under the "PreprocessBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PreprocessBenchmark {
+    private static final String TAG = "PreprocessBenchmark";
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 480;
+    private static final int INPUT_SIZE = 224;
+    private static final int SENSOR_ORIENTATION = 90;
+    private static final float IMAGE_MEAN = 127.5f;
+    private static final float IMAGE_STD = 127.5f;
+    private static final int WARMUP_FRAMES = 5;
+    private static final int FRAMES = 50;
+
+    @Test
+    public void fusedPlan_isFasterAndAllocatesLess() {
+        final Bitmap bitmap = createFrame();
+
+        final Result before = runImageProcessor(bitmap);
+        final Result after = runPreprocessPlan(bitmap);
+
+        Log.i(TAG, "ImageProcessor: " + before);
+        Log.i(TAG, "PreprocessPlan: " + after);
+        assertTrue(after.allocCount < before.allocCount);
+    }
+
+    @Test
+    public void fusedPlan_matchesImageProcessor() {
+        final Bitmap bitmap = createFrame();
+        final int[] pixels = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        bitmap.getPixels(pixels, 0, FRAME_WIDTH, 0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+        final PreprocessPlan plan =
+                new PreprocessPlan(INPUT_SIZE, INPUT_SIZE, false, IMAGE_MEAN, IMAGE_STD);
+        final ByteBuffer inputBuffer = ByteBuffer.allocateDirect(plan.getOutputByteSize());
+        inputBuffer.order(ByteOrder.nativeOrder());
+        final int cropSize = Math.min(FRAME_WIDTH, FRAME_HEIGHT);
+
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            final TensorImage inputImageBuffer = new TensorImage(DataType.FLOAT32);
+            inputImageBuffer.load(bitmap);
+            final ImageProcessor imageProcessor =
+                    new ImageProcessor.Builder()
+                            .add(new ResizeWithCropOrPadOp(cropSize, cropSize))
+                            .add(new ResizeOp(INPUT_SIZE, INPUT_SIZE, ResizeMethod.NEAREST_NEIGHBOR))
+                            .add(new Rot90Op(rotation / 90))
+                            .add(new NormalizeOp(IMAGE_MEAN, IMAGE_STD))
+                            .build();
+            final float[] expected =
+                    imageProcessor.process(inputImageBuffer).getTensorBuffer().getFloatArray();
+
+            plan.configure(FRAME_WIDTH, FRAME_HEIGHT, rotation);
+            plan.apply(pixels, inputBuffer);
+            assertEquals(expected.length, plan.getOutputByteSize() / 4);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(
+                        "rotation " + rotation + " value " + i,
+                        expected[i],
+                        inputBuffer.getFloat(i * 4),
+                        1e-6f);
+            }
+        }
+    }
+
+    private static Bitmap createFrame() {
+        final int[] pixels = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        final Random random = new Random(0);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0xffffff);
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(FRAME_WIDTH, FRAME_HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, FRAME_WIDTH, 0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+        return bitmap;
+    }
+
+    /** The preprocessing formerly done in {@code DepthEstimator.loadImage}. */
+    private static Result runImageProcessor(final Bitmap bitmap) {
+        final TensorImage inputImageBuffer = new TensorImage(DataType.FLOAT32);
+        final int cropSize = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        final int numRotation = SENSOR_ORIENTATION / 90;
+        final Result result = new Result();
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            final boolean measured = i >= WARMUP_FRAMES;
+            final long startTime = startMeasuring(measured);
+            inputImageBuffer.load(bitmap);
+            final ImageProcessor imageProcessor =
+                    new ImageProcessor.Builder()
+                            .add(new ResizeWithCropOrPadOp(cropSize, cropSize))
+                            .add(new ResizeOp(INPUT_SIZE, INPUT_SIZE, ResizeMethod.NEAREST_NEIGHBOR))
+                            .add(new Rot90Op(numRotation))
+                            .add(new NormalizeOp(IMAGE_MEAN, IMAGE_STD))
+                            .build();
+            imageProcessor.process(inputImageBuffer);
+            stopMeasuring(measured, startTime, result);
+        }
+        return result;
+    }
+
+    /** The preprocessing now done in {@code DepthEstimator.loadImage}. */
+    private static Result runPreprocessPlan(final Bitmap bitmap) {
+        final PreprocessPlan plan =
+                new PreprocessPlan(INPUT_SIZE, INPUT_SIZE, false, IMAGE_MEAN, IMAGE_STD);
+        final ByteBuffer inputBuffer = ByteBuffer.allocateDirect(plan.getOutputByteSize());
+        inputBuffer.order(ByteOrder.nativeOrder());
+        final int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        final Result result = new Result();
+        for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+            final boolean measured = i >= WARMUP_FRAMES;
+            final long startTime = startMeasuring(measured);
+            bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+            plan.configure(bitmap.getWidth(), bitmap.getHeight(), SENSOR_ORIENTATION);
+            plan.apply(pixels, inputBuffer);
+            stopMeasuring(measured, startTime, result);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long startMeasuring(final boolean measured) {
+        if (measured) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void stopMeasuring(final boolean measured, final long startTime, final Result result) {
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+        if (measured) {
+            Debug.stopAllocCounting();
+            result.totalNanos += elapsed;
+            result.allocCount += Debug.getThreadAllocCount();
+            result.allocBytes += Debug.getThreadAllocSize();
+        }
+    }
+
+    private static final class Result {
+        long totalNanos;
+        long allocCount;
+        long allocBytes;
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%.3f ms/frame, %d allocations/frame, %d bytes/frame",
+                    totalNanos / 1e6 / FRAMES, allocCount / FRAMES, allocBytes / FRAMES);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
@@ -42,11 +43,13 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.text.TextUtils;
 import android.util.Size;
+import android.util.SizeF;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Surface;
@@ -66,6 +69,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import com.example.depthhive.ui.AutoFitTextureView;
+import com.example.depthhive.env.CameraIntrinsics;
 import com.example.depthhive.env.Logger;
 
 /**
@@ -101,6 +105,8 @@ public class CameraConnectionFragment extends Fragment {
     private final OnImageAvailableListener imageListener;
     /** The input size in pixels desired by TensorFlow (width and height of a square bitmap). */
     private final Size inputSize;
+    /** The smallest frame size the model can consume without upscaling. */
+    private final Size analysisInputSize;
     /** The layout identifier to inflate for this Fragment. */
     private final int layout;
 
@@ -133,6 +139,10 @@ public class CameraConnectionFragment extends Fragment {
     private Integer sensorOrientation;
     /** The {@link Size} of camera preview. */
     private Size previewSize;
+    /** The {@link Size} of the frames delivered for analysis. */
+    private Size analysisSize;
+    /** The intrinsics of the analysis stream, or null if the camera reports none. */
+    private CameraIntrinsics analysisIntrinsics;
     /** An additional thread for running tasks that shouldn't block the UI. */
     private HandlerThread backgroundThread;
     /** A {@link Handler} for running tasks in the background. */
@@ -164,7 +174,7 @@ public class CameraConnectionFragment extends Fragment {
                 public void onSurfaceTextureUpdated(final SurfaceTexture texture) {
                 }
             };
-    /** An {@link ImageReader} that handles preview frame capture. */
+    /** An {@link ImageReader} that handles analysis frame capture. */
     private ImageReader previewReader;
     /** {@link CaptureRequest.Builder} for the camera preview */
     private CaptureRequest.Builder previewRequestBuilder;
@@ -205,11 +215,13 @@ public class CameraConnectionFragment extends Fragment {
             final ConnectionCallback connectionCallback,
             final OnImageAvailableListener imageListener,
             final int layout,
-            final Size inputSize) {
+            final Size inputSize,
+            final Size analysisInputSize) {
         this.cameraConnectionCallback = connectionCallback;
         this.imageListener = imageListener;
         this.layout = layout;
         this.inputSize = inputSize;
+        this.analysisInputSize = analysisInputSize;
     }
 
     /**
@@ -262,12 +274,56 @@ public class CameraConnectionFragment extends Fragment {
         }
     }
 
+    /**
+     * Given {@code choices} of YUV {@code Size}s supported by a camera, chooses the smallest one
+     * whose shorter side covers the model input, so that the center crop is only ever downscaled.
+     * Sizes with the aspect ratio of the preview are preferred, so that the analyzed frame shows the
+     * same field of view as the screen.
+     *
+     * @param choices The list of sizes that the camera supports for YUV_420_888
+     * @param modelInputSize The input size of the model
+     * @param previewSize The size of the on-screen preview
+     * @return The analysis {@code Size}, or {@code previewSize} if none were big enough
+     */
+    protected static Size chooseAnalysisSize(
+            final Size[] choices, final Size modelInputSize, final Size previewSize) {
+        final int minSize = Math.max(modelInputSize.getWidth(), modelInputSize.getHeight());
+        Size bestMatchingAspect = null;
+        Size bestOther = null;
+        final CompareSizesByArea comparator = new CompareSizesByArea();
+        for (final Size option : choices) {
+            if (Math.min(option.getWidth(), option.getHeight()) < minSize
+                    || comparator.compare(option, previewSize) > 0) {
+                continue;
+            }
+            if ((long) option.getWidth() * previewSize.getHeight()
+                    == (long) option.getHeight() * previewSize.getWidth()) {
+                if (bestMatchingAspect == null || comparator.compare(option, bestMatchingAspect) < 0) {
+                    bestMatchingAspect = option;
+                }
+            } else if (bestOther == null || comparator.compare(option, bestOther) < 0) {
+                bestOther = option;
+            }
+        }
+
+        final Size chosenSize =
+                bestMatchingAspect != null
+                        ? bestMatchingAspect
+                        : (bestOther != null ? bestOther : previewSize);
+        LOGGER.i(
+                "Model input: " + modelInputSize + ", preview: " + previewSize
+                        + ", chosen analysis size: " + chosenSize);
+        return chosenSize;
+    }
+
     public static CameraConnectionFragment newInstance(
             final ConnectionCallback callback,
             final OnImageAvailableListener imageListener,
             final int layout,
-            final Size inputSize) {
-        return new CameraConnectionFragment(callback, imageListener, layout, inputSize);
+            final Size inputSize,
+            final Size analysisInputSize) {
+        return new CameraConnectionFragment(
+                callback, imageListener, layout, inputSize, analysisInputSize);
     }
 
     /**
@@ -352,6 +408,14 @@ public class CameraConnectionFragment extends Fragment {
                             inputSize.getWidth(),
                             inputSize.getHeight());
 
+            // The analysis stream is sized for the model rather than for the screen, so that the
+            // ISP does the downscale instead of the CPU.
+            analysisSize =
+                    chooseAnalysisSize(
+                            map.getOutputSizes(ImageFormat.YUV_420_888), analysisInputSize, previewSize);
+            analysisIntrinsics = getIntrinsics(characteristics, analysisSize);
+            LOGGER.i("Analysis stream intrinsics: " + analysisIntrinsics);
+
             // We fit the aspect ratio of TextureView to the size of preview we picked.
             final int orientation = getResources().getConfiguration().orientation;
             if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -369,7 +433,63 @@ public class CameraConnectionFragment extends Fragment {
             throw new IllegalStateException(getString(R.string.tfe_ic_camera_error));
         }
 
-        cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation);
+        cameraConnectionCallback.onIntrinsicsChosen(analysisIntrinsics);
+        cameraConnectionCallback.onPreviewSizeChosen(analysisSize, sensorOrientation);
+    }
+
+    /**
+     * Returns the intrinsics of a stream of {@code size}: the lens calibration where the camera
+     * reports one, otherwise derived from the focal length and physical size of the sensor.
+     *
+     * @return the intrinsics, or null if the camera reports neither.
+     */
+    private static CameraIntrinsics getIntrinsics(
+            final CameraCharacteristics characteristics, final Size size) {
+        final Rect activeArray =
+                characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (activeArray == null) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final float[] calibration =
+                    characteristics.get(CameraCharacteristics.LENS_INTRINSIC_CALIBRATION);
+            final Rect calibratedArray =
+                    characteristics.get(
+                            CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE);
+            // Devices without a calibration may report zeros.
+            if (calibration != null && calibration[0] > 0 && calibration[1] > 0) {
+                final Rect array = calibratedArray != null ? calibratedArray : activeArray;
+                return new CameraIntrinsics(
+                                calibration[0],
+                                calibration[1],
+                                calibration[2],
+                                calibration[3],
+                                array.width(),
+                                array.height())
+                        .scaleTo(size.getWidth(), size.getHeight());
+            }
+        }
+        final float[] focalLengths =
+                characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        final SizeF physicalSize =
+                characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        final Size pixelArray =
+                characteristics.get(CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE);
+        if (focalLengths == null
+                || focalLengths.length == 0
+                || physicalSize == null
+                || pixelArray == null) {
+            return null;
+        }
+        return CameraIntrinsics.fromPhysicalSize(
+                        focalLengths[0],
+                        physicalSize.getWidth(),
+                        physicalSize.getHeight(),
+                        pixelArray.getWidth(),
+                        pixelArray.getHeight(),
+                        activeArray.width(),
+                        activeArray.height())
+                .scaleTo(size.getWidth(), size.getHeight());
     }
 
     /** Opens the camera specified by {@link CameraConnectionFragment#cameraId}. */
@@ -449,11 +569,12 @@ public class CameraConnectionFragment extends Fragment {
             previewRequestBuilder.addTarget(surface);
 
             LOGGER.i("Opening camera preview: " + previewSize.getWidth() + "x" + previewSize.getHeight());
+            LOGGER.i("Opening analysis stream: " + analysisSize.getWidth() + "x" + analysisSize.getHeight());
 
-            // Create the reader for the preview frames.
+            // Create the reader for the analysis frames.
             previewReader =
                     ImageReader.newInstance(
-                            previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                            analysisSize.getWidth(), analysisSize.getHeight(), ImageFormat.YUV_420_888, 2);
 
             previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
             previewRequestBuilder.addTarget(previewReader.getSurface());
@@ -536,10 +657,13 @@ public class CameraConnectionFragment extends Fragment {
     }
 
     /**
-     * Callback for Activities to use to initialize their data once the selected preview size is
-     * known.
+     * Callback for Activities to use to initialize their data once the selected size of the frames
+     * delivered to the {@link OnImageAvailableListener} is known.
      */
     public interface ConnectionCallback {
+        /** Called before {@link #onPreviewSizeChosen}, with null if the camera reports none. */
+        void onIntrinsicsChosen(CameraIntrinsics intrinsics);
+
         void onPreviewSizeChosen(Size size, int cameraRotation);
     }
 
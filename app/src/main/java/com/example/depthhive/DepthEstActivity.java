@@ -16,30 +16,250 @@
 
 package com.example.depthhive;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Typeface;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.os.SystemClock;
 import android.util.Size;
 import android.util.TypedValue;
 import android.widget.Toast;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import com.example.depthhive.env.BorderedText;
+import com.example.depthhive.env.CameraIntrinsics;
+import com.example.depthhive.env.FloorPlane;
+import com.example.depthhive.env.FloorPlaneEstimator;
+import com.example.depthhive.env.FramePipeline;
+import com.example.depthhive.env.JointBilateralUpsampler;
 import com.example.depthhive.env.Logger;
+import com.example.depthhive.env.LumaGuideSampler;
+import com.example.depthhive.env.ObstacleSectors;
+import com.example.depthhive.env.PointCloud;
+import com.example.depthhive.env.PointCloudProjector;
+import com.example.depthhive.env.SceneChangeDetector;
+import com.example.depthhive.env.SectorObstacleEngine;
+import com.example.depthhive.env.TemporalDepthFilter;
+import com.example.depthhive.tflite.AutoTuner;
+import com.example.depthhive.tflite.DepthFrame;
+import com.example.depthhive.tflite.EstimatorCache;
 import com.example.depthhive.tflite.DepthEstimator;
 import com.example.depthhive.tflite.DepthEstimator.Device;
 import com.example.depthhive.tflite.DepthEstimator.Model;
+import com.example.depthhive.tflite.LatencyBudgetController;
 
 public class DepthEstActivity extends MainActivity implements OnImageAvailableListener {
     private static final Logger LOGGER = new Logger();
     private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
     private static final float TEXT_SIZE_DIP = 10;
-    private Bitmap rgbFrameBitmap = null;
+    /**
+     * Whether camera frames are sampled straight into the model input tensor, instead of being
+     * converted to a full-resolution ARGB Bitmap first.
+     */
+    private static final boolean USE_FUSED_YUV_INPUT = true;
+    /** Whether frames of an unchanged scene re-publish the previous depth map. */
+    private static final boolean USE_SCENE_CHANGE_GATING = true;
+    /** Grid on which consecutive luminance planes are compared. */
+    private static final int SCENE_GRID_WIDTH = 32;
+    private static final int SCENE_GRID_HEIGHT = 24;
+    /** Mean change of the grid cells, in luminance levels, that triggers a new estimate. */
+    private static final float SCENE_MEAN_DIFFERENCE = 4.0f;
+    /** Change of a single grid cell, in luminance levels, for it to count as changed. */
+    private static final int SCENE_CELL_DIFFERENCE = 24;
+    /** Fraction of changed grid cells that triggers a new estimate. */
+    private static final float SCENE_CHANGED_FRACTION = 0.05f;
+    /** Maximum age of a re-published depth map. */
+    private static final long SCENE_MAX_REUSE_AGE_MS = 500;
+    /**
+     * Highest number of interpreters inferring frames concurrently, each with the selected number
+     * of threads. On big.LITTLE CPUs two 2-thread interpreters can outrun one 4-thread
+     * interpreter; auto-tuning benchmarks the counts up to this one.
+     */
+    private static final int MAX_NUM_INTERPRETERS = 2;
+    /**
+     * Number of frames circulating through the pipeline: one per stage thread, plus the converted
+     * frame waiting for inference.
+     */
+    private static final int NUM_PIPELINE_JOBS = 3 + MAX_NUM_INTERPRETERS;
+    /** Number of blank inferences per interpreter before a replacement estimator is swapped in. */
+    private static final int NUM_WARM_UP_RUNS = 2;
+    /**
+     * Whether the model, device and thread count are benchmarked on first launch, and the best
+     * configuration is selected instead of the defaults of the bottom sheet.
+     */
+    private static final boolean USE_AUTO_TUNING = true;
+    /** Inference latency the auto-tuned configuration should meet, favoring the float model. */
+    private static final float AUTO_TUNE_LATENCY_TARGET_MS = 100;
+    /**
+     * Whether the model, input resolution and inference cadence are lowered at runtime to keep
+     * the depth output at {@link #TARGET_RATE_HZ}, e.g. under thermal throttling.
+     */
+    private static final boolean USE_LATENCY_BUDGET = true;
+    /** Depth output rate the latency budget is derived from. */
+    private static final float TARGET_RATE_HZ = 10;
+    /**
+     * Estimated memory the estimators of previous configurations may hold, so that switching
+     * back to them is instant. Zero closes replaced estimators right away.
+     */
+    private static final long MAX_CACHED_ESTIMATOR_BYTES = 64L * 1024 * 1024;
+    /**
+     * Whether depth in meters is smoothed across frames before obstacles are extracted, so that
+     * warnings do not flicker with the single-frame estimates.
+     */
+    private static final boolean USE_TEMPORAL_FILTER = true;
+    private static final TemporalDepthFilter.Mode TEMPORAL_FILTER_MODE =
+            TemporalDepthFilter.Mode.KALMAN;
+    /** Number of threads the temporal filter runs on, including the post-process thread. */
+    private static final int TEMPORAL_FILTER_STRIPES = 2;
+    /**
+     * Whether depth is upsampled to the camera resolution of the cropped region, guided by the
+     * luminance plane so that depth edges follow image edges, and shown at that resolution.
+     */
+    private static final boolean USE_DEPTH_UPSAMPLING = true;
+    /** Number of threads the upsampler runs on, including the post-process thread. */
+    private static final int UPSAMPLING_STRIPES = 2;
+    /** Whether depth frames are back-projected into point clouds for 3D consumers. */
+    private static final boolean USE_POINT_CLOUD = true;
+    /** Whether the floor plane, walkable pixels and drop-offs are estimated from point clouds. */
+    private static final boolean USE_FLOOR_ESTIMATION = USE_POINT_CLOUD;
+    /** Most RANSAC hypotheses per frame, and the time after which no more are drawn. */
+    private static final int FLOOR_MAX_ITERATIONS = 64;
+    private static final long FLOOR_BUDGET_NS = 4000000;
+    /** Distance from the floor plane within which points are floor, plus a fraction of depth. */
+    private static final float FLOOR_INLIER_METERS = 0.03f;
+    private static final float FLOOR_INLIER_FRACTION = 0.02f;
+    /** Depth below the floor at which its end counts as a drop-off, e.g. a step down. */
+    private static final float FLOOR_DROP_OFF_METERS = 0.15f;
+    /** Number of angular sectors the nearest obstacles are reported for. */
+    private static final int NUM_OBSTACLE_SECTORS = 7;
+    /**
+     * Horizontal field of view of the center-cropped camera frames the depth maps cover, assumed
+     * for back-projection and obstacle sectors if the camera reports no intrinsics.
+     */
+    private static final float DEPTH_MAP_FOV_DEGREES = 60;
+    /** Range of the depth model, trained on indoor scenes of up to 10m. */
+    private static final float MAX_DEPTH_METERS = 10;
+    /** Distance below which depth counts as an obstacle. */
+    private static final float OBSTACLE_DISTANCE_METERS = 1.5f;
+    /** Fraction of the depth of a sector reported as its robust nearest distance. */
+    private static final float OBSTACLE_PERCENTILE = 0.05f;
+    /** Number of frames between two logs of the pipeline occupancy. */
+    private static final int PIPELINE_STATS_INTERVAL = 100;
     private long lastProcessingTimeMs;
     private Integer sensorOrientation;
-    private DepthEstimator depthEstimator;
+    private volatile DepthEstimator depthEstimator;
+    /** The model variant of {@link #depthEstimator}, guarded by estimatorLock. */
+    private Model estimatorModel;
+    /** The configuration of {@link #depthEstimator}, guarded by estimatorLock. */
+    private EstimatorCache.Key estimatorKey;
+    /** Warm estimators of previous configurations. */
+    private final EstimatorCache estimatorCache = new EstimatorCache(MAX_CACHED_ESTIMATOR_BYTES);
+    /** Picks the quality level for the selected model and device, replaced when they change. */
+    private volatile LatencyBudgetController latencyController;
+    /**
+     * Guards swapping {@link #depthEstimator} and its configuration. Never held while an estimator
+     * is created or warmed up.
+     */
+    private final Object estimatorLock = new Object();
+    /**
+     * Incremented whenever the engine is released, so that an estimator created meanwhile is not
+     * swapped in. Guarded by estimatorLock.
+     */
+    private int engineGeneration = 0;
+    /**
+     * Converts, infers and renders frames on dedicated threads. Paused rather than stopped while
+     * the activity is, so that resuming neither restarts the threads nor reallocates the jobs.
+     */
+    private volatile FramePipeline<FrameJob> pipeline;
+    private int numPublishedFrames = 0;
+    /** Set once tuning was started by this activity, guarded by {@code this}. */
+    private boolean autoTuneStarted = false;
+    /** Set while configurations are benchmarked; frames are dropped meanwhile. */
+    private volatile boolean isAutoTuning = false;
+    /** Interpreters of the CPU estimators created from now on, as auto-tuned. */
+    private volatile int numInterpreters = 1;
+    /** Gates frames on the camera thread, committed to by the post-process stage. */
+    private volatile SceneChangeDetector sceneChangeDetector;
+    /** Whether a depth map was estimated that can be re-published while the scene is unchanged. */
+    private volatile boolean hasDepthMap = false;
+    /** Guards the hand-over of depth maps from the post-process stage to the UI thread. */
+    private final Object displayLock = new Object();
+    /** The newest published depth map, guarded by displayLock. */
+    private DepthPixels publishedDepthMap = new DepthPixels();
+    /** Whether {@link #publishedDepthMap} was not shown yet, guarded by displayLock. */
+    private boolean isPublishedDepthMapNew = false;
+    /** The depth map shown, owned by the UI thread. */
+    private DepthPixels displayedDepthMap = new DepthPixels();
+    /** Smooths depth frames, created with the pipeline and used only by its post-process stage. */
+    private TemporalDepthFilter temporalFilter;
+    /** The estimator of the depth frames the filter state stems from, owned by the post stage. */
+    private DepthEstimator filteredEstimator;
+    /** Copies the upsampling guide out of camera frames, used only by the convert stage. */
+    private final LumaGuideSampler guideSampler = new LumaGuideSampler();
+    /** Upsamples depth frames, created with the pipeline and used only by its post stage. */
+    private JointBilateralUpsampler depthUpsampler;
+    /** Reduces depth frames to obstacle sectors, used only by the post-process stage. */
+    private final SectorObstacleEngine obstacleEngine =
+            new SectorObstacleEngine(NUM_OBSTACLE_SECTORS, DEPTH_MAP_FOV_DEGREES, MAX_DEPTH_METERS);
+    /** The sectors analyzed into, exchanged with the published ones, owned by the post stage. */
+    private ObstacleSectors analyzedObstacles = new ObstacleSectors(NUM_OBSTACLE_SECTORS);
+    /** Guards the hand-over of obstacle sectors to feedback consumers. */
+    private final Object obstacleLock = new Object();
+    /** The newest obstacle sectors, or null before the first depth map, guarded by obstacleLock. */
+    private ObstacleSectors publishedObstacles;
+    /** Intrinsics of the camera frames, reported or assumed, fixed with the preview size. */
+    private volatile CameraIntrinsics frameIntrinsics;
+    /** Back-projects depth frames, used only by the post-process stage. */
+    private final PointCloudProjector pointCloudProjector = new PointCloudProjector();
+    /** The cloud projected into, exchanged with the published one, owned by the post stage. */
+    private PointCloud projectedPointCloud = new PointCloud();
+    /** Guards the hand-over of point clouds to 3D consumers. */
+    private final Object pointCloudLock = new Object();
+    /** The newest point cloud, or null before the first depth map, guarded by pointCloudLock. */
+    private PointCloud publishedPointCloud;
+    /** Finds the floor in point clouds, used only by the post-process stage. */
+    private final FloorPlaneEstimator floorEstimator = new FloorPlaneEstimator();
+    /** The floor estimated into, exchanged with the published one, owned by the post stage. */
+    private FloorPlane estimatedFloor = new FloorPlane();
+    /** Guards the hand-over of floor planes to feedback consumers. */
+    private final Object floorLock = new Object();
+    /** The newest floor plane, or null before the first point cloud, guarded by floorLock. */
+    private FloorPlane publishedFloor;
+    /** Feeds gravity to the floor estimator while the activity is resumed. */
+    private final SensorEventListener gravityListener =
+            new SensorEventListener() {
+                @Override
+                public void onSensorChanged(final SensorEvent event) {
+                    onGravityChanged(event.values[0], event.values[1], event.values[2]);
+                }
+
+                @Override
+                public void onAccuracyChanged(final Sensor sensor, final int accuracy) {}
+            };
+    /** The Bitmap the shown depth map is copied into, reused while its size does not change. */
+    private Bitmap displayedBitmap;
     private BorderedText borderedText;
+    /** Frame info shown with every depth map, fixed once the preview size is chosen. */
+    private String frameInfo;
+    private String cropInfo;
+    private String cameraResolution;
+    /** Shows the newest published depth map on the UI thread, reused for every frame. */
+    private final Runnable depthMapDisplayer =
+            new Runnable() {
+                @Override
+                public void run() {
+                    showFrameInfo(frameInfo);
+                    showCropInfo(cropInfo);
+                    showCameraResolution(cameraResolution);
+                    showRotationInfo(String.valueOf(sensorOrientation));
+                    showInference(getInferenceInfo());
+                    showDepthMap();
+                }
+            };
     /** Input image size of the model along x axis. */
     private int imageSizeX;
     /** Input image size of the model along y axis. */
@@ -55,6 +275,53 @@ public class DepthEstActivity extends MainActivity implements OnImageAvailableLi
         return DESIRED_PREVIEW_SIZE;
     }
 
+    @Override
+    protected int getMaxFramesInFlight() {
+        return NUM_PIPELINE_JOBS;
+    }
+
+    /**
+     * Covers the largest input of any model, as the stream is chosen once per camera session while
+     * the latency budget may switch models and input scales at any time. Smaller inputs are
+     * downscaled from the same frames, and {@link #getMaxInputScale} keeps inputs from exceeding
+     * the stream if the camera has no size covering them.
+     */
+    @Override
+    protected Size getDesiredAnalysisFrameSize() {
+        // Read from the model files rather than creating the estimators on the UI thread.
+        int width = 0;
+        int height = 0;
+        try {
+            for (final Model model : Model.values()) {
+                final int[] inputShape = DepthEstimator.readInputShape(this, model);
+                width = Math.max(width, inputShape[2]);
+                height = Math.max(height, inputShape[1]);
+            }
+            return new Size(width, height);
+        } catch (final IOException | IllegalArgumentException e) {
+            LOGGER.e(e, "Failed to read the model input size.");
+            return DESIRED_PREVIEW_SIZE;
+        }
+    }
+
+    /**
+     * Returns the largest input scale, up to 1, at which the input of {@code model} is covered by
+     * the center crop of the analysis frames, so that frames are never upscaled.
+     */
+    private float getMaxInputScale(final Model model) {
+        final int cropSize = Math.min(previewWidth, previewHeight);
+        if (cropSize == 0) {
+            return 1f;
+        }
+        try {
+            final int[] inputShape = DepthEstimator.readInputShape(this, model);
+            return Math.min(1f, (float) cropSize / Math.max(inputShape[1], inputShape[2]));
+        } catch (final IOException | IllegalArgumentException e) {
+            LOGGER.e(e, "Failed to read the model input size.");
+            return 1f;
+        }
+    }
+
     @Override
     public void onPreviewSizeChosen(final Size size, final int rotation) {
         final float textSizePx =
@@ -63,11 +330,9 @@ public class DepthEstActivity extends MainActivity implements OnImageAvailableLi
         borderedText = new BorderedText(textSizePx);
         borderedText.setTypeface(Typeface.MONOSPACE);
 
-        recreateDepthEstimator(getModel(), getDevice(), getNumThreads());
-        if (depthEstimator == null) {
-            LOGGER.e("No classifier on preview!");
-            return;
-        }
+        // The estimator survives reopening the camera; configuration changes recreate it. Frames
+        // are dropped until it is created in the background.
+        requestDepthEstimator();
 
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
@@ -76,53 +341,651 @@ public class DepthEstActivity extends MainActivity implements OnImageAvailableLi
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+        final CameraIntrinsics intrinsics = cameraIntrinsics;
+        frameIntrinsics =
+                intrinsics != null
+                        ? intrinsics.scaleTo(previewWidth, previewHeight)
+                        : CameraIntrinsics.fromFieldOfView(
+                                DEPTH_MAP_FOV_DEGREES, previewWidth, previewHeight);
+        LOGGER.i("Camera intrinsics: %s", frameIntrinsics);
+        final int cropSize = Math.min(previewWidth, previewHeight);
+        frameInfo = previewWidth + "x" + previewHeight;
+        cropInfo = imageSizeX + "x" + imageSizeY;
+        cameraResolution = cropSize + "x" + cropSize;
+
+        sceneChangeDetector = new SceneChangeDetector(SCENE_GRID_WIDTH, SCENE_GRID_HEIGHT);
+        sceneChangeDetector.setThresholds(
+                SCENE_MEAN_DIFFERENCE, SCENE_CELL_DIFFERENCE, SCENE_CHANGED_FRACTION);
+        sceneChangeDetector.setMaxReuseAgeMs(SCENE_MAX_REUSE_AGE_MS);
+    }
+
+    @Override
+    public synchronized void onResume() {
+        super.onResume();
+        if (pipeline != null) {
+            pipeline.resume();
+        } else {
+            pipeline = createPipeline();
+        }
+        // Recreates the estimator released by a memory trim here, since the legacy camera reports
+        // its preview size only once and would otherwise drop every frame.
+        requestDepthEstimator();
+        if (USE_FLOOR_ESTIMATION) {
+            registerGravityListener();
+        }
+        if (USE_AUTO_TUNING && !autoTuneStarted) {
+            autoTuneStarted = true;
+            runInBackground(() -> autoTune());
+        }
+    }
+
+    @Override
+    public synchronized void onPause() {
+        // Hands the frames in flight back before the camera closes; the estimator, the pipeline
+        // threads and their buffers are kept for the next resume.
+        if (pipeline != null) {
+            pipeline.pause();
+        }
+        if (USE_FLOOR_ESTIMATION) {
+            final SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+            sensorManager.unregisterListener(gravityListener);
+        }
+        super.onPause();
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        // Stops the inference thread first, so that no estimator is created after the release.
+        super.onDestroy();
+        releaseEngine();
+    }
+
+    @Override
+    public synchronized void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // In the background and likely to be killed: the engine is rebuilt on return.
+            LOGGER.i("Releasing the inference engine on memory trim level %d.", level);
+            releaseEngine();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            estimatorCache.clear();
+        }
+    }
+
+    /**
+     * Stops the pipeline and closes the estimators. The next resume starts a new pipeline and
+     * recreates the estimator in the background.
+     */
+    private void releaseEngine() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+            temporalFilter.close();
+            temporalFilter = null;
+            filteredEstimator = null;
+            depthUpsampler.close();
+            depthUpsampler = null;
+        }
+        synchronized (estimatorLock) {
+            engineGeneration++;
+            final DepthEstimator estimator = depthEstimator;
+            depthEstimator = null;
+            estimatorModel = null;
+            estimatorKey = null;
+            hasDepthMap = false;
+            if (estimator != null) {
+                estimator.closeWhenReleased();
+            }
+        }
+        estimatorCache.clear();
+    }
+
+    /**
+     * Creates an estimator for the selected configuration in the background, unless one is in
+     * place. Runs on the UI thread.
+     */
+    private void requestDepthEstimator() {
+        if (depthEstimator == null) {
+            final Model model = getModel();
+            final Device device = getDevice();
+            final int numThreads = getNumThreads();
+            runInBackground(() -> recreateDepthEstimator(model, device, numThreads));
+        }
+    }
+
+    /** Returns whether an estimator is in place to convert frames for. */
+    boolean hasDepthEstimator() {
+        return depthEstimator != null;
+    }
+
+    private FramePipeline<FrameJob> createPipeline() {
+        // Configured before the post-process thread using them starts.
+        obstacleEngine.setThresholds(OBSTACLE_DISTANCE_METERS, OBSTACLE_PERCENTILE);
+        floorEstimator.setBudget(FLOOR_MAX_ITERATIONS, FLOOR_BUDGET_NS);
+        floorEstimator.setThresholds(
+                FLOOR_INLIER_METERS, FLOOR_INLIER_FRACTION, FLOOR_DROP_OFF_METERS);
+        floorEstimator.reset();
+        temporalFilter = new TemporalDepthFilter(TEMPORAL_FILTER_STRIPES);
+        temporalFilter.setMode(TEMPORAL_FILTER_MODE);
+        filteredEstimator = null;
+        depthUpsampler = new JointBilateralUpsampler(UPSAMPLING_STRIPES);
+        final FrameJob[] jobs = new FrameJob[NUM_PIPELINE_JOBS];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new FrameJob();
+        }
+        final FramePipeline<FrameJob> pipeline =
+                new FramePipeline<FrameJob>(
+                        jobs,
+                        new FramePipeline.Stage<FrameJob>() {
+                            @Override
+                            public boolean process(final FrameJob job) {
+                                return convertFrame(job);
+                            }
+                        },
+                        new FramePipeline.Stage<FrameJob>() {
+                            @Override
+                            public boolean process(final FrameJob job) {
+                                return inferFrame(job);
+                            }
+                        },
+                        MAX_NUM_INTERPRETERS,
+                        new FramePipeline.Stage<FrameJob>() {
+                            @Override
+                            public boolean process(final FrameJob job) {
+                                publishDepthMap(job);
+                                return true;
+                            }
+                        },
+                        new FramePipeline.Stage<FrameJob>() {
+                            @Override
+                            public boolean process(final FrameJob job) {
+                                if (job.estimator != null) {
+                                    job.estimator.release();
+                                    job.estimator = null;
+                                }
+                                readyForNextImage(job.frame);
+                                job.frame = null;
+                                job.sceneDetector = null;
+                                return true;
+                            }
+                        });
+        final DepthEstimator estimator = depthEstimator;
+        pipeline.setActiveInferWorkerCount(estimator != null ? estimator.getInterpreterCount() : 1);
+        return pipeline;
     }
 
     @Override
     protected void processImage() {
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-        final int cropSize = Math.min(previewWidth, previewHeight);
+        final Frame frame = getFrame();
+        if (isAutoTuning) {
+            // Inference would skew the benchmark.
+            readyForNextImage(frame);
+            return;
+        }
+        final LatencyBudgetController controller = latencyController;
+        if (USE_LATENCY_BUDGET && controller != null && !controller.shouldInfer()) {
+            if (hasDepthMap) {
+                republishDepthMap();
+            }
+            readyForNextImage(frame);
+            return;
+        }
+        final FramePipeline<FrameJob> pipeline = this.pipeline;
+        final FrameJob job = pipeline != null ? pipeline.obtain() : null;
+        if (job == null) {
+            // Every stage is busy; the frame is dropped.
+            readyForNextImage(frame);
+            return;
+        }
+        // Gated only once a job is free, and the job is kept for the next frame if not submitted.
+        job.sceneDetector = null;
+        if (USE_SCENE_CHANGE_GATING) {
+            if (!hasDepthMap) {
+                // Nothing to re-publish, e.g. because the estimator was just recreated.
+                sceneChangeDetector.reset();
+            }
+            if (!isSceneChanged(frame, job) && hasDepthMap) {
+                republishDepthMap();
+                readyForNextImage(frame);
+                return;
+            }
+        }
+        job.frame = frame;
+        if (!pipeline.submit(job)) {
+            job.frame = null;
+            readyForNextImage(frame);
+        }
+    }
 
-        runInBackground(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        if (depthEstimator != null) {
-                            final long startTime = SystemClock.uptimeMillis();
-                            final Bitmap results =
-                                    depthEstimator.recognizeImage(rgbFrameBitmap, sensorOrientation);
-                            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-                            //LOGGER.v("Detect: %s", results);
-
-                            runOnUiThread(
-                                    new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            showFrameInfo(previewWidth + "x" + previewHeight);
-                                            showCropInfo(imageSizeX + "x" + imageSizeY);
-                                            showCameraResolution(cropSize + "x" + cropSize);
-                                            showRotationInfo(String.valueOf(sensorOrientation));
-                                            showInference(lastProcessingTimeMs + "ms");
-                                        }
-                                    });
-
-                            runOnUiThread(
-                                    new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            displayBitmap(results);
-                                        }
-                                    });
-                        }
-                        readyForNextImage();
-                    }
-                });
+    /**
+     * Pipeline stage converting the job's camera frame into its input tensor. The camera buffer is
+     * handed back right after, so that the next frame can be converted while this one is inferred.
+     */
+    private boolean convertFrame(final FrameJob job) {
+        final Frame frame = job.frame;
+        final DepthEstimator estimator = depthEstimator;
+        if (estimator == null || !estimator.retain()) {
+            // No estimator yet, or it was just replaced.
+            releaseFrameBuffer(frame);
+            return false;
+        }
+        job.estimator = estimator;
+        if (job.input == null || job.input.capacity() != estimator.getInputByteSize()) {
+            job.input = estimator.createInputBuffer();
+        }
+
+        if (!USE_FUSED_YUV_INPUT) {
+            estimator.convertImage(
+                    getRgbBytes(frame),
+                    frame.getWidth(),
+                    frame.getHeight(),
+                    frame.getRotation(),
+                    job.input);
+        } else if (frame.isYuv420SP()) {
+            estimator.convertImage(
+                    frame.getYuvBytes()[0],
+                    frame.getWidth(),
+                    frame.getHeight(),
+                    frame.getRotation(),
+                    job.input);
+        } else if (frame.getYuvPlanes()[0] != null) {
+            final ByteBuffer[] yuvPlanes = frame.getYuvPlanes();
+            estimator.convertImage(
+                    yuvPlanes[0],
+                    yuvPlanes[1],
+                    yuvPlanes[2],
+                    frame.getWidth(),
+                    frame.getHeight(),
+                    frame.getLuminanceStride(),
+                    frame.getUvRowStride(),
+                    frame.getUvPixelStride(),
+                    frame.getRotation(),
+                    job.input);
+        } else {
+            final byte[][] yuvBytes = frame.getYuvBytes();
+            estimator.convertImage(
+                    yuvBytes[0],
+                    yuvBytes[1],
+                    yuvBytes[2],
+                    frame.getWidth(),
+                    frame.getHeight(),
+                    frame.getLuminanceStride(),
+                    frame.getUvRowStride(),
+                    frame.getUvPixelStride(),
+                    frame.getRotation(),
+                    job.input);
+        }
+        if (USE_DEPTH_UPSAMPLING) {
+            sampleGuide(job, frame);
+        }
+        releaseFrameBuffer(frame);
+        return true;
+    }
+
+    /** Copies the luminance the depth map of the frame will be upsampled with into the job. */
+    private void sampleGuide(final FrameJob job, final Frame frame) {
+        guideSampler.configure(
+                frame.getWidth(), frame.getHeight(), frame.getLuminanceStride(), frame.getRotation());
+        final int guideSize = guideSampler.getGuideSize();
+        if (job.guide.length != guideSize * guideSize) {
+            job.guide = new byte[guideSize * guideSize];
+        }
+        job.guideSize = guideSize;
+        final ByteBuffer luminancePlane = frame.getYuvPlanes()[0];
+        if (luminancePlane != null) {
+            guideSampler.sample(luminancePlane, job.guide);
+        } else {
+            guideSampler.sample(frame.getLuminance(), job.guide);
+        }
+    }
+
+    /**
+     * Pipeline stage running the model on the job's input tensor. Runs on as many threads at once
+     * as the estimator has interpreters, each using its own one.
+     */
+    private boolean inferFrame(final FrameJob job) {
+        // Frames converted for an estimator that has since been replaced are still inferred with
+        // it, so that the output has no gap while the replacement takes over.
+        final DepthEstimator estimator = job.estimator;
+        final long startTime = SystemClock.uptimeMillis();
+        // The shown depth map is rendered by the post-process stage, once the depth is filtered.
+        final boolean recognized =
+                estimator.recognizeDepth(
+                        job.input,
+                        job.frame.getTimestampNs(),
+                        job.frame.getRotation(),
+                        job.depthFrame);
+        job.inferenceTimeMs = SystemClock.uptimeMillis() - startTime;
+        return recognized;
+    }
+
+    /**
+     * Pipeline stage showing a freshly estimated depth map together with the frame info. The
+     * job's depth map is swapped with the previously published one, so nothing is copied here.
+     */
+    private void publishDepthMap(final FrameJob job) {
+        lastProcessingTimeMs = job.inferenceTimeMs;
+        final DepthFrame depthFrame = job.depthFrame;
+        if (USE_TEMPORAL_FILTER) {
+            if (job.estimator != filteredEstimator) {
+                // Estimates of another model or input size do not blend.
+                temporalFilter.reset();
+                filteredEstimator = job.estimator;
+            }
+            temporalFilter.filter(
+                    depthFrame.getDepth(), depthFrame.getWidth(), depthFrame.getHeight());
+        }
+        final CameraIntrinsics intrinsics = frameIntrinsics;
+        obstacleEngine.setHorizontalFov(
+                intrinsics != null
+                        ? getCropFovDegrees(intrinsics, depthFrame.getRotation())
+                        : DEPTH_MAP_FOV_DEGREES);
+        obstacleEngine.analyze(
+                depthFrame.getDepth(),
+                depthFrame.getWidth(),
+                depthFrame.getHeight(),
+                depthFrame.getTimestampNs(),
+                analyzedObstacles);
+        synchronized (obstacleLock) {
+            final ObstacleSectors published = publishedObstacles;
+            publishedObstacles = analyzedObstacles;
+            analyzedObstacles =
+                    published != null ? published : new ObstacleSectors(NUM_OBSTACLE_SECTORS);
+        }
+
+        if (USE_POINT_CLOUD) {
+            projectPointCloud(job);
+        }
+
+        if (USE_DEPTH_UPSAMPLING) {
+            upsampleDepthMap(job);
+        } else {
+            final int numPixels = depthFrame.getWidth() * depthFrame.getHeight();
+            job.depthMap.setSize(depthFrame.getWidth(), depthFrame.getHeight());
+            job.estimator.renderDepth(depthFrame.getDepth(), numPixels, job.depthMap.pixels);
+        }
+        synchronized (displayLock) {
+            final DepthPixels published = publishedDepthMap;
+            publishedDepthMap = job.depthMap;
+            job.depthMap = published;
+            isPublishedDepthMapNew = true;
+        }
+        // A late map of a replaced estimator is shown, but not re-published in place of the
+        // replacement's first one. The lock keeps a swap from slipping in between.
+        synchronized (estimatorLock) {
+            if (job.estimator == depthEstimator) {
+                if (job.sceneDetector != null) {
+                    // Only now that its depth map is shown may later frames be compared with it.
+                    job.sceneDetector.commitReference(job.sceneCells, job.sceneTimestampMs);
+                }
+                hasDepthMap = true;
+            }
+        }
+        runOnUiThread(depthMapDisplayer);
+
+        final LatencyBudgetController controller = latencyController;
+        if (USE_LATENCY_BUDGET
+                && controller != null
+                && controller.onInference(job.inferenceTimeMs)) {
+            applyQualityLevel(controller);
+        }
+
+        if (++numPublishedFrames % PIPELINE_STATS_INTERVAL == 0) {
+            final FramePipeline<FrameJob> pipeline = this.pipeline;
+            if (pipeline != null) {
+                LOGGER.i(
+                        "Pipeline occupancy: %s, obstacles in %dus, floor in %dus (%d hypotheses)",
+                        pipeline.getStatsInfo(),
+                        obstacleEngine.getLastAnalysisNanos() / 1000,
+                        floorEstimator.getLastEstimateNanos() / 1000,
+                        floorEstimator.getLastIterations());
+            }
+        }
+    }
+
+    /**
+     * Returns the horizontal field of view of depth maps of the square center crop of frames with
+     * the given intrinsics, rotated by {@code rotation} degrees.
+     */
+    private static float getCropFovDegrees(final CameraIntrinsics intrinsics, final int rotation) {
+        final int cropSize = Math.min(intrinsics.getWidth(), intrinsics.getHeight());
+        final float focalLength =
+                rotation % 180 == 0 ? intrinsics.getFocalLengthX() : intrinsics.getFocalLengthY();
+        return (float) Math.toDegrees(2 * Math.atan(cropSize / 2.0 / focalLength));
+    }
+
+    /**
+     * Upsamples the job's depth frame to the resolution of its guide and renders the result into
+     * the job's depth map. Runs on the post-process stage.
+     */
+    private void upsampleDepthMap(final FrameJob job) {
+        final DepthFrame depthFrame = job.depthFrame;
+        final int size = job.guideSize;
+        depthUpsampler.configure(depthFrame.getWidth(), depthFrame.getHeight(), size, size);
+        if (job.upsampledDepth.length != size * size) {
+            job.upsampledDepth = new float[size * size];
+        }
+        depthUpsampler.upsample(depthFrame.getDepth(), job.guide, job.upsampledDepth);
+        job.depthMap.setSize(size, size);
+        job.estimator.renderDepth(job.upsampledDepth, size * size, job.depthMap.pixels);
+    }
+
+    /**
+     * Back-projects the job's depth frame with the intrinsics of its camera frame and publishes
+     * the point cloud. Runs on the post-process stage.
+     */
+    private void projectPointCloud(final FrameJob job) {
+        final CameraIntrinsics intrinsics = frameIntrinsics;
+        final DepthFrame depthFrame = job.depthFrame;
+        if (intrinsics == null) {
+            return;
+        }
+        pointCloudProjector.configure(
+                intrinsics,
+                job.frame.getWidth(),
+                job.frame.getHeight(),
+                depthFrame.getRotation(),
+                depthFrame.getWidth(),
+                depthFrame.getHeight());
+        pointCloudProjector.project(
+                depthFrame.getDepth(), depthFrame.getTimestampNs(), projectedPointCloud);
+        if (USE_FLOOR_ESTIMATION) {
+            floorEstimator.estimate(projectedPointCloud, estimatedFloor);
+            synchronized (floorLock) {
+                final FloorPlane published = publishedFloor;
+                publishedFloor = estimatedFloor;
+                estimatedFloor = published != null ? published : new FloorPlane();
+            }
+        }
+        synchronized (pointCloudLock) {
+            final PointCloud published = publishedPointCloud;
+            publishedPointCloud = projectedPointCloud;
+            projectedPointCloud = published != null ? published : new PointCloud();
+        }
+    }
+
+    /**
+     * Copies the point cloud of the newest depth map. May be called from any thread.
+     *
+     * @return false if no depth map has been back-projected yet.
+     */
+    public boolean copyLatestPointCloud(final PointCloud pointCloud) {
+        synchronized (pointCloudLock) {
+            if (publishedPointCloud == null) {
+                return false;
+            }
+            pointCloud.copyFrom(publishedPointCloud);
+            return true;
+        }
+    }
+
+    /**
+     * Copies the floor plane of the newest depth map, with its walkable pixels and drop-offs, for
+     * feedback to the user. May be called from any thread.
+     *
+     * @return false if no point cloud has been estimated yet; a copied floor may still be invalid.
+     */
+    public boolean copyLatestFloor(final FloorPlane floor) {
+        synchronized (floorLock) {
+            if (publishedFloor == null) {
+                return false;
+            }
+            floor.copyFrom(publishedFloor);
+            return true;
+        }
+    }
+
+    /** Listens to gravity, or to the accelerometer on devices without a gravity sensor. */
+    private void registerGravityListener() {
+        final SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+        if (sensor == null) {
+            sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        }
+        if (sensor == null) {
+            LOGGER.w("No gravity sensor, assuming the camera is held upright.");
+            return;
+        }
+        sensorManager.registerListener(gravityListener, sensor, SensorManager.SENSOR_DELAY_UI);
+    }
+
+    /**
+     * Hands the reaction to gravity measured in device coordinates to the floor estimator, as the
+     * direction of gravity in the coordinates of the upright point clouds of the back camera.
+     */
+    private void onGravityChanged(final float x, final float y, final float z) {
+        // Device axes point right and up along the natural orientation and out of the screen.
+        final float screenX;
+        final float screenY;
+        switch (getScreenOrientation()) {
+            case 90:
+                screenX = y;
+                screenY = -x;
+                break;
+            case 180:
+                screenX = -x;
+                screenY = -y;
+                break;
+            case 270:
+                screenX = -y;
+                screenY = x;
+                break;
+            default:
+                screenX = x;
+                screenY = y;
+                break;
+        }
+        // Gravity opposes the measured reaction; the clouds have y down and z into the screen.
+        floorEstimator.setGravity(-screenX, screenY, z);
+    }
+
+    /**
+     * Copies the nearest obstacles of the newest depth map, for feedback to the user. May be
+     * called from any thread.
+     *
+     * @param obstacles Receives the sectors; must have {@link #getObstacleSectorCount} sectors.
+     * @return false if no depth map has been estimated yet.
+     */
+    public boolean copyLatestObstacles(final ObstacleSectors obstacles) {
+        synchronized (obstacleLock) {
+            if (publishedObstacles == null) {
+                return false;
+            }
+            obstacles.copyFrom(publishedObstacles);
+            return true;
+        }
+    }
+
+    /** Returns the number of sectors reported by {@link #copyLatestObstacles}. */
+    public int getObstacleSectorCount() {
+        return NUM_OBSTACLE_SECTORS;
+    }
+
+    /**
+     * Compares the luminance plane of {@code frame} with that of the last published frame. If the
+     * frame has to be estimated, its grid cells go into {@code job}, to become the reference once
+     * its depth map is published.
+     *
+     * @return true if the frame has to be estimated.
+     */
+    private boolean isSceneChanged(final Frame frame, final FrameJob job) {
+        final SceneChangeDetector detector = sceneChangeDetector;
+        final long timestampMs = SystemClock.uptimeMillis();
+        final ByteBuffer luminancePlane = frame.getYuvPlanes()[0];
+        final boolean changed =
+                luminancePlane != null
+                        ? detector.shouldEstimate(
+                                luminancePlane,
+                                frame.getWidth(),
+                                frame.getHeight(),
+                                frame.getLuminanceStride(),
+                                timestampMs)
+                        : detector.shouldEstimate(
+                                frame.getLuminance(),
+                                frame.getWidth(),
+                                frame.getHeight(),
+                                frame.getLuminanceStride(),
+                                timestampMs);
+        if (changed) {
+            if (job.sceneCells.length != detector.getCellCount()) {
+                job.sceneCells = new int[detector.getCellCount()];
+            }
+            detector.copyCells(job.sceneCells);
+            job.sceneDetector = detector;
+            job.sceneTimestampMs = timestampMs;
+        }
+        return changed;
+    }
+
+    /**
+     * Takes the newest published depth map, if not shown yet, and copies it into the displayed
+     * Bitmap. Runs on the UI thread.
+     */
+    private void showDepthMap() {
+        synchronized (displayLock) {
+            if (isPublishedDepthMapNew) {
+                final DepthPixels displayed = displayedDepthMap;
+                displayedDepthMap = publishedDepthMap;
+                publishedDepthMap = displayed;
+                isPublishedDepthMapNew = false;
+            }
+        }
+        final DepthPixels depthMap = displayedDepthMap;
+        if (depthMap.width == 0) {
+            return;
+        }
+        if (displayedBitmap == null
+                || displayedBitmap.getWidth() != depthMap.width
+                || displayedBitmap.getHeight() != depthMap.height) {
+            displayedBitmap =
+                    Bitmap.createBitmap(depthMap.width, depthMap.height, Bitmap.Config.ARGB_8888);
+        }
+        displayedBitmap.setPixels(
+                depthMap.pixels, 0, depthMap.width, 0, 0, depthMap.width, depthMap.height);
+        displayBitmap(displayedBitmap);
+    }
+
+    /** Shows the previous depth map again for a frame whose scene has not changed. */
+    private void republishDepthMap() {
+        runOnUiThread(depthMapDisplayer);
+    }
+
+    /** Returns the last inference time together with the counts of estimated and reused frames. */
+    private String getInferenceInfo() {
+        if (!USE_SCENE_CHANGE_GATING) {
+            return lastProcessingTimeMs + "ms";
+        }
+        return lastProcessingTimeMs
+                + "ms ("
+                + sceneChangeDetector.getReusedCount()
+                + "/"
+                + (sceneChangeDetector.getComputedCount() + sceneChangeDetector.getReusedCount())
+                + " reused)";
     }
 
     @Override
     protected void onInferenceConfigurationChanged() {
-        if (rgbFrameBitmap == null) {
+        if (depthEstimator == null && sceneChangeDetector == null) {
             // Defer creation until we're getting camera frames.
             return;
         }
@@ -132,12 +995,101 @@ public class DepthEstActivity extends MainActivity implements OnImageAvailableLi
         runInBackground(() -> recreateDepthEstimator(model, device, numThreads));
     }
 
+    /**
+     * Applies the auto-tuned configuration, benchmarking the candidates first if this device, app
+     * version or model files have not been tuned yet. Runs on the background handler.
+     */
+    private void autoTune() {
+        final AutoTuner autoTuner =
+                new AutoTuner(this, AUTO_TUNE_LATENCY_TARGET_MS, MAX_NUM_INTERPRETERS);
+        AutoTuner.Configuration configuration = autoTuner.loadTunedConfiguration();
+        if (configuration == null) {
+            runOnUiThread(
+                    () -> {
+                        Toast.makeText(this, R.string.tfe_ic_autotune, Toast.LENGTH_LONG).show();
+                    });
+            isAutoTuning = true;
+            try {
+                configuration = autoTuner.tune();
+            } catch (IOException e) {
+                LOGGER.e(e, "Failed to auto-tune.");
+            } finally {
+                isAutoTuning = false;
+            }
+        }
+        if (configuration == null) {
+            return;
+        }
+        final AutoTuner.Configuration tuned = configuration;
+        LOGGER.i("Using auto-tuned configuration %s", tuned);
+        // Not part of the bottom sheet, so a change of the count alone is applied here.
+        final boolean interpretersChanged = tuned.getNumInterpreters() != numInterpreters;
+        numInterpreters = tuned.getNumInterpreters();
+        runOnUiThread(
+                () -> {
+                    setInferenceConfiguration(
+                            tuned.getModel(), tuned.getDevice(), tuned.getNumThreads());
+                    if (interpretersChanged) {
+                        onInferenceConfigurationChanged();
+                    }
+                });
+    }
+
+    /**
+     * Swaps in an estimator for the current level of {@code controller} unless it is in place,
+     * keeping the selected device and thread count.
+     */
+    private void applyQualityLevel(final LatencyBudgetController controller) {
+        final LatencyBudgetController.QualityLevel level = controller.getLevel();
+        final Device device = getDevice();
+        final int numThreads = getNumThreads();
+        runInBackground(
+                () -> {
+                    synchronized (estimatorLock) {
+                        final DepthEstimator current = depthEstimator;
+                        if (controller != latencyController
+                                || (current != null
+                                        && estimatorModel == level.getModel()
+                                        && current.getInputScale() == level.getInputScale())) {
+                            // Outdated by a configuration change, or only the cadence changed.
+                            return;
+                        }
+                    }
+                    swapDepthEstimator(level.getModel(), device, numThreads, level.getInputScale());
+                });
+    }
+
+    /**
+     * Applies a configuration picked in the bottom sheet: restarts the latency budget from its
+     * highest quality level and swaps in an estimator for it.
+     */
     private void recreateDepthEstimator(Model model, Device device, int numThreads) {
-        if (depthEstimator != null) {
-            LOGGER.d("Closing depth estimator.");
-            depthEstimator.close();
-            depthEstimator = null;
+        if (swapDepthEstimator(model, device, numThreads, 1f)) {
+            // Concurrent interpreters each have the frame interval of all of them to infer a frame.
+            final DepthEstimator estimator = depthEstimator;
+            latencyController =
+                    new LatencyBudgetController(
+                            LatencyBudgetController.createLevels(model, device),
+                            1000
+                                    / TARGET_RATE_HZ
+                                    * (estimator != null ? estimator.getInterpreterCount() : 1));
         }
+    }
+
+    /**
+     * Swaps in an estimator for the given configuration, while the current one keeps serving
+     * frames. The replacement is taken from the estimator cache if possible, otherwise created and
+     * warmed up before the swap. The current estimator goes into the cache, which closes it once
+     * evicted and the frames converted for it have left the pipeline. If creation fails, the
+     * current estimator stays in place. The input scale is clamped to {@link #getMaxInputScale}.
+     *
+     * <p>The replacement is created without holding estimatorLock, which is only taken to swap the
+     * references, so that the UI thread never waits for a model load or a delegate warm-up.
+     *
+     * @return true if the replacement was swapped in.
+     */
+    private boolean swapDepthEstimator(
+            Model model, Device device, int numThreads, float inputScale) {
         if (device == Device.GPU
                 && (model == Model.QUANTIZED_MOBILENET)) {
             LOGGER.d("Not creating depth estimator: GPU doesn't support quantized models.");
@@ -145,18 +1097,107 @@ public class DepthEstActivity extends MainActivity implements OnImageAvailableLi
                     () -> {
                         Toast.makeText(this, R.string.tfe_ic_gpu_quant_error, Toast.LENGTH_LONG).show();
                     });
-            return;
+            return false;
         }
-        try {
-            LOGGER.d(
-                    "Creating depth estimator (model=%s, device=%s, numThreads=%d)", model, device, numThreads);
-            depthEstimator = DepthEstimator.create(this, model, device, numThreads);
-        } catch (IOException e) {
-            LOGGER.e(e, "Failed to create depth estimator.");
+        final float scale = Math.min(inputScale, getMaxInputScale(model));
+        // Only the CPU supports more than one interpreter.
+        final int numInterpreters = device == Device.CPU ? this.numInterpreters : 1;
+        final EstimatorCache.Key key =
+                new EstimatorCache.Key(model, device, numThreads, numInterpreters, scale);
+        final boolean hasPrevious;
+        final int generation;
+        synchronized (estimatorLock) {
+            if (depthEstimator != null && key.equals(estimatorKey)) {
+                return false;
+            }
+            hasPrevious = depthEstimator != null;
+            generation = engineGeneration;
+        }
+        DepthEstimator replacement = estimatorCache.take(key);
+        if (replacement == null) {
+            try {
+                LOGGER.d(
+                        "Creating depth estimator (model=%s, device=%s, numThreads=%d, numInterpreters=%d, inputScale=%.2f)",
+                        model, device, numThreads, numInterpreters, scale);
+                replacement =
+                        DepthEstimator.create(
+                                this, model, device, numThreads, numInterpreters, scale);
+                if (hasPrevious) {
+                    replacement.warmUp(NUM_WARM_UP_RUNS);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.e(e, "Failed to create depth estimator.");
+                return false;
+            }
+        }
+
+        synchronized (estimatorLock) {
+            if (generation != engineGeneration) {
+                // The engine was released meanwhile; it is rebuilt on the next resume.
+                replacement.closeWhenReleased();
+                return false;
+            }
+            // Updates the input image size.
+            imageSizeX = replacement.getImageSizeX();
+            imageSizeY = replacement.getImageSizeY();
+            cropInfo = imageSizeX + "x" + imageSizeY;
+            final DepthEstimator previous = depthEstimator;
+            final EstimatorCache.Key previousKey = estimatorKey;
+            depthEstimator = replacement;
+            estimatorModel = model;
+            estimatorKey = key;
+            final FramePipeline<FrameJob> pipeline = this.pipeline;
+            if (pipeline != null) {
+                pipeline.setActiveInferWorkerCount(replacement.getInterpreterCount());
+            }
+            // Depth maps of the previous estimator are no longer re-published.
+            hasDepthMap = false;
+            if (previous != null) {
+                estimatorCache.put(previousKey, previous);
+            }
         }
+        return true;
+    }
+
+    /** A frame travelling through the pipeline. */
+    private static final class FrameJob {
+        /** The camera frame, returned to the pool once the job leaves the pipeline. */
+        Frame frame;
+        /** The input tensor the frame is converted into, reused across frames. */
+        ByteBuffer input;
+        /** The estimator the input was converted for, retained until the job leaves. */
+        DepthEstimator estimator;
+        /** The depth map inferred into, exchanged with the published one when published. */
+        DepthPixels depthMap = new DepthPixels();
+        /** The depth in meters of the same inference, for consumers of the post-process stage. */
+        final DepthFrame depthFrame = new DepthFrame();
+        /** Luminance of the cropped camera frame, upright, that the depth is upsampled with. */
+        byte[] guide = new byte[0];
+        int guideSize;
+        /** The depth in meters at the resolution of the guide. */
+        float[] upsampledDepth = new float[0];
+        long inferenceTimeMs;
+        /**
+         * The detector that examined the frame and the frame's grid cells, committed as its
+         * reference once the depth map is published. Null if the frame was not examined.
+         */
+        SceneChangeDetector sceneDetector;
+        int[] sceneCells = new int[0];
+        long sceneTimestampMs;
+    }
 
-        // Updates the input image size.
-        imageSizeX = depthEstimator.getImageSizeX();
-        imageSizeY = depthEstimator.getImageSizeY();
+    /** Grayscale ARGB pixels of a depth map, reused across frames while the size is unchanged. */
+    private static final class DepthPixels {
+        int[] pixels = new int[0];
+        int width;
+        int height;
+
+        void setSize(final int width, final int height) {
+            if (pixels.length != width * height) {
+                pixels = new int[width * height];
+            }
+            this.width = width;
+            this.height = height;
+        }
     }
 }
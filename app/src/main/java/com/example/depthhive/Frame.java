@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.depthhive;
+
+import android.hardware.Camera;
+import android.media.Image;
+import android.media.Image.Plane;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import com.example.depthhive.env.Logger;
+
+/**
+ * A camera frame passed to {@link MainActivity#processImage()}.
+ *
+ * <p>Frames are pooled by {@link MainActivity} and recycled once finished with {@link
+ * MainActivity#readyForNextImage(Frame)}, so that handling a frame allocates nothing. The plane
+ * data is backed by the camera and is only valid until the frame's camera buffer is released.
+ */
+public final class Frame {
+    private static final Logger LOGGER = new Logger();
+
+    /** Plane buffers of a Camera2 image read in place, otherwise null entries. */
+    private final ByteBuffer[] yuvPlanes = new ByteBuffer[3];
+
+    /**
+     * Plane arrays of a copied Camera2 image, or the YUV420SP (NV21) preview buffer of the legacy
+     * camera in the first entry.
+     */
+    private final byte[][] yuvBytes = new byte[3][];
+
+    private int width;
+    private int height;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private boolean isYuv420SP;
+    private long timestampNs;
+    private int rotation;
+
+    /** The Camera2 image read in place, closed on release. */
+    private Image image;
+
+    /** The legacy camera the preview buffer is handed back to on release. */
+    private Camera camera;
+
+    /** Whether the frame still holds its camera buffer. */
+    private boolean holdsBuffer = false;
+
+    /** Sets up the frame for a Camera2 image whose planes are read in place. */
+    void setImage(
+            final Image image,
+            final Plane[] planes,
+            final int width,
+            final int height,
+            final int rotation) {
+        for (int i = 0; i < planes.length; ++i) {
+            yuvPlanes[i] = planes[i].getBuffer();
+        }
+        this.image = image;
+        setFormat(planes, width, height, image.getTimestamp(), rotation);
+    }
+
+    /**
+     * Sets up the frame for a Camera2 image whose planes have been copied into {@link
+     * #getYuvBytes()}. The image itself is no longer needed.
+     */
+    void setCopiedImage(
+            final Plane[] planes,
+            final int width,
+            final int height,
+            final long timestampNs,
+            final int rotation) {
+        setFormat(planes, width, height, timestampNs, rotation);
+    }
+
+    /** Sets up the frame for a YUV420SP (NV21) preview buffer of the legacy camera. */
+    void setPreviewBuffer(
+            final byte[] buffer,
+            final Camera camera,
+            final int width,
+            final int height,
+            final long timestampNs,
+            final int rotation) {
+        yuvBytes[0] = buffer;
+        this.camera = camera;
+        this.width = width;
+        this.height = height;
+        this.yRowStride = width;
+        this.uvRowStride = width;
+        this.uvPixelStride = 2;
+        this.isYuv420SP = true;
+        this.timestampNs = timestampNs;
+        this.rotation = rotation;
+        holdsBuffer = true;
+    }
+
+    private void setFormat(
+            final Plane[] planes,
+            final int width,
+            final int height,
+            final long timestampNs,
+            final int rotation) {
+        this.width = width;
+        this.height = height;
+        this.yRowStride = planes[0].getRowStride();
+        this.uvRowStride = planes[1].getRowStride();
+        this.uvPixelStride = planes[1].getPixelStride();
+        this.isYuv420SP = false;
+        this.timestampNs = timestampNs;
+        this.rotation = rotation;
+        holdsBuffer = true;
+    }
+
+    /** Returns true if the frame still holds its camera buffer. */
+    boolean holdsBuffer() {
+        return holdsBuffer;
+    }
+
+    /** Hands the camera buffer back. The plane data is invalid afterwards. */
+    void releaseBuffer() {
+        if (!holdsBuffer) {
+            return;
+        }
+        holdsBuffer = false;
+        if (image != null) {
+            // The plane buffers are invalid once the image is closed.
+            Arrays.fill(yuvPlanes, null);
+            image.close();
+            image = null;
+        }
+        if (camera != null) {
+            // The buffer is refilled by the camera once it is handed back.
+            final byte[] buffer = yuvBytes[0];
+            yuvBytes[0] = null;
+            try {
+                camera.addCallbackBuffer(buffer);
+            } catch (final RuntimeException e) {
+                // The camera was released while the frame was in flight.
+                LOGGER.w("Camera released before frame buffer was returned.");
+            }
+            camera = null;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLuminanceStride() {
+        return yRowStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    /** Returns the luminance plane array, or null while the planes are read in place. */
+    public byte[] getLuminance() {
+        return yuvBytes[0];
+    }
+
+    public byte[][] getYuvBytes() {
+        return yuvBytes;
+    }
+
+    /** Returns the plane buffers when read in place, or null entries otherwise. */
+    public ByteBuffer[] getYuvPlanes() {
+        return yuvPlanes;
+    }
+
+    /** Returns true if the frame is a YUV420SP (NV21) buffer from the legacy camera API. */
+    public boolean isYuv420SP() {
+        return isYuv420SP;
+    }
+
+    /** Returns the capture time in nanoseconds. */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Returns the rotation of the camera sensor relative to the screen, in degrees. */
+    public int getRotation() {
+        return rotation;
+    }
+}
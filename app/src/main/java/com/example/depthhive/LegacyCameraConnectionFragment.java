@@ -52,6 +52,8 @@ public class LegacyCameraConnectionFragment extends Fragment {
     private Camera camera;
     private Camera.PreviewCallback imageListener;
     private Size desiredSize;
+    /** Number of preview buffers cycled between the camera and the frame consumer. */
+    private int numCallbackBuffers;
     /** The layout identifier to inflate for this Fragment. */
     private int layout;
     /** An {@link AutoFitTextureView} for camera preview. */
@@ -95,7 +97,11 @@ public class LegacyCameraConnectionFragment extends Fragment {
 
                     camera.setPreviewCallbackWithBuffer(imageListener);
                     Camera.Size s = camera.getParameters().getPreviewSize();
-                    camera.addCallbackBuffer(new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+                    // Several buffers let the camera fill the next frame while the previous ones are
+                    // still being converted; each one is handed back as soon as it is consumed.
+                    for (int b = 0; b < numCallbackBuffers; b++) {
+                        camera.addCallbackBuffer(new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+                    }
 
                     textureView.setAspectRatio(s.height, s.width);
 
@@ -119,10 +125,14 @@ public class LegacyCameraConnectionFragment extends Fragment {
 
     @SuppressLint("ValidFragment")
     public LegacyCameraConnectionFragment(
-            final Camera.PreviewCallback imageListener, final int layout, final Size desiredSize) {
+            final Camera.PreviewCallback imageListener,
+            final int layout,
+            final Size desiredSize,
+            final int numCallbackBuffers) {
         this.imageListener = imageListener;
         this.layout = layout;
         this.desiredSize = desiredSize;
+        this.numCallbackBuffers = numCallbackBuffers;
     }
 
     @Override
@@ -34,6 +34,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.Trace;
 import androidx.annotation.NonNull;
 import androidx.annotation.UiThread;
@@ -51,8 +52,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import java.nio.ByteBuffer;
-import com.example.depthhive.env.ImageUtils;
+import java.util.ArrayDeque;
+import com.example.depthhive.env.AllocationCounter;
+import com.example.depthhive.env.CameraIntrinsics;
 import com.example.depthhive.env.Logger;
+import com.example.depthhive.env.ParallelYuvConverter;
 import com.example.depthhive.tflite.DepthEstimator.Device;
 import com.example.depthhive.tflite.DepthEstimator.Model;
 
@@ -66,21 +70,58 @@ public abstract class MainActivity extends AppCompatActivity
     private static final int PERMISSIONS_REQUEST = 1;
 
     private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
+
+    /** Whether YUV to ARGB conversion is split into row stripes across all cores. */
+    private static final boolean USE_PARALLEL_YUV_CONVERSION = true;
+
+    /**
+     * Whether Camera2 frames are read straight from the plane buffers, keeping the {@link Image}
+     * open until its buffer is released, instead of being copied into the frame's arrays.
+     */
+    private static final boolean USE_ZERO_COPY_PLANES = true;
+
+    /** Number of preallocated preview buffers the legacy camera cycles through. */
+    private static final int NUM_LEGACY_CALLBACK_BUFFERS = 3;
+
+    /**
+     * Default number of pooled {@link Frame}s, i.e. the maximum number of frames passed to {@link
+     * #processImage()} that are not yet finished with {@link #readyForNextImage(Frame)}: one per
+     * pipeline stage plus one waiting for inference. A frame is only accepted once the previous one
+     * has released its camera buffer with {@link #releaseFrameBuffer(Frame)}, so that its
+     * conversion overlaps the inference of the previous ones.
+     */
+    private static final int MAX_FRAMES_IN_FLIGHT = 4;
+
+    /** Number of frames between two logs of the camera thread allocations in debug builds. */
+    private static final int ALLOCATION_LOG_INTERVAL = 100;
     protected int previewWidth = 0;
     protected int previewHeight = 0;
-    private Handler handler;
+    /** Intrinsics of the analysis frames, or null if the camera does not report them. */
+    protected volatile CameraIntrinsics cameraIntrinsics;
+    /** Posts to the inference thread, read without locking so that pipeline threads can post. */
+    private volatile Handler handler;
     private HandlerThread handlerThread;
     private boolean useCamera2API;
-    private boolean isProcessingFrame = false;
-    private byte[][] yuvBytes = new byte[3][];
+    /** Guards {@link #framePool}, {@link #currentFrame} and the camera buffers of the frames. */
+    private final Object frameLock = new Object();
+    /** Frames not in flight. */
+    private final ArrayDeque<Frame> framePool = new ArrayDeque<Frame>();
+    /** The frame most recently passed to {@link #processImage()}. */
+    private Frame currentFrame;
+    /** Rotation of the camera sensor relative to the screen, in degrees. */
+    private int frameRotation;
+    /** ARGB conversion of the frames, created on the first {@link #getRgbBytes(Frame)}. */
     private int[] rgbBytes = null;
-    private int yRowStride;
-    private Runnable postInferenceCallback;
-    private Runnable imageConverter;
+    private ParallelYuvConverter yuvConverter;
+    /** Counts the allocations made on the camera thread while handing a frame over. */
+    private final AllocationCounter cameraAllocations = new AllocationCounter();
+    private int numAcceptedFrames = 0;
     private LinearLayout bottomSheetLayout;
     private LinearLayout gestureLayout;
     private BottomSheetBehavior<LinearLayout> sheetBehavior;
     protected ImageView depthMapView;
+    /** The Bitmap last passed to {@link #displayBitmap}. */
+    private Bitmap displayedBitmap;
     protected TextView frameValueTextView,
             cropValueTextView,
             cameraResolutionTextView,
@@ -102,6 +143,10 @@ public abstract class MainActivity extends AppCompatActivity
         super.onCreate(null);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
+        for (int i = 0; i < getMaxFramesInFlight(); ++i) {
+            framePool.add(new Frame());
+        }
+
         setContentView(R.layout.tfe_ic_activity_camera);
 
         if (hasPermission()) {
@@ -182,62 +227,112 @@ public abstract class MainActivity extends AppCompatActivity
         numThreads = Integer.parseInt(threadsTextView.getText().toString().trim());
     }
 
+    /** Returns the number of pooled frames, see {@link #MAX_FRAMES_IN_FLIGHT}. */
+    protected int getMaxFramesInFlight() {
+        return MAX_FRAMES_IN_FLIGHT;
+    }
+
+    /** Converts the current frame to ARGB. */
     protected int[] getRgbBytes() {
-        imageConverter.run();
+        return getRgbBytes(currentFrame);
+    }
+
+    /**
+     * Converts {@code frame} to ARGB. The returned array is reused, so conversions must not run
+     * concurrently.
+     */
+    protected int[] getRgbBytes(final Frame frame) {
+        // Pipelines converting straight into the model input never get here, so they do not pay
+        // for the converter threads and the full-size ARGB frame.
+        if (yuvConverter == null) {
+            yuvConverter = new ParallelYuvConverter(Runtime.getRuntime().availableProcessors());
+            yuvConverter.setParallel(USE_PARALLEL_YUV_CONVERSION);
+        }
+        if (rgbBytes == null || rgbBytes.length != previewWidth * previewHeight) {
+            rgbBytes = new int[previewWidth * previewHeight];
+        }
+        if (frame.isYuv420SP()) {
+            yuvConverter.convertYUV420SPToARGB8888(
+                    frame.getYuvBytes()[0], previewWidth, previewHeight, rgbBytes);
+        } else if (frame.getYuvPlanes()[0] != null) {
+            final ByteBuffer[] yuvPlanes = frame.getYuvPlanes();
+            yuvConverter.convertYUV420ToARGB8888(
+                    yuvPlanes[0],
+                    yuvPlanes[1],
+                    yuvPlanes[2],
+                    previewWidth,
+                    previewHeight,
+                    frame.getLuminanceStride(),
+                    frame.getUvRowStride(),
+                    frame.getUvPixelStride(),
+                    rgbBytes);
+        } else {
+            final byte[][] yuvBytes = frame.getYuvBytes();
+            yuvConverter.convertYUV420ToARGB8888(
+                    yuvBytes[0],
+                    yuvBytes[1],
+                    yuvBytes[2],
+                    previewWidth,
+                    previewHeight,
+                    frame.getLuminanceStride(),
+                    frame.getUvRowStride(),
+                    frame.getUvPixelStride(),
+                    rgbBytes);
+        }
         return rgbBytes;
     }
 
     protected int getLuminanceStride() {
-        return yRowStride;
+        return currentFrame.getLuminanceStride();
     }
 
+    /** Returns the luminance plane array, or null while frames are read in place. */
     protected byte[] getLuminance() {
-        return yuvBytes[0];
+        return currentFrame.getLuminance();
+    }
+
+    /**
+     * Returns the frame most recently passed to {@link #processImage()}. Its plane data is only
+     * valid until {@link #releaseFrameBuffer(Frame)}.
+     */
+    protected Frame getFrame() {
+        return currentFrame;
     }
 
     /** Callback for android.hardware.Camera API */
     @Override
     public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-        if (isProcessingFrame) {
-            LOGGER.w("Dropping frame!");
-            return;
-        }
-
         try {
-            // Initialize the storage bitmaps once when the resolution is known.
-            if (rgbBytes == null) {
+            // Pick up the resolution from the first frame.
+            if (previewWidth == 0) {
                 Camera.Size previewSize = camera.getParameters().getPreviewSize();
                 previewHeight = previewSize.height;
                 previewWidth = previewSize.width;
-                rgbBytes = new int[previewWidth * previewHeight];
+                frameRotation = 90 - getScreenOrientation();
                 onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
             }
         } catch (final Exception e) {
             LOGGER.e(e, "Exception!");
+            camera.addCallbackBuffer(bytes);
             return;
         }
 
-        isProcessingFrame = true;
-        yuvBytes[0] = bytes;
-        yRowStride = previewWidth;
-
-        imageConverter =
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
-                    }
-                };
-
-        postInferenceCallback =
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        camera.addCallbackBuffer(bytes);
-                        isProcessingFrame = false;
-                    }
-                };
+        cameraAllocations.begin();
+        final Frame frame = tryAcceptFrame();
+        if (frame == null) {
+            // Hand the buffer straight back so that the ring keeps cycling.
+            camera.addCallbackBuffer(bytes);
+            return;
+        }
+        frame.setPreviewBuffer(
+                bytes,
+                camera,
+                previewWidth,
+                previewHeight,
+                SystemClock.elapsedRealtimeNanos(),
+                frameRotation);
         processImage();
+        endCameraAllocations();
     }
 
     /** Callback for Camera2 API */
@@ -247,9 +342,6 @@ public abstract class MainActivity extends AppCompatActivity
         if (previewWidth == 0 || previewHeight == 0) {
             return;
         }
-        if (rgbBytes == null) {
-            rgbBytes = new int[previewWidth * previewHeight];
-        }
         try {
             final Image image = reader.acquireLatestImage();
 
@@ -257,45 +349,28 @@ public abstract class MainActivity extends AppCompatActivity
                 return;
             }
 
-            if (isProcessingFrame) {
+            cameraAllocations.begin();
+            final Frame frame = tryAcceptFrame();
+            if (frame == null) {
                 image.close();
                 return;
             }
-            isProcessingFrame = true;
             Trace.beginSection("imageAvailable");
+            // The one allocation left per frame: getPlanes() returns a fresh copy of the plane
+            // array, and every acquired Image is a new object, so there is nothing to cache. The
+            // camera thread allocation count below includes it.
             final Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter =
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            ImageUtils.convertYUV420ToARGB8888(
-                                    yuvBytes[0],
-                                    yuvBytes[1],
-                                    yuvBytes[2],
-                                    previewWidth,
-                                    previewHeight,
-                                    yRowStride,
-                                    uvRowStride,
-                                    uvPixelStride,
-                                    rgbBytes);
-                        }
-                    };
-
-            postInferenceCallback =
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            image.close();
-                            isProcessingFrame = false;
-                        }
-                    };
+            if (USE_ZERO_COPY_PLANES) {
+                frame.setImage(image, planes, previewWidth, previewHeight, frameRotation);
+            } else {
+                fillBytes(planes, frame.getYuvBytes());
+                frame.setCopiedImage(
+                        planes, previewWidth, previewHeight, image.getTimestamp(), frameRotation);
+                image.close();
+            }
 
             processImage();
+            endCameraAllocations();
         } catch (final Exception e) {
             LOGGER.e(e, "Exception!");
             Trace.endSection();
@@ -304,6 +379,15 @@ public abstract class MainActivity extends AppCompatActivity
         Trace.endSection();
     }
 
+    private void endCameraAllocations() {
+        cameraAllocations.end();
+        if (AllocationCounter.ENABLED && ++numAcceptedFrames % ALLOCATION_LOG_INTERVAL == 0) {
+            LOGGER.d(
+                    "Camera thread allocations: %.2f per frame",
+                    cameraAllocations.getAveragePerSection());
+        }
+    }
+
     @Override
     public synchronized void onStart() {
         LOGGER.d("onStart " + this);
@@ -315,24 +399,19 @@ public abstract class MainActivity extends AppCompatActivity
         LOGGER.d("onResume " + this);
         super.onResume();
 
-        handlerThread = new HandlerThread("inference");
-        handlerThread.start();
-        handler = new Handler(handlerThread.getLooper());
+        // The inference thread outlives pauses, so that resuming does not wait for it.
+        if (handlerThread == null) {
+            handlerThread = new HandlerThread("inference");
+            handlerThread.start();
+            handler = new Handler(handlerThread.getLooper());
+        }
+        AllocationCounter.startCounting();
     }
 
     @Override
     public synchronized void onPause() {
         LOGGER.d("onPause " + this);
-
-        handlerThread.quitSafely();
-        try {
-            handlerThread.join();
-            handlerThread = null;
-            handler = null;
-        } catch (final InterruptedException e) {
-            LOGGER.e(e, "Exception!");
-        }
-
+        AllocationCounter.stopCounting();
         super.onPause();
     }
 
@@ -345,10 +424,24 @@ public abstract class MainActivity extends AppCompatActivity
     @Override
     public synchronized void onDestroy() {
         LOGGER.d("onDestroy " + this);
+        if (handlerThread != null) {
+            handlerThread.quitSafely();
+            try {
+                handlerThread.join();
+                handlerThread = null;
+                handler = null;
+            } catch (final InterruptedException e) {
+                LOGGER.e(e, "Exception!");
+            }
+        }
+        if (yuvConverter != null) {
+            yuvConverter.close();
+        }
         super.onDestroy();
     }
 
-    protected synchronized void runInBackground(final Runnable r) {
+    protected void runInBackground(final Runnable r) {
+        final Handler handler = this.handler;
         if (handler != null) {
             handler.post(r);
         }
@@ -453,22 +546,30 @@ public abstract class MainActivity extends AppCompatActivity
             CameraConnectionFragment camera2Fragment =
                     CameraConnectionFragment.newInstance(
                             new CameraConnectionFragment.ConnectionCallback() {
+                                @Override
+                                public void onIntrinsicsChosen(final CameraIntrinsics intrinsics) {
+                                    cameraIntrinsics = intrinsics;
+                                }
+
                                 @Override
                                 public void onPreviewSizeChosen(final Size size, final int rotation) {
                                     previewHeight = size.getHeight();
                                     previewWidth = size.getWidth();
+                                    frameRotation = rotation - getScreenOrientation();
                                     MainActivity.this.onPreviewSizeChosen(size, rotation);
                                 }
                             },
                             this,
                             getLayoutId(),
-                            getDesiredPreviewFrameSize());
+                            getDesiredPreviewFrameSize(),
+                            getDesiredAnalysisFrameSize());
 
             camera2Fragment.setCamera(cameraId);
             fragment = camera2Fragment;
         } else {
             fragment =
-                    new LegacyCameraConnectionFragment(this, getLayoutId(), getDesiredPreviewFrameSize());
+                    new LegacyCameraConnectionFragment(
+                            this, getLayoutId(), getDesiredPreviewFrameSize(), NUM_LEGACY_CALLBACK_BUFFERS);
         }
 
         getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
@@ -487,12 +588,54 @@ public abstract class MainActivity extends AppCompatActivity
         }
     }
 
-    protected void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
+    /**
+     * Takes a pooled frame and makes it current if the previous frame has released its camera
+     * buffer.
+     *
+     * @return the frame, or null if the new camera frame has to be dropped.
+     */
+    private Frame tryAcceptFrame() {
+        synchronized (frameLock) {
+            if ((currentFrame != null && currentFrame.holdsBuffer()) || framePool.isEmpty()) {
+                return null;
+            }
+            currentFrame = framePool.poll();
+            return currentFrame;
+        }
+    }
+
+    /**
+     * Hands the camera buffer of {@code frame} back once its data has been converted, before the
+     * frame is finished. The plane data of the frame is invalid afterwards, and the next frame may
+     * be passed to {@link #processImage()} while this one is still being processed.
+     */
+    protected void releaseFrameBuffer(final Frame frame) {
+        synchronized (frameLock) {
+            frame.releaseBuffer();
+        }
+    }
+
+    /** Hands the camera buffer of the current frame back. See {@link #releaseFrameBuffer(Frame)}. */
+    protected void releaseFrameBuffer() {
+        releaseFrameBuffer(currentFrame);
+    }
+
+    /**
+     * Finishes {@code frame}, releasing its camera buffer if still held, and returns it to the
+     * pool.
+     */
+    protected void readyForNextImage(final Frame frame) {
+        synchronized (frameLock) {
+            frame.releaseBuffer();
+            framePool.add(frame);
         }
     }
 
+    /** Finishes the current frame. See {@link #readyForNextImage(Frame)}. */
+    protected void readyForNextImage() {
+        readyForNextImage(currentFrame);
+    }
+
     protected int getScreenOrientation() {
         switch (getWindowManager().getDefaultDisplay().getRotation()) {
             case Surface.ROTATION_270:
@@ -508,6 +651,12 @@ public abstract class MainActivity extends AppCompatActivity
 
     @UiThread
     protected void displayBitmap(Bitmap results) {
+        if (results == displayedBitmap) {
+            // The reused Bitmap holds new pixels; redrawing it avoids a new drawable per frame.
+            depthMapView.invalidate();
+            return;
+        }
+        displayedBitmap = results;
         depthMapView.setImageBitmap(results);
     }
 
@@ -563,6 +712,40 @@ public abstract class MainActivity extends AppCompatActivity
         return numThreads;
     }
 
+    /**
+     * Selects a configuration in the bottom sheet and applies it at once, e.g. one found by
+     * auto-tuning.
+     */
+    @UiThread
+    protected void setInferenceConfiguration(
+            final Model model, final Device device, final int numThreads) {
+        if (this.model == model && this.device == device && this.numThreads == numThreads) {
+            return;
+        }
+        LOGGER.d("Updating  configuration: %s, %s, %d threads", model, device, numThreads);
+        // The fields are set first, so that the spinner callbacks see no change.
+        this.model = model;
+        this.device = device;
+        this.numThreads = numThreads;
+        selectItem(modelSpinner, model.name());
+        selectItem(deviceSpinner, device.name());
+        final boolean threadsEnabled = device == Device.CPU;
+        plusImageView.setEnabled(threadsEnabled);
+        minusImageView.setEnabled(threadsEnabled);
+        threadsTextView.setText(threadsEnabled ? String.valueOf(numThreads) : "N/A");
+        onInferenceConfigurationChanged();
+    }
+
+    /** Selects the spinner item whose upper-cased text is {@code name}. */
+    private static void selectItem(final Spinner spinner, final String name) {
+        for (int i = 0; i < spinner.getCount(); ++i) {
+            if (spinner.getItemAtPosition(i).toString().toUpperCase().equals(name)) {
+                spinner.setSelection(i);
+                return;
+            }
+        }
+    }
+
     private void setNumThreads(int numThreads) {
         if (this.numThreads != numThreads) {
             LOGGER.d("Updating  numThreads: " + numThreads);
@@ -579,6 +762,12 @@ public abstract class MainActivity extends AppCompatActivity
 
     protected abstract Size getDesiredPreviewFrameSize();
 
+    /**
+     * Returns the smallest frame size the analysis can consume without upscaling. Camera2 delivers
+     * frames of the smallest supported size covering it, independently of the preview size.
+     */
+    protected abstract Size getDesiredAnalysisFrameSize();
+
     protected abstract void onInferenceConfigurationChanged();
 
     @Override
@@ -0,0 +1,68 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import android.os.Debug;
+import com.example.depthhive.BuildConfig;
+
+/**
+ * Counts the heap allocations a thread makes in a repeatedly executed section, such as the
+ * handling of one frame, to verify that the steady-state frame loop does not allocate.
+ *
+ * <p>Counting is only active in debug builds, and only between {@link #startCounting} and {@link
+ * #stopCounting}. In release builds every method is a no-op.
+ */
+@SuppressWarnings("deprecation")
+public final class AllocationCounter {
+    /** Whether allocations are counted at all. */
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    private int sectionStartCount;
+    private volatile long totalCount = 0;
+    private volatile long numSections = 0;
+
+    /** Enables allocation counting in the runtime. */
+    public static void startCounting() {
+        if (ENABLED) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    /** Disables allocation counting in the runtime. */
+    public static void stopCounting() {
+        if (ENABLED) {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /** Marks the start of a section on the calling thread. */
+    public void begin() {
+        if (ENABLED) {
+            sectionStartCount = Debug.getThreadAllocCount();
+        }
+    }
+
+    /** Marks the end of the section started on the calling thread with {@link #begin}. */
+    public void end() {
+        if (ENABLED) {
+            totalCount += Debug.getThreadAllocCount() - sectionStartCount;
+            numSections++;
+        }
+    }
+
+    /** Returns the mean number of objects allocated per section. */
+    public float getAveragePerSection() {
+        final long sections = numSections;
+        return sections > 0 ? (float) totalCount / sections : 0;
+    }
+}
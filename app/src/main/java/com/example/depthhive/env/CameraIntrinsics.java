@@ -0,0 +1,147 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.Locale;
+
+/**
+ * Pinhole intrinsics of a camera stream: focal lengths and principal point in pixels of an image
+ * of a given size.
+ *
+ * <p>Camera2 reports intrinsics for the sensor's active array. Output streams are scaled from the
+ * active array, and center-cropped where their aspect ratio differs, so {@link #scaleTo} maps the
+ * intrinsics onto a stream the same way.
+ */
+public final class CameraIntrinsics {
+    private final float focalLengthX;
+    private final float focalLengthY;
+    private final float principalPointX;
+    private final float principalPointY;
+    private final int width;
+    private final int height;
+
+    public CameraIntrinsics(
+            final float focalLengthX,
+            final float focalLengthY,
+            final float principalPointX,
+            final float principalPointY,
+            final int width,
+            final int height) {
+        this.focalLengthX = focalLengthX;
+        this.focalLengthY = focalLengthY;
+        this.principalPointX = principalPointX;
+        this.principalPointY = principalPointY;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Derives intrinsics from the focal length of the lens and the physical size of the sensor,
+     * for devices without {@code LENS_INTRINSIC_CALIBRATION}. The principal point is assumed to be
+     * the center of the active array.
+     *
+     * @param pixelArrayWidth The width of the full pixel array the physical size refers to.
+     */
+    public static CameraIntrinsics fromPhysicalSize(
+            final float focalLengthMm,
+            final float sensorWidthMm,
+            final float sensorHeightMm,
+            final int pixelArrayWidth,
+            final int pixelArrayHeight,
+            final int activeArrayWidth,
+            final int activeArrayHeight) {
+        return new CameraIntrinsics(
+                focalLengthMm * pixelArrayWidth / sensorWidthMm,
+                focalLengthMm * pixelArrayHeight / sensorHeightMm,
+                activeArrayWidth * 0.5f,
+                activeArrayHeight * 0.5f,
+                activeArrayWidth,
+                activeArrayHeight);
+    }
+
+    /**
+     * Derives intrinsics from the field of view across the center square crop of an image, which
+     * the depth maps cover, for cameras that report neither a calibration nor a physical size.
+     * Pixels are assumed square and the principal point centered.
+     */
+    public static CameraIntrinsics fromFieldOfView(
+            final float cropFovDegrees, final int width, final int height) {
+        final double halfFov = Math.toRadians(cropFovDegrees) * 0.5;
+        final float focalLength = (float) (Math.min(width, height) * 0.5 / Math.tan(halfFov));
+        return new CameraIntrinsics(
+                focalLength, focalLength, width * 0.5f, height * 0.5f, width, height);
+    }
+
+    /**
+     * Returns the intrinsics of a stream of {@code streamWidth x streamHeight} pixels, scaled from
+     * this image and center-cropped to the aspect ratio of the stream.
+     */
+    public CameraIntrinsics scaleTo(final int streamWidth, final int streamHeight) {
+        if (streamWidth == width && streamHeight == height) {
+            return this;
+        }
+        final float scale = Math.max((float) streamWidth / width, (float) streamHeight / height);
+        final float cropLeft = (width * scale - streamWidth) * 0.5f;
+        final float cropTop = (height * scale - streamHeight) * 0.5f;
+        return new CameraIntrinsics(
+                focalLengthX * scale,
+                focalLengthY * scale,
+                principalPointX * scale - cropLeft,
+                principalPointY * scale - cropTop,
+                streamWidth,
+                streamHeight);
+    }
+
+    /** Returns the focal length along x in pixels. */
+    public float getFocalLengthX() {
+        return focalLengthX;
+    }
+
+    /** Returns the focal length along y in pixels. */
+    public float getFocalLengthY() {
+        return focalLengthY;
+    }
+
+    /** Returns the x coordinate of the principal point in pixels. */
+    public float getPrincipalPointX() {
+        return principalPointX;
+    }
+
+    /** Returns the y coordinate of the principal point in pixels. */
+    public float getPrincipalPointY() {
+        return principalPointY;
+    }
+
+    /** Returns the width of the image the intrinsics refer to. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Returns the height of the image the intrinsics refer to. */
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "f=(%.1f, %.1f) c=(%.1f, %.1f) @%dx%d",
+                focalLengthX,
+                focalLengthY,
+                principalPointX,
+                principalPointY,
+                width,
+                height);
+    }
+}
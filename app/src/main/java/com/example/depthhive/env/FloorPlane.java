@@ -0,0 +1,172 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The floor plane of a point cloud as estimated by {@link FloorPlaneEstimator}, with the walkable
+ * pixels and where the floor ends in every column.
+ *
+ * <p>The plane is {@code n . p + d = 0} in the coordinates of {@link PointCloud}, with the unit
+ * normal {@code n} pointing up, away from the floor, so {@code d} is the height of the camera
+ * above the floor. Results are meant to be reused: the mask and the column arrays are only
+ * reallocated when the size of the depth map changes.
+ */
+public final class FloorPlane {
+    private boolean isValid;
+    private float normalX;
+    private float normalY;
+    private float normalZ;
+    private float offset;
+    private int width;
+    private int height;
+    private long timestampNs;
+    private int numInliers;
+    private BitSet inlierMask = new BitSet();
+    private int[] floorEndRow = new int[0];
+    private boolean[] isDropOff = new boolean[0];
+
+    /** Sizes the result for a depth map, reallocating only if the size changed. */
+    void setSize(final int width, final int height, final long timestampNs) {
+        if (width * height != this.width * this.height) {
+            inlierMask = new BitSet(width * height);
+        }
+        if (floorEndRow.length != width) {
+            floorEndRow = new int[width];
+            isDropOff = new boolean[width];
+        }
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+    }
+
+    void setPlane(
+            final float normalX, final float normalY, final float normalZ, final float offset) {
+        this.normalX = normalX;
+        this.normalY = normalY;
+        this.normalZ = normalZ;
+        this.offset = offset;
+    }
+
+    void setValid(final boolean isValid) {
+        this.isValid = isValid;
+    }
+
+    void setInlierCount(final int numInliers) {
+        this.numInliers = numInliers;
+    }
+
+    void setFloorEnd(final int column, final int row, final boolean isDropOff) {
+        floorEndRow[column] = row;
+        this.isDropOff[column] = isDropOff;
+    }
+
+    /** Returns the mask of floor pixels, to be updated in place by the estimator. */
+    BitSet getMutableInlierMask() {
+        return inlierMask;
+    }
+
+    /** Returns whether a floor was found; all other values are meaningless otherwise. */
+    public boolean isValid() {
+        return isValid;
+    }
+
+    public float getNormalX() {
+        return normalX;
+    }
+
+    public float getNormalY() {
+        return normalY;
+    }
+
+    public float getNormalZ() {
+        return normalZ;
+    }
+
+    /** Returns the height of the camera above the floor in meters. */
+    public float getOffset() {
+        return offset;
+    }
+
+    /** Returns the signed distance of a point above the floor in meters. */
+    public float getHeightAbove(final float x, final float y, final float z) {
+        return normalX * x + normalY * y + normalZ * z + offset;
+    }
+
+    /** Returns whether the pixel of the depth map lies on the floor. */
+    public boolean isFloor(final int x, final int y) {
+        return inlierMask.get(y * width + x);
+    }
+
+    /** Returns the floor pixels, row by row with a stride of the width. Must not be modified. */
+    public BitSet getInlierMask() {
+        return inlierMask;
+    }
+
+    /** Returns the number of floor pixels. */
+    public int getInlierCount() {
+        return numInliers;
+    }
+
+    /**
+     * Returns the topmost floor row of a column that is reached from its lowest floor pixel across
+     * gaps of a few rows, or the height of the depth map if the column shows no floor.
+     */
+    public int getFloorEndRow(final int column) {
+        return floorEndRow[column];
+    }
+
+    /**
+     * Returns whether the floor of a column ends in a drop-off, such as stairs down or a ledge,
+     * rather than at an obstacle or the edge of the view.
+     */
+    public boolean isDropOff(final int column) {
+        return isDropOff[column];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the capture time of the camera frame in nanoseconds. */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Copies another result into this one. */
+    public void copyFrom(final FloorPlane other) {
+        setSize(other.width, other.height, other.timestampNs);
+        setPlane(other.normalX, other.normalY, other.normalZ, other.offset);
+        isValid = other.isValid;
+        numInliers = other.numInliers;
+        inlierMask.clear();
+        inlierMask.or(other.inlierMask);
+        System.arraycopy(other.floorEndRow, 0, floorEndRow, 0, width);
+        System.arraycopy(other.isDropOff, 0, isDropOff, 0, width);
+    }
+
+    /** Marks the result as without floor, with every column ending at the bottom. */
+    void clear() {
+        isValid = false;
+        numInliers = 0;
+        inlierMask.clear();
+        Arrays.fill(floorEndRow, height);
+        Arrays.fill(isDropOff, false);
+    }
+}
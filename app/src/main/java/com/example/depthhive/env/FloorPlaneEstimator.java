@@ -0,0 +1,431 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.nio.FloatBuffer;
+import java.util.BitSet;
+
+/**
+ * Estimates the floor plane of point clouds with RANSAC, for walkable area and drop-off feedback.
+ *
+ * <p>Plane hypotheses are drawn from triples of points on a sparse grid and scored on that grid.
+ * The previous frame's plane is scored first, so a stable floor is kept even if few hypotheses fit
+ * in the budget, and hypotheses tilted too far from gravity or at an implausible height below the
+ * camera are rejected before scoring. Drawing stops after a fixed number of iterations or once the
+ * time budget is spent. The best plane is refined by a least-squares fit to its inliers, and all
+ * pixels are then classified into the inlier mask of the result. All buffers are reused while the
+ * size of the point clouds does not change.
+ */
+public class FloorPlaneEstimator {
+    /** Largest angle between the floor normal and the up direction. */
+    private static final float MAX_TILT_DEGREES = 20;
+
+    /** Range of heights of the camera above the floor. */
+    private static final float MIN_HEIGHT_METERS = 0.2f;
+    private static final float MAX_HEIGHT_METERS = 2.5f;
+
+    /** Fraction of the sampled points a plane has to fit to count as floor. */
+    private static final float MIN_INLIER_FRACTION = 0.05f;
+
+    /** Number of power iterations of the least-squares refinement. */
+    private static final int NUM_REFINE_ITERATIONS = 8;
+
+    /** Longest run of non-floor rows bridged when following the floor up a column. */
+    private static final int MAX_FLOOR_GAP_ROWS = 2;
+
+    private static final float MIN_CROSS_PRODUCT = 1e-6f;
+
+    private final float minUpCosine = (float) Math.cos(Math.toRadians(MAX_TILT_DEGREES));
+
+    private int maxIterations = 64;
+    private long budgetNanos = 4000000;
+    private float inlierMeters = 0.03f;
+    private float inlierFraction = 0.02f;
+    private float dropOffMeters = 0.15f;
+    private int sampleStep = 4;
+
+    /** Direction of gravity in point cloud coordinates, guarded by {@code this}. */
+    private float gravityX = 0f;
+    private float gravityY = 1f;
+    private float gravityZ = 0f;
+
+    /** The points of the current cloud, copied out of its buffer. */
+    private float[] points = new float[0];
+
+    /** Indices of the grid points with valid depth, {@link #numSamples} of them. */
+    private int[] samples = new int[0];
+    private int numSamples;
+    private int width;
+    private int height;
+
+    /** The plane of the previous frame, if there was one. */
+    private boolean hasPrevious = false;
+    private float previousNormalX;
+    private float previousNormalY;
+    private float previousNormalZ;
+    private float previousOffset;
+
+    /** The best plane so far and its number of sample inliers. */
+    private float bestNormalX;
+    private float bestNormalY;
+    private float bestNormalZ;
+    private float bestOffset;
+    private int bestScore;
+
+    /** State of the xorshift generator drawing the hypotheses, fixed for repeatable results. */
+    private int randomState = 0x2545f491;
+
+    private int lastIterations = 0;
+    private long lastEstimateNanos = 0;
+
+    /**
+     * Sets how long hypotheses are drawn for each frame.
+     *
+     * @param maxIterations The number of hypotheses drawn at most.
+     * @param budgetNanos The time after which no further hypothesis is drawn.
+     */
+    public void setBudget(final int maxIterations, final long budgetNanos) {
+        this.maxIterations = maxIterations;
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * Sets what counts as floor.
+     *
+     * @param inlierMeters Distance from the plane within which points lie on the floor.
+     * @param inlierFraction Fraction of the depth of a point added to that distance, since depth
+     *     errors grow with depth.
+     * @param dropOffMeters Depth below the floor beyond which the floor ends in a drop-off.
+     */
+    public void setThresholds(
+            final float inlierMeters, final float inlierFraction, final float dropOffMeters) {
+        this.inlierMeters = inlierMeters;
+        this.inlierFraction = inlierFraction;
+        this.dropOffMeters = dropOffMeters;
+    }
+
+    /** Sets the spacing of the grid hypotheses are drawn from and scored on. */
+    public void setSampleStep(final int sampleStep) {
+        this.sampleStep = Math.max(1, sampleStep);
+        // Resizes the sample indices on the next estimate.
+        width = 0;
+    }
+
+    /**
+     * Sets the direction of gravity in point cloud coordinates, e.g. from the accelerometer. May
+     * be called from any thread; the magnitude is ignored.
+     */
+    public synchronized void setGravity(final float x, final float y, final float z) {
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length > 0f) {
+            gravityX = x / length;
+            gravityY = y / length;
+            gravityZ = z / length;
+        }
+    }
+
+    /** Forgets the previous plane, e.g. after the estimator or the intrinsics changed. */
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    /** Returns the number of hypotheses drawn for the last frame. */
+    public int getLastIterations() {
+        return lastIterations;
+    }
+
+    /** Returns the duration of the last estimate in nanoseconds. */
+    public long getLastEstimateNanos() {
+        return lastEstimateNanos;
+    }
+
+    /**
+     * Estimates the floor plane of {@code cloud} into {@code result}.
+     *
+     * @return whether a floor was found.
+     */
+    public boolean estimate(final PointCloud cloud, final FloorPlane result) {
+        final long startTime = System.nanoTime();
+        prepare(cloud);
+        result.setSize(width, height, cloud.getTimestampNs());
+        if (numSamples < 3) {
+            return finish(result, false, startTime, 0);
+        }
+
+        final float upX;
+        final float upY;
+        final float upZ;
+        synchronized (this) {
+            upX = -gravityX;
+            upY = -gravityY;
+            upZ = -gravityZ;
+        }
+
+        bestScore = 0;
+        if (hasPrevious) {
+            consider(previousNormalX, previousNormalY, previousNormalZ, previousOffset);
+        }
+        int iterations = 0;
+        while (iterations < maxIterations && System.nanoTime() - startTime < budgetNanos) {
+            iterations++;
+            final int a = 3 * samples[nextRandom(numSamples)];
+            final int b = 3 * samples[nextRandom(numSamples)];
+            final int c = 3 * samples[nextRandom(numSamples)];
+            final float abX = points[b] - points[a];
+            final float abY = points[b + 1] - points[a + 1];
+            final float abZ = points[b + 2] - points[a + 2];
+            final float acX = points[c] - points[a];
+            final float acY = points[c + 1] - points[a + 1];
+            final float acZ = points[c + 2] - points[a + 2];
+            float nx = abY * acZ - abZ * acY;
+            float ny = abZ * acX - abX * acZ;
+            float nz = abX * acY - abY * acX;
+            final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length < MIN_CROSS_PRODUCT) {
+                // Repeated or collinear points.
+                continue;
+            }
+            // Points the normal up, away from the floor.
+            final float sign = nx * upX + ny * upY + nz * upZ < 0f ? -1f : 1f;
+            nx *= sign / length;
+            ny *= sign / length;
+            nz *= sign / length;
+            final float offset = -(nx * points[a] + ny * points[a + 1] + nz * points[a + 2]);
+            if (isPlausible(nx, ny, nz, offset, upX, upY, upZ)) {
+                consider(nx, ny, nz, offset);
+            }
+        }
+
+        if (bestScore < MIN_INLIER_FRACTION * numSamples) {
+            return finish(result, false, startTime, iterations);
+        }
+        refine(upX, upY, upZ);
+        result.setPlane(bestNormalX, bestNormalY, bestNormalZ, bestOffset);
+        classify(result);
+        return finish(result, true, startTime, iterations);
+    }
+
+    /** Copies the points out of the cloud and collects the valid grid samples. */
+    private void prepare(final PointCloud cloud) {
+        final int numPoints = cloud.getPointCount();
+        if (cloud.getWidth() != width || cloud.getHeight() != height) {
+            width = cloud.getWidth();
+            height = cloud.getHeight();
+            points = new float[numPoints * 3];
+            samples =
+                    new int[((width + sampleStep - 1) / sampleStep)
+                            * ((height + sampleStep - 1) / sampleStep)];
+        }
+        final FloatBuffer buffer = cloud.getPoints();
+        buffer.position(0);
+        buffer.get(points, 0, numPoints * 3);
+        buffer.position(0);
+
+        numSamples = 0;
+        for (int y = sampleStep / 2; y < height; y += sampleStep) {
+            for (int x = sampleStep / 2; x < width; x += sampleStep) {
+                final int i = y * width + x;
+                if (!Float.isNaN(points[3 * i + 2])) {
+                    samples[numSamples++] = i;
+                }
+            }
+        }
+    }
+
+    private boolean isPlausible(
+            final float nx,
+            final float ny,
+            final float nz,
+            final float offset,
+            final float upX,
+            final float upY,
+            final float upZ) {
+        return nx * upX + ny * upY + nz * upZ >= minUpCosine
+                && offset >= MIN_HEIGHT_METERS
+                && offset <= MAX_HEIGHT_METERS;
+    }
+
+    /** Scores a plane on the samples, and keeps it if it beats the best one. */
+    private void consider(final float nx, final float ny, final float nz, final float offset) {
+        int score = 0;
+        for (int s = 0; s < numSamples; s++) {
+            final int p = 3 * samples[s];
+            final float z = points[p + 2];
+            final float distance = nx * points[p] + ny * points[p + 1] + nz * z + offset;
+            if (Math.abs(distance) < inlierMeters + inlierFraction * z) {
+                score++;
+            }
+        }
+        if (score > bestScore) {
+            bestScore = score;
+            bestNormalX = nx;
+            bestNormalY = ny;
+            bestNormalZ = nz;
+            bestOffset = offset;
+        }
+    }
+
+    /**
+     * Fits the best plane to its sample inliers by least squares. The normal is the eigenvector of
+     * the smallest eigenvalue of the inlier covariance, found by power iteration on the shifted
+     * covariance starting from the RANSAC normal. The fit is dropped if it is implausible.
+     */
+    private void refine(final float upX, final float upY, final float upZ) {
+        double sumX = 0;
+        double sumY = 0;
+        double sumZ = 0;
+        double xx = 0;
+        double xy = 0;
+        double xz = 0;
+        double yy = 0;
+        double yz = 0;
+        double zz = 0;
+        int count = 0;
+        for (int s = 0; s < numSamples; s++) {
+            final int p = 3 * samples[s];
+            final float x = points[p];
+            final float y = points[p + 1];
+            final float z = points[p + 2];
+            final float distance = bestNormalX * x + bestNormalY * y + bestNormalZ * z + bestOffset;
+            if (Math.abs(distance) >= inlierMeters + inlierFraction * z) {
+                continue;
+            }
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            xx += x * x;
+            xy += x * y;
+            xz += x * z;
+            yy += y * y;
+            yz += y * z;
+            zz += z * z;
+            count++;
+        }
+        final double meanX = sumX / count;
+        final double meanY = sumY / count;
+        final double meanZ = sumZ / count;
+        final double cxx = xx / count - meanX * meanX;
+        final double cxy = xy / count - meanX * meanY;
+        final double cxz = xz / count - meanX * meanZ;
+        final double cyy = yy / count - meanY * meanY;
+        final double cyz = yz / count - meanY * meanZ;
+        final double czz = zz / count - meanZ * meanZ;
+        // The smallest eigenvalue of C is the largest of trace(C) - C.
+        final double trace = cxx + cyy + czz;
+
+        double nx = bestNormalX;
+        double ny = bestNormalY;
+        double nz = bestNormalZ;
+        for (int i = 0; i < NUM_REFINE_ITERATIONS; i++) {
+            final double x = (trace - cxx) * nx - cxy * ny - cxz * nz;
+            final double y = -cxy * nx + (trace - cyy) * ny - cyz * nz;
+            final double z = -cxz * nx - cyz * ny + (trace - czz) * nz;
+            final double length = Math.sqrt(x * x + y * y + z * z);
+            if (length == 0) {
+                return;
+            }
+            nx = x / length;
+            ny = y / length;
+            nz = z / length;
+        }
+        if (nx * upX + ny * upY + nz * upZ < 0) {
+            nx = -nx;
+            ny = -ny;
+            nz = -nz;
+        }
+        final float offset = (float) -(nx * meanX + ny * meanY + nz * meanZ);
+        if (isPlausible((float) nx, (float) ny, (float) nz, offset, upX, upY, upZ)) {
+            bestNormalX = (float) nx;
+            bestNormalY = (float) ny;
+            bestNormalZ = (float) nz;
+            bestOffset = offset;
+        }
+    }
+
+    /** Classifies every pixel against the best plane, and finds where the floor of columns ends. */
+    private void classify(final FloorPlane result) {
+        final BitSet mask = result.getMutableInlierMask();
+        mask.clear();
+        int numInliers = 0;
+        for (int i = 0, p = 0; i < width * height; i++, p += 3) {
+            final float z = points[p + 2];
+            // NaN points fail the comparison.
+            if (Math.abs(getDistance(p)) < inlierMeters + inlierFraction * z) {
+                mask.set(i);
+                numInliers++;
+            }
+        }
+        result.setInlierCount(numInliers);
+
+        for (int x = 0; x < width; x++) {
+            int endRow = height;
+            int gap = 0;
+            for (int y = height - 1; y >= 0; y--) {
+                if (mask.get(y * width + x)) {
+                    endRow = y;
+                    gap = 0;
+                } else if (endRow < height && ++gap > MAX_FLOOR_GAP_ROWS) {
+                    break;
+                }
+            }
+            // The floor drops off if the nearest valid point beyond it lies well below it.
+            boolean isDropOff = false;
+            for (int y = endRow - 1; y >= 0 && y >= endRow - 1 - MAX_FLOOR_GAP_ROWS; y--) {
+                final int p = 3 * (y * width + x);
+                if (!Float.isNaN(points[p + 2])) {
+                    isDropOff = getDistance(p) < -dropOffMeters;
+                    break;
+                }
+            }
+            result.setFloorEnd(x, endRow, endRow < height && isDropOff);
+        }
+    }
+
+    private float getDistance(final int p) {
+        return bestNormalX * points[p]
+                + bestNormalY * points[p + 1]
+                + bestNormalZ * points[p + 2]
+                + bestOffset;
+    }
+
+    private boolean finish(
+            final FloorPlane result,
+            final boolean isFound,
+            final long startTime,
+            final int iterations) {
+        if (isFound) {
+            hasPrevious = true;
+            previousNormalX = bestNormalX;
+            previousNormalY = bestNormalY;
+            previousNormalZ = bestNormalZ;
+            previousOffset = bestOffset;
+        } else {
+            hasPrevious = false;
+            result.clear();
+        }
+        result.setValid(isFound);
+        lastIterations = iterations;
+        lastEstimateNanos = System.nanoTime() - startTime;
+        return isFound;
+    }
+
+    /** Returns a pseudo-random number in {@code [0, bound)}. */
+    private int nextRandom(final int bound) {
+        int x = randomState;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        randomState = x;
+        return (x >>> 1) % bound;
+    }
+}
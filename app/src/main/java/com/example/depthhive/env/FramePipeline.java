@@ -0,0 +1,611 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs frames through convert, infer and post-process stages, each on its own thread, so that
+ * frame N+1 is converted while frame N is inferred and throughput is bounded by the slowest stage
+ * rather than by the sum of all stages.
+ *
+ * <p>A fixed set of job objects circulates between the stages: the frame source takes a free job
+ * with {@link #obtain}, fills it and {@link #submit}s it, and after the last stage the job becomes
+ * free again. Convert and post-process are fed by bounded single-producer/single-consumer queues
+ * that can hold all jobs, so they never block a producer. The infer stage is fed by a
+ * latest-frame-wins slot instead: a converted frame displaces one the infer stage has not taken
+ * yet, which is recycled right away, so inference always starts on the freshest frame. Nothing is
+ * allocated per frame.
+ *
+ * <p>The infer stage may run on several worker threads, e.g. one per interpreter of a pool, so
+ * that frames are inferred concurrently. Workers take converted frames in turn and number them as
+ * they do; the post-process stage reorders their results by that number, so results are still
+ * delivered in frame order. Workers beyond {@link #setActiveInferWorkerCount} stay parked, so
+ * that the number of workers can follow the interpreters of the current model.
+ *
+ * <p>A pipeline can be paused while its frame source is gone, e.g. while the camera is closed:
+ * {@link #pause} waits until the jobs in flight have left, after which the stage threads stay
+ * parked until {@link #resume}, keeping the jobs and their buffers.
+ *
+ * @param <T> The per-frame job type.
+ */
+public final class FramePipeline<T> {
+    private static final Logger LOGGER = new Logger();
+
+    /** Index of the stage converting camera frames into model input. */
+    public static final int STAGE_CONVERT = 0;
+
+    /** Index of the stage running the model. */
+    public static final int STAGE_INFER = 1;
+
+    /** Index of the stage post-processing and rendering the results. */
+    public static final int STAGE_POST = 2;
+
+    private static final String[] STAGE_NAMES = {"convert", "infer", "post"};
+
+    /** Work done by one stage on a job, or when a job leaves the pipeline. */
+    public interface Stage<T> {
+        /**
+         * Processes a job on the stage's thread.
+         *
+         * @return false to drop the job, which then skips the remaining stages.
+         */
+        boolean process(T job);
+    }
+
+    /** A job together with its pipeline state. */
+    private static final class Slot<T> {
+        final T job;
+        boolean dropped;
+        /** Order in which the job was taken by the infer stage. */
+        long sequence;
+
+        Slot(final T job) {
+            this.job = job;
+        }
+    }
+
+    private final Stage<T> recycle;
+    private final long startTimeNanos = System.nanoTime();
+
+    /** Jobs waiting for the convert stage, produced by the frame source. */
+    private final SpscQueue<Slot<T>> convertQueue;
+
+    /** The freshest converted job waiting for the infer stage. */
+    private final LatestFrameSlot<Slot<T>> inferSlot = new LatestFrameSlot<Slot<T>>();
+
+    /** Guards the infer workers taking jobs and numbering them. */
+    private final Object inferTakeLock = new Object();
+
+    /** Sequence number of the next job taken by an infer worker, guarded by inferTakeLock. */
+    private long nextInferSequence = 0;
+
+    /** Jobs waiting for the post-process stage, one queue per infer worker. */
+    private final List<SpscQueue<Slot<T>>> postQueues;
+
+    /** Jobs moved out of {@link #postQueues} ahead of their turn, indexed by sequence number. */
+    private final Object[] postReorder;
+    private final int postReorderMask;
+
+    /** Sequence number of the next job for the post-process stage, used only by its thread. */
+    private long nextPostSequence = 0;
+
+    /** Number of jobs in {@link #postReorder}, used only by the post-process thread. */
+    private int numReordered = 0;
+
+    /** Jobs retired by the convert stage, dropped or displaced, consumed by the frame source. */
+    private final SpscQueue<Slot<T>> convertRetired;
+
+    /** Jobs retired by the post-process stage, consumed by the frame source. */
+    private final SpscQueue<Slot<T>> postRetired;
+
+    /** The threads of each stage; the infer stage may have several. */
+    private final StageThread[][] stages;
+
+    /** The slot handed out by the last {@link #obtain}, used only by the frame source. */
+    private Slot<T> obtainedSlot;
+
+    /** Set once {@link #shutdown} is called, guarded by {@code this}. */
+    private boolean stopping = false;
+
+    /** Set between {@link #pause} and {@link #resume}, guarded by {@code this}. */
+    private boolean paused = false;
+
+    /** Number of submitted jobs that have not left the pipeline yet, guarded by {@code this}. */
+    private int numInFlight = 0;
+
+    /** Start of the current pause, guarded by {@code this}. */
+    private long pauseStartNanos;
+
+    /** Time paused before the current pause, excluded from the rates, guarded by {@code this}. */
+    private long pausedNanos = 0;
+
+    /** Number of converted jobs displaced before the infer stage took them. */
+    private volatile long numDisplaced = 0;
+
+    /** Number of infer workers taking jobs; the others stay parked. */
+    private volatile int numActiveInferWorkers;
+
+    /**
+     * Creates and starts a pipeline with a single infer thread.
+     *
+     * @see #FramePipeline(Object[], Stage, Stage, int, Stage, Stage)
+     */
+    public FramePipeline(
+            final T[] jobs,
+            final Stage<T> convert,
+            final Stage<T> infer,
+            final Stage<T> post,
+            final Stage<T> recycle) {
+        this(jobs, convert, infer, 1, post, recycle);
+    }
+
+    /**
+     * Creates and starts a pipeline.
+     *
+     * @param jobs The job objects to circulate. Their number bounds the frames in flight.
+     * @param infer Run concurrently by all infer workers, so it must be thread-safe.
+     * @param numInferWorkers The number of threads running the infer stage.
+     * @param recycle Called for every job leaving the pipeline, including dropped and displaced
+     *     ones, before it becomes free again. It runs on the convert thread for jobs retired there
+     *     and on the post-process thread otherwise. Its return value is ignored.
+     */
+    @SuppressWarnings("unchecked")
+    public FramePipeline(
+            final T[] jobs,
+            final Stage<T> convert,
+            final Stage<T> infer,
+            final int numInferWorkers,
+            final Stage<T> post,
+            final Stage<T> recycle) {
+        if (numInferWorkers < 1) {
+            throw new IllegalArgumentException("At least one infer worker is required.");
+        }
+        this.recycle = recycle;
+        numActiveInferWorkers = numInferWorkers;
+        convertQueue = new SpscQueue<Slot<T>>(jobs.length);
+        postQueues = new ArrayList<SpscQueue<Slot<T>>>(numInferWorkers);
+        for (int i = 0; i < numInferWorkers; i++) {
+            postQueues.add(new SpscQueue<Slot<T>>(jobs.length));
+        }
+        int reorderSize = 1;
+        while (reorderSize < jobs.length) {
+            reorderSize <<= 1;
+        }
+        postReorder = new Object[reorderSize];
+        postReorderMask = reorderSize - 1;
+        convertRetired = new SpscQueue<Slot<T>>(jobs.length);
+        postRetired = new SpscQueue<Slot<T>>(jobs.length);
+        for (final T job : jobs) {
+            postRetired.offer(new Slot<T>(job));
+        }
+
+        stages = (StageThread[][]) new FramePipeline<?>.StageThread[STAGE_NAMES.length][];
+        for (int i = 0; i < stages.length; i++) {
+            final int numThreads = i == STAGE_INFER ? numInferWorkers : 1;
+            final Stage<T> work = i == STAGE_CONVERT ? convert : i == STAGE_INFER ? infer : post;
+            stages[i] = (StageThread[]) new FramePipeline<?>.StageThread[numThreads];
+            for (int j = 0; j < numThreads; j++) {
+                stages[i][j] = new StageThread(i, j, work);
+            }
+        }
+        for (final StageThread[] threads : stages) {
+            for (final StageThread thread : threads) {
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Takes a free job. Must only be called by the frame source thread, and must be followed by
+     * {@link #submit} of the returned job.
+     *
+     * @return the job, or null if all jobs are in flight and the frame has to be dropped.
+     */
+    public T obtain() {
+        if (obtainedSlot == null) {
+            // The slot of a rejected submit is handed out again.
+            obtainedSlot = convertRetired.poll();
+        }
+        if (obtainedSlot == null) {
+            obtainedSlot = postRetired.poll();
+        }
+        return obtainedSlot != null ? obtainedSlot.job : null;
+    }
+
+    /**
+     * Starts the job returned by the last {@link #obtain} down the pipeline. Must only be called by
+     * the frame source thread.
+     *
+     * @return false if the pipeline is paused or shut down; the job is then not processed.
+     */
+    public synchronized boolean submit(final T job) {
+        if (stopping || paused || obtainedSlot == null || obtainedSlot.job != job) {
+            return false;
+        }
+        final Slot<T> slot = obtainedSlot;
+        obtainedSlot = null;
+        numInFlight++;
+        slot.dropped = false;
+        convertQueue.offer(slot);
+        unparkStage(STAGE_CONVERT);
+        return true;
+    }
+
+    /**
+     * Stops accepting frames and waits until the jobs already submitted have run through all
+     * stages. The stage threads then stay parked, without using the CPU, until {@link #resume}.
+     */
+    public synchronized void pause() {
+        if (paused) {
+            return;
+        }
+        paused = true;
+        pauseStartNanos = System.nanoTime();
+        boolean interrupted = false;
+        while (numInFlight > 0) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Accepts frames again after {@link #pause}. */
+    public synchronized void resume() {
+        if (!paused) {
+            return;
+        }
+        paused = false;
+        pausedNanos += System.nanoTime() - pauseStartNanos;
+    }
+
+    /** Returns true between {@link #pause} and {@link #resume}. */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /** Returns the number of threads running the infer stage. */
+    public int getInferWorkerCount() {
+        return stages[STAGE_INFER].length;
+    }
+
+    /**
+     * Sets how many of the infer workers take jobs, between 1 and {@link #getInferWorkerCount}.
+     * A deactivated worker finishes the job it holds before it parks.
+     */
+    public void setActiveInferWorkerCount(final int count) {
+        numActiveInferWorkers = Math.max(1, Math.min(stages[STAGE_INFER].length, count));
+        unparkStage(STAGE_INFER);
+    }
+
+    /** Returns the number of infer workers taking jobs. */
+    public int getActiveInferWorkerCount() {
+        return numActiveInferWorkers;
+    }
+
+    /**
+     * Returns the fraction of time the given stage has been busy, averaged over its threads.
+     */
+    public float getOccupancy(final int stage) {
+        final long elapsed = getActiveNanos();
+        long busyNanos = 0;
+        for (final StageThread thread : stages[stage]) {
+            busyNanos += thread.busyNanos;
+        }
+        return elapsed > 0 ? (float) busyNanos / elapsed / stages[stage].length : 0;
+    }
+
+    /** Returns the mean number of jobs found waiting in front of the given stage. */
+    public float getAverageQueueDepth(final int stage) {
+        long queueDepthSum = 0;
+        long numProcessed = 0;
+        for (final StageThread thread : stages[stage]) {
+            queueDepthSum += thread.queueDepthSum;
+            numProcessed += thread.numProcessed;
+        }
+        return numProcessed > 0 ? (float) queueDepthSum / numProcessed : 0;
+    }
+
+    /** Returns the number of jobs completing the post-process stage per second. */
+    public float getThroughput() {
+        final long elapsed = getActiveNanos();
+        return elapsed > 0 ? stages[STAGE_POST][0].numProcessed * 1e9f / elapsed : 0;
+    }
+
+    /** Returns the number of converted frames replaced by a newer one before inference. */
+    public long getDisplacedCount() {
+        return numDisplaced;
+    }
+
+    /**
+     * Returns the mean number of objects the given stage allocates per job, including handing the
+     * job on. Always zero in release builds.
+     */
+    public float getAllocationsPerJob(final int stage) {
+        float allocations = 0;
+        for (final StageThread thread : stages[stage]) {
+            allocations += thread.allocations.getAveragePerSection();
+        }
+        return allocations / stages[stage].length;
+    }
+
+    /**
+     * Returns a one-line summary of the throughput, stage occupancies and queue depths, and in
+     * debug builds of the allocations per job.
+     */
+    public String getStatsInfo() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(
+                String.format(
+                        Locale.US,
+                        "%.1f fps with %d/%d infer workers, ",
+                        getThroughput(),
+                        numActiveInferWorkers,
+                        getInferWorkerCount()));
+        for (int i = 0; i < stages.length; i++) {
+            builder.append(
+                    String.format(
+                            Locale.US,
+                            "%s %.0f%% (queue %.2f), ",
+                            STAGE_NAMES[i],
+                            100 * getOccupancy(i),
+                            getAverageQueueDepth(i)));
+            if (AllocationCounter.ENABLED) {
+                builder.append(
+                        String.format(
+                                Locale.US, "%s allocs %.1f, ", STAGE_NAMES[i], getAllocationsPerJob(i)));
+            }
+        }
+        builder.append(numDisplaced).append(" displaced");
+        return builder.toString();
+    }
+
+    /**
+     * Stops accepting frames, lets the jobs already submitted run through all stages and stops the
+     * stage threads.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (stopping) {
+                return;
+            }
+            stopping = true;
+        }
+        unparkStage(STAGE_CONVERT);
+        boolean interrupted = false;
+        for (final StageThread[] threads : stages) {
+            for (final StageThread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.i("Pipeline stopped: %s", getStatsInfo());
+    }
+
+    /** Returns the time since the pipeline started, excluding pauses. */
+    private synchronized long getActiveNanos() {
+        final long end = paused ? pauseStartNanos : System.nanoTime();
+        return end - startTimeNanos - pausedNanos;
+    }
+
+    private synchronized boolean isStopping() {
+        return stopping;
+    }
+
+    private void unparkStage(final int stage) {
+        for (final StageThread thread : stages[stage]) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Returns true once every thread of the stage feeding {@code stage} has finished. */
+    private boolean isUpstreamFinished(final int stage) {
+        if (stage == STAGE_CONVERT) {
+            return isStopping();
+        }
+        for (final StageThread thread : stages[stage - 1]) {
+            if (!thread.finished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the next job waiting for {@code stage}, or null. */
+    private Slot<T> takeInput(final int stage) {
+        switch (stage) {
+            case STAGE_CONVERT:
+                return convertQueue.poll();
+            case STAGE_INFER:
+                synchronized (inferTakeLock) {
+                    final Slot<T> slot = inferSlot.take();
+                    if (slot != null) {
+                        slot.sequence = nextInferSequence++;
+                    }
+                    return slot;
+                }
+            default:
+                return takeInOrder();
+        }
+    }
+
+    /**
+     * Returns the job with the next sequence number from any infer worker, or null if it has not
+     * arrived yet. Called only by the post-process thread.
+     */
+    @SuppressWarnings("unchecked")
+    private Slot<T> takeInOrder() {
+        // Indexed, since iterating the list would allocate on every call.
+        for (int i = 0; i < postQueues.size(); i++) {
+            final SpscQueue<Slot<T>> queue = postQueues.get(i);
+            Slot<T> slot;
+            while ((slot = queue.poll()) != null) {
+                postReorder[(int) slot.sequence & postReorderMask] = slot;
+                numReordered++;
+            }
+        }
+        final int index = (int) nextPostSequence & postReorderMask;
+        final Slot<T> slot = (Slot<T>) postReorder[index];
+        if (slot == null || slot.sequence != nextPostSequence) {
+            return null;
+        }
+        postReorder[index] = null;
+        numReordered--;
+        nextPostSequence++;
+        return slot;
+    }
+
+    /** Returns the number of jobs waiting for {@code stage}. */
+    private int getInputSize(final int stage) {
+        switch (stage) {
+            case STAGE_CONVERT:
+                return convertQueue.size();
+            case STAGE_INFER:
+                return inferSlot.isEmpty() ? 0 : 1;
+            default:
+                int size = numReordered;
+                for (int i = 0; i < postQueues.size(); i++) {
+                    size += postQueues.get(i).size();
+                }
+                return size;
+        }
+    }
+
+    /**
+     * Hands a job processed by {@code stage} on to the next stage, or retires it.
+     *
+     * @param worker The index of the thread within the stage.
+     */
+    private void forward(final int stage, final int worker, final Slot<T> slot) {
+        switch (stage) {
+            case STAGE_CONVERT:
+                if (slot.dropped) {
+                    retire(slot, convertRetired);
+                    return;
+                }
+                final Slot<T> displaced = inferSlot.publish(slot);
+                unparkStage(STAGE_INFER);
+                if (displaced != null) {
+                    numDisplaced++;
+                    retire(displaced, convertRetired);
+                }
+                return;
+            case STAGE_INFER:
+                postQueues.get(worker).offer(slot);
+                unparkStage(STAGE_POST);
+                return;
+            default:
+                retire(slot, postRetired);
+        }
+    }
+
+    private void retire(final Slot<T> slot, final SpscQueue<Slot<T>> retired) {
+        try {
+            recycle.process(slot.job);
+        } catch (final RuntimeException e) {
+            LOGGER.e(e, "Recycling a job failed.");
+        }
+        retired.offer(slot);
+        synchronized (this) {
+            if (--numInFlight == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /** A stage thread taking jobs from its input and passing them on with {@link #forward}. */
+    private final class StageThread extends Thread {
+        final int stage;
+        final int worker;
+        final Stage<T> work;
+
+        /** Set once the thread has drained its input after the upstream stopped. */
+        volatile boolean finished = false;
+
+        volatile long busyNanos = 0;
+        volatile long numProcessed = 0;
+        volatile long queueDepthSum = 0;
+        final AllocationCounter allocations = new AllocationCounter();
+
+        StageThread(final int stage, final int worker, final Stage<T> work) {
+            super("FramePipeline-" + STAGE_NAMES[stage] + (worker > 0 ? "-" + worker : ""));
+            this.stage = stage;
+            this.worker = worker;
+            this.work = work;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (stage == STAGE_INFER && worker >= numActiveInferWorkers) {
+                    // The active workers drain the input, so an inactive one only waits.
+                    if (isUpstreamFinished(stage)) {
+                        break;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                final int queueDepth = getInputSize(stage);
+                final Slot<T> slot = takeInput(stage);
+                if (slot == null) {
+                    if (isUpstreamFinished(stage)) {
+                        // Nothing can arrive any more once the upstream is done and drained.
+                        if (getInputSize(stage) == 0) {
+                            break;
+                        }
+                        continue;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                allocations.begin();
+                if (!slot.dropped) {
+                    final long startTime = System.nanoTime();
+                    try {
+                        slot.dropped = !work.process(slot.job);
+                    } catch (final RuntimeException e) {
+                        LOGGER.e(e, "Stage %s failed.", getName());
+                        slot.dropped = true;
+                    }
+                    busyNanos += System.nanoTime() - startTime;
+                    queueDepthSum += Math.max(0, queueDepth - 1);
+                    numProcessed++;
+                }
+                forward(stage, worker, slot);
+                allocations.end();
+            }
+            finished = true;
+            if (stage + 1 < stages.length) {
+                unparkStage(stage + 1);
+            }
+        }
+    }
+}
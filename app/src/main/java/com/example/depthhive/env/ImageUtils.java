@@ -16,6 +16,7 @@ import android.graphics.Bitmap;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -23,6 +24,41 @@ public class ImageUtils {
     // are normalized to eight bits.
     static final int kMaxChannelValue = 262143;
 
+    // Every channel is computed in 2^10 fixed point and clamped to [0, kMaxChannelValue] before
+    // being shifted down to eight bits. Clamping the shifted value to [0, 255] is equivalent, so a
+    // single clamp table indexed by (channel >> 10) replaces both the clamps and the shifts. The
+    // table offset is folded into the luma table so that lookups need no extra addition.
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] R_V_TABLE = new int[256];
+    private static final int[] G_U_TABLE = new int[256];
+    private static final int[] G_V_TABLE = new int[256];
+    private static final int[] B_U_TABLE = new int[256];
+    private static final int[] CLAMP_TABLE;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+            R_V_TABLE[i] = 1634 * (i - 128);
+            G_U_TABLE[i] = -400 * (i - 128);
+            G_V_TABLE[i] = -833 * (i - 128);
+            B_U_TABLE[i] = 2066 * (i - 128);
+        }
+        final int minChannel =
+                Y_TABLE[0]
+                        + Math.min(R_V_TABLE[0], Math.min(G_U_TABLE[255] + G_V_TABLE[255], B_U_TABLE[0]));
+        final int maxChannel =
+                Y_TABLE[255]
+                        + Math.max(R_V_TABLE[255], Math.max(G_U_TABLE[0] + G_V_TABLE[0], B_U_TABLE[255]));
+        final int clampOffset = -(minChannel >> 10);
+        CLAMP_TABLE = new int[(maxChannel >> 10) + clampOffset + 1];
+        for (int i = 0; i < CLAMP_TABLE.length; i++) {
+            CLAMP_TABLE[i] = Math.max(0, Math.min(kMaxChannelValue >> 10, i - clampOffset));
+        }
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] += clampOffset << 10;
+        }
+    }
+
     @SuppressWarnings("unused")
     private static final Logger LOGGER = new Logger();
 
@@ -82,46 +118,90 @@ public class ImageUtils {
     }
 
     public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+        convertYUV420SPToARGB8888(input, width, height, output, 0, height);
+    }
+
+    /**
+     * Converts rows {@code [startRow, endRow)} of a YUV420SP image, so that disjoint row stripes
+     * can be converted concurrently. Row pairs sharing a chroma row are converted as 2x2 blocks.
+     */
+    public static void convertYUV420SPToARGB8888(
+            byte[] input, int width, int height, int[] output, int startRow, int endRow) {
         final int frameSize = width * height;
-        for (int j = 0, yp = 0; j < height; j++) {
+        int j = startRow;
+        if ((j & 1) != 0 && j < endRow) {
+            convertYUV420SPRow(input, width, frameSize, output, j++);
+        }
+        for (; j + 1 < endRow; j += 2) {
             int uvp = frameSize + (j >> 1) * width;
-            int u = 0;
-            int v = 0;
-
-            for (int i = 0; i < width; i++, yp++) {
-                int y = 0xff & input[yp];
-                if ((i & 1) == 0) {
-                    v = 0xff & input[uvp++];
-                    u = 0xff & input[uvp++];
-                }
-
-                output[yp] = YUV2RGB(y, u, v);
+            int yp0 = j * width;
+            int yp1 = yp0 + width;
+            int i = 0;
+            for (; i + 1 < width; i += 2) {
+                final int v = 0xff & input[uvp++];
+                final int u = 0xff & input[uvp++];
+                final int rTerm = R_V_TABLE[v];
+                final int gTerm = G_U_TABLE[u] + G_V_TABLE[v];
+                final int bTerm = B_U_TABLE[u];
+                output[yp0] = lutToArgb(Y_TABLE[0xff & input[yp0]], rTerm, gTerm, bTerm);
+                output[yp0 + 1] = lutToArgb(Y_TABLE[0xff & input[yp0 + 1]], rTerm, gTerm, bTerm);
+                output[yp1] = lutToArgb(Y_TABLE[0xff & input[yp1]], rTerm, gTerm, bTerm);
+                output[yp1 + 1] = lutToArgb(Y_TABLE[0xff & input[yp1 + 1]], rTerm, gTerm, bTerm);
+                yp0 += 2;
+                yp1 += 2;
+            }
+            if (i < width) {
+                final int v = 0xff & input[uvp];
+                final int u = 0xff & input[uvp + 1];
+                output[yp0] = YUV2RGB(0xff & input[yp0], u, v);
+                output[yp1] = YUV2RGB(0xff & input[yp1], u, v);
             }
         }
+        if (j < endRow) {
+            convertYUV420SPRow(input, width, frameSize, output, j);
+        }
     }
 
-    private static int YUV2RGB(int y, int u, int v) {
-        // Adjust and check YUV values
-        y = (y - 16) < 0 ? 0 : (y - 16);
-        u -= 128;
-        v -= 128;
+    private static void convertYUV420SPRow(
+            byte[] input, int width, int frameSize, int[] output, int j) {
+        int uvp = frameSize + (j >> 1) * width;
+        int u = 0;
+        int v = 0;
 
-        // This is the floating point equivalent. We do the conversion in integer
-        // because some Android devices do not have floating point in hardware.
-        // nR = (int)(1.164 * nY + 2.018 * nU);
-        // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
-        // nB = (int)(1.164 * nY + 1.596 * nV);
-        int y1192 = 1192 * y;
-        int r = (y1192 + 1634 * v);
-        int g = (y1192 - 833 * v - 400 * u);
-        int b = (y1192 + 2066 * u);
+        for (int i = 0, yp = j * width; i < width; i++, yp++) {
+            int y = 0xff & input[yp];
+            if ((i & 1) == 0) {
+                v = 0xff & input[uvp++];
+                u = 0xff & input[uvp++];
+            }
+
+            output[yp] = YUV2RGB(y, u, v);
+        }
+    }
 
-        // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
-        r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
-        g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
-        b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+    /**
+     * Converts a single YUV pixel to ARGB. Table-driven and branch-free, but bit-exact with the
+     * integer conversion below.
+     *
+     * <pre>
+     * nR = (int)(1.164 * nY + 2.018 * nU);
+     * nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
+     * nB = (int)(1.164 * nY + 1.596 * nV);
+     * </pre>
+     *
+     * which is computed in integer as 1192 * (Y - 16) + 1634 * (V - 128) and so on, clamped to
+     * [0, kMaxChannelValue] and shifted down to eight bits.
+     */
+    public static int YUV2RGB(int y, int u, int v) {
+        return lutToArgb(Y_TABLE[y], R_V_TABLE[v], G_U_TABLE[u] + G_V_TABLE[v], B_U_TABLE[u]);
+    }
 
-        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    /** Combines a luma term with precomputed chroma terms and packs the clamped channels. */
+    private static int lutToArgb(int yTerm, int rTerm, int gTerm, int bTerm) {
+        return 0xff000000
+                | (CLAMP_TABLE[(yTerm + rTerm) >> 10] << 16)
+                | (CLAMP_TABLE[(yTerm + gTerm) >> 10] << 8)
+                | CLAMP_TABLE[(yTerm + bTerm) >> 10];
     }
 
     public static void convertYUV420ToARGB8888(
@@ -134,15 +214,233 @@ public class ImageUtils {
             int uvRowStride,
             int uvPixelStride,
             int[] out) {
-        int yp = 0;
-        for (int j = 0; j < height; j++) {
-            int pY = yRowStride * j;
+        convertYUV420ToARGB8888(
+                yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out, 0, height);
+    }
+
+    /**
+     * Converts rows {@code [startRow, endRow)} of a YUV_420_888 image, so that disjoint row stripes
+     * can be converted concurrently. Row pairs sharing a chroma row are converted as 2x2 blocks.
+     */
+    public static void convertYUV420ToARGB8888(
+            byte[] yData,
+            byte[] uData,
+            byte[] vData,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out,
+            int startRow,
+            int endRow) {
+        int j = startRow;
+        if ((j & 1) != 0 && j < endRow) {
+            convertYUV420Row(yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, j++);
+        }
+        for (; j + 1 < endRow; j += 2) {
+            int pY0 = yRowStride * j;
+            int pY1 = pY0 + yRowStride;
+            int pUV = uvRowStride * (j >> 1);
+            int yp0 = j * width;
+            int yp1 = yp0 + width;
+            int i = 0;
+            for (; i + 1 < width; i += 2) {
+                final int u = 0xff & uData[pUV];
+                final int v = 0xff & vData[pUV];
+                final int rTerm = R_V_TABLE[v];
+                final int gTerm = G_U_TABLE[u] + G_V_TABLE[v];
+                final int bTerm = B_U_TABLE[u];
+                out[yp0++] = lutToArgb(Y_TABLE[0xff & yData[pY0 + i]], rTerm, gTerm, bTerm);
+                out[yp0++] = lutToArgb(Y_TABLE[0xff & yData[pY0 + i + 1]], rTerm, gTerm, bTerm);
+                out[yp1++] = lutToArgb(Y_TABLE[0xff & yData[pY1 + i]], rTerm, gTerm, bTerm);
+                out[yp1++] = lutToArgb(Y_TABLE[0xff & yData[pY1 + i + 1]], rTerm, gTerm, bTerm);
+                pUV += uvPixelStride;
+            }
+            if (i < width) {
+                final int u = 0xff & uData[pUV];
+                final int v = 0xff & vData[pUV];
+                out[yp0] = YUV2RGB(0xff & yData[pY0 + i], u, v);
+                out[yp1] = YUV2RGB(0xff & yData[pY1 + i], u, v);
+            }
+        }
+        if (j < endRow) {
+            convertYUV420Row(yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, j);
+        }
+    }
+
+    private static void convertYUV420Row(
+            byte[] yData,
+            byte[] uData,
+            byte[] vData,
+            int width,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out,
+            int j) {
+        int yp = j * width;
+        int pY = yRowStride * j;
+        int pUV = uvRowStride * (j >> 1);
+
+        for (int i = 0; i < width; i++) {
+            int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+            out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+        }
+    }
+
+    /**
+     * Converts a YUV_420_888 image straight from its plane buffers, honouring the row and pixel
+     * strides, without copying the planes into arrays first. Only absolute reads are used, so the
+     * buffer positions are left untouched.
+     */
+    public static void convertYUV420ToARGB8888(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out) {
+        convertYUV420ToARGB8888(
+                yBuffer, uBuffer, vBuffer, width, height, yRowStride, uvRowStride, uvPixelStride, out,
+                0, height);
+    }
+
+    /** Converts rows {@code [startRow, endRow)} of a YUV_420_888 image from its plane buffers. */
+    public static void convertYUV420ToARGB8888(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out,
+            int startRow,
+            int endRow) {
+        int j = startRow;
+        if ((j & 1) != 0 && j < endRow) {
+            convertYUV420Row(
+                    yBuffer, uBuffer, vBuffer, width, yRowStride, uvRowStride, uvPixelStride, out, j++);
+        }
+        for (; j + 1 < endRow; j += 2) {
+            int pY0 = yRowStride * j;
+            int pY1 = pY0 + yRowStride;
             int pUV = uvRowStride * (j >> 1);
+            int yp0 = j * width;
+            int yp1 = yp0 + width;
+            int i = 0;
+            for (; i + 1 < width; i += 2) {
+                final int u = 0xff & uBuffer.get(pUV);
+                final int v = 0xff & vBuffer.get(pUV);
+                final int rTerm = R_V_TABLE[v];
+                final int gTerm = G_U_TABLE[u] + G_V_TABLE[v];
+                final int bTerm = B_U_TABLE[u];
+                out[yp0++] = lutToArgb(Y_TABLE[0xff & yBuffer.get(pY0 + i)], rTerm, gTerm, bTerm);
+                out[yp0++] = lutToArgb(Y_TABLE[0xff & yBuffer.get(pY0 + i + 1)], rTerm, gTerm, bTerm);
+                out[yp1++] = lutToArgb(Y_TABLE[0xff & yBuffer.get(pY1 + i)], rTerm, gTerm, bTerm);
+                out[yp1++] = lutToArgb(Y_TABLE[0xff & yBuffer.get(pY1 + i + 1)], rTerm, gTerm, bTerm);
+                pUV += uvPixelStride;
+            }
+            if (i < width) {
+                final int u = 0xff & uBuffer.get(pUV);
+                final int v = 0xff & vBuffer.get(pUV);
+                out[yp0] = YUV2RGB(0xff & yBuffer.get(pY0 + i), u, v);
+                out[yp1] = YUV2RGB(0xff & yBuffer.get(pY1 + i), u, v);
+            }
+        }
+        if (j < endRow) {
+            convertYUV420Row(
+                    yBuffer, uBuffer, vBuffer, width, yRowStride, uvRowStride, uvPixelStride, out, j);
+        }
+    }
 
-            for (int i = 0; i < width; i++) {
-                int uv_offset = pUV + (i >> 1) * uvPixelStride;
+    private static void convertYUV420Row(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int width,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out,
+            int j) {
+        int yp = j * width;
+        int pY = yRowStride * j;
+        int pUV = uvRowStride * (j >> 1);
+
+        for (int i = 0; i < width; i++) {
+            int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+            out[yp++] =
+                    YUV2RGB(
+                            0xff & yBuffer.get(pY + i),
+                            0xff & uBuffer.get(uv_offset),
+                            0xff & vBuffer.get(uv_offset));
+        }
+    }
 
-                out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+    /**
+     * Computes, for every pixel of a {@code dstWidth x dstHeight} model input, the index of the
+     * source pixel it samples. This reproduces the center crop, nearest-neighbour resize and
+     * counter-clockwise rotation by {@code sensorOrientation} applied in the TFLite preprocessing
+     * pipeline, so that camera frames can be sampled directly at the model resolution.
+     *
+     * @param srcWidth The width of the source frame.
+     * @param srcHeight The height of the source frame.
+     * @param dstWidth The width of the model input.
+     * @param dstHeight The height of the model input.
+     * @param sensorOrientation The rotation of the frame in degrees, a multiple of 90.
+     * @param map Receives {@code y * srcWidth + x} for each destination pixel in row-major order.
+     */
+    public static void computeSampleMap(
+            final int srcWidth,
+            final int srcHeight,
+            final int dstWidth,
+            final int dstHeight,
+            final int sensorOrientation,
+            final int[] map) {
+        final int cropSize = Math.min(srcWidth, srcHeight);
+        final int cropLeft = (srcWidth - cropSize) / 2;
+        final int cropTop = (srcHeight - cropSize) / 2;
+        final int numRotation = ((sensorOrientation / 90) % 4 + 4) % 4;
+
+        // Size of the resized image before it is rotated into the destination.
+        final int resizedWidth = (numRotation % 2 == 0) ? dstWidth : dstHeight;
+        final int resizedHeight = (numRotation % 2 == 0) ? dstHeight : dstWidth;
+
+        for (int y = 0, i = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++, i++) {
+                // Undo the counter-clockwise rotation.
+                final int rx;
+                final int ry;
+                switch (numRotation) {
+                    case 1:
+                        rx = resizedWidth - 1 - y;
+                        ry = x;
+                        break;
+                    case 2:
+                        rx = resizedWidth - 1 - x;
+                        ry = resizedHeight - 1 - y;
+                        break;
+                    case 3:
+                        rx = y;
+                        ry = resizedHeight - 1 - x;
+                        break;
+                    default:
+                        rx = x;
+                        ry = y;
+                        break;
+                }
+                // Sample the center of the destination pixel inside the crop.
+                final int sx = cropLeft + ((2 * rx + 1) * cropSize) / (2 * resizedWidth);
+                final int sy = cropTop + ((2 * ry + 1) * cropSize) / (2 * resizedHeight);
+                map[i] = sy * srcWidth + sx;
             }
         }
     }
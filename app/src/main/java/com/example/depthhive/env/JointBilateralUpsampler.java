@@ -0,0 +1,217 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+/**
+ * Upsamples depth maps to the resolution of a luminance guide, such that depth edges snap to the
+ * edges of the camera image.
+ *
+ * <p>Every output pixel is a weighted mean of the {@value #TAPS}x{@value #TAPS} nearest depth
+ * pixels. The weight of a depth pixel is a Gaussian of its distance to the output pixel, in depth
+ * map pixels, times a Gaussian of the difference between the guide luminance at the output pixel
+ * and at the depth pixel. The spatial weights only depend on the output column and row, and the
+ * range weights only on the luminance difference, so both come from tables computed once per
+ * geometry. Rows are upsampled in stripes on a {@link RowStripeExecutor} into a caller-provided
+ * buffer, so nothing is allocated per frame.
+ */
+public class JointBilateralUpsampler {
+    /** Number of depth pixels taken into account along each axis. */
+    private static final int TAPS = 4;
+
+    /** Range weight below which the output falls back to purely spatial weights. */
+    private static final float MIN_RANGE_WEIGHT = 1e-4f;
+
+    private final RowStripeExecutor executor;
+    private final UpsampleTask task = new UpsampleTask();
+
+    private float spatialSigma = 1.0f;
+    private float rangeSigma = 12f;
+
+    /** Range weight of each absolute luminance difference. */
+    private final float[] rangeWeights = new float[256];
+
+    private int depthWidth = -1;
+    private int depthHeight = -1;
+    private int outputWidth = -1;
+    private int outputHeight = -1;
+
+    /** Depth map column of each tap of each output column, {@value #TAPS} per column. */
+    private int[] columnTaps = new int[0];
+    private float[] columnWeights = new float[0];
+
+    /** Depth map row offset of each tap of each output row, {@value #TAPS} per row. */
+    private int[] rowTaps = new int[0];
+    private float[] rowWeights = new float[0];
+
+    /** Guide pixel at the center of each depth map pixel. */
+    private int[] depthGuideIndex = new int[0];
+
+    /** @param numStripes The number of threads upsampling rows, including the caller. */
+    public JointBilateralUpsampler(final int numStripes) {
+        executor = new RowStripeExecutor(numStripes);
+        computeRangeWeights();
+    }
+
+    /**
+     * Sets the widths of the Gaussians.
+     *
+     * @param spatial Standard deviation of the spatial weight, in depth map pixels.
+     * @param range Standard deviation of the range weight, in luminance levels.
+     */
+    public void setSigmas(final float spatial, final float range) {
+        this.spatialSigma = spatial;
+        this.rangeSigma = range;
+        computeRangeWeights();
+        depthWidth = -1;
+    }
+
+    /** Rebuilds the weight tables if the depth map or output size has changed. */
+    public void configure(
+            final int depthWidth,
+            final int depthHeight,
+            final int outputWidth,
+            final int outputHeight) {
+        if (depthWidth == this.depthWidth
+                && depthHeight == this.depthHeight
+                && outputWidth == this.outputWidth
+                && outputHeight == this.outputHeight) {
+            return;
+        }
+        columnTaps = new int[outputWidth * TAPS];
+        columnWeights = new float[outputWidth * TAPS];
+        computeTaps(outputWidth, depthWidth, 1, columnTaps, columnWeights);
+        rowTaps = new int[outputHeight * TAPS];
+        rowWeights = new float[outputHeight * TAPS];
+        computeTaps(outputHeight, depthHeight, depthWidth, rowTaps, rowWeights);
+
+        depthGuideIndex = new int[depthWidth * depthHeight];
+        for (int y = 0, i = 0; y < depthHeight; y++) {
+            final int gy = ((2 * y + 1) * outputHeight) / (2 * depthHeight);
+            for (int x = 0; x < depthWidth; x++, i++) {
+                final int gx = ((2 * x + 1) * outputWidth) / (2 * depthWidth);
+                depthGuideIndex[i] = gy * outputWidth + gx;
+            }
+        }
+        this.depthWidth = depthWidth;
+        this.depthHeight = depthHeight;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+    }
+
+    /**
+     * Upsamples a depth map given when configured, guided by luminance laid out like the output,
+     * into {@code output}. Invalid depths, such as zero or NaN, are left out; output pixels with
+     * no valid depth nearby are zero.
+     */
+    public void upsample(final float[] depth, final byte[] guide, final float[] output) {
+        task.depth = depth;
+        task.guide = guide;
+        task.output = output;
+        executor.execute(task, outputHeight);
+        task.depth = null;
+        task.guide = null;
+        task.output = null;
+    }
+
+    /** Stops the worker threads. */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void computeRangeWeights() {
+        for (int d = 0; d < rangeWeights.length; d++) {
+            rangeWeights[d] = (float) Math.exp(-d * d / (2.0 * rangeSigma * rangeSigma));
+        }
+    }
+
+    /**
+     * Computes the taps of each output position along one axis: the indices of the nearest depth
+     * pixels, multiplied by {@code stride}, and their spatial weights.
+     */
+    private void computeTaps(
+            final int outputSize,
+            final int depthSize,
+            final int stride,
+            final int[] taps,
+            final float[] weights) {
+        for (int o = 0; o < outputSize; o++) {
+            // Position of the output pixel center in depth map pixels.
+            final float position = (o + 0.5f) * depthSize / outputSize - 0.5f;
+            final int first = (int) Math.floor(position) - TAPS / 2 + 1;
+            for (int t = 0; t < TAPS; t++) {
+                final int index = first + t;
+                final float distance = index - position;
+                taps[o * TAPS + t] = Math.max(0, Math.min(depthSize - 1, index)) * stride;
+                weights[o * TAPS + t] =
+                        (float) Math.exp(-distance * distance / (2.0 * spatialSigma * spatialSigma));
+            }
+        }
+    }
+
+    /** Upsamples output rows {@code [startRow, endRow)}. */
+    private void upsampleRows(
+            final float[] depth,
+            final byte[] guide,
+            final float[] output,
+            final int startRow,
+            final int endRow) {
+        for (int y = startRow; y < endRow; y++) {
+            final int rowTap = y * TAPS;
+            for (int x = 0, o = y * outputWidth; x < outputWidth; x++, o++) {
+                final int center = guide[o] & 0xff;
+                final int columnTap = x * TAPS;
+                float sum = 0f;
+                float weightSum = 0f;
+                float spatialSum = 0f;
+                float spatialWeightSum = 0f;
+                for (int j = 0; j < TAPS; j++) {
+                    final int rowOffset = rowTaps[rowTap + j];
+                    final float rowWeight = rowWeights[rowTap + j];
+                    for (int i = 0; i < TAPS; i++) {
+                        final int q = rowOffset + columnTaps[columnTap + i];
+                        final float d = depth[q];
+                        // Also rejects NaN.
+                        if (!(d > 0f)) {
+                            continue;
+                        }
+                        final int difference = Math.abs(center - (guide[depthGuideIndex[q]] & 0xff));
+                        final float spatialWeight = rowWeight * columnWeights[columnTap + i];
+                        final float weight = spatialWeight * rangeWeights[difference];
+                        sum += weight * d;
+                        weightSum += weight;
+                        spatialSum += spatialWeight * d;
+                        spatialWeightSum += spatialWeight;
+                    }
+                }
+                if (weightSum > MIN_RANGE_WEIGHT * spatialWeightSum) {
+                    output[o] = sum / weightSum;
+                } else {
+                    // No depth pixel resembles the guide, e.g. on thin structures: spatial only.
+                    output[o] = spatialWeightSum > 0f ? spatialSum / spatialWeightSum : 0f;
+                }
+            }
+        }
+    }
+
+    /** Runs {@link #upsampleRows} for the stripes of the executor, re-armed for every frame. */
+    private final class UpsampleTask implements RowStripeExecutor.RowTask {
+        float[] depth;
+        byte[] guide;
+        float[] output;
+
+        @Override
+        public void run(final int startRow, final int endRow) {
+            upsampleRows(depth, guide, output, startRow, endRow);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free single-element mailbox in which the newest element wins.
+ *
+ * <p>Publishing replaces any element the consumer has not taken yet and hands the displaced one
+ * back to the publisher for recycling, so the consumer always takes the freshest element.
+ */
+final class LatestFrameSlot<T> {
+    private final AtomicReference<T> slot = new AtomicReference<T>();
+
+    /**
+     * Publishes an element.
+     *
+     * @return the displaced element that was never taken, or null.
+     */
+    T publish(final T element) {
+        return slot.getAndSet(element);
+    }
+
+    /**
+     * Takes the published element.
+     *
+     * @return the element, or null if none was published since the last call.
+     */
+    T take() {
+        return slot.getAndSet(null);
+    }
+
+    /** Returns true if no element is waiting. */
+    boolean isEmpty() {
+        return slot.get() == null;
+    }
+}
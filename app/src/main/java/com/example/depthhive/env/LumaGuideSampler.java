@@ -0,0 +1,80 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Samples the luminance plane of camera frames over the region a depth map covers, upright and
+ * at the camera resolution, as the guide of a {@link JointBilateralUpsampler}.
+ *
+ * <p>The region is the center crop that the model input is taken from, rotated the same way. The
+ * plane index of every guide pixel is precomputed and rebuilt only when the frame geometry
+ * changes, so that the guide can be copied out before the camera buffer is handed back.
+ */
+public final class LumaGuideSampler {
+    /** Index into the luminance plane of each guide pixel. */
+    private int[] planeIndex = new int[0];
+
+    private int srcWidth = -1;
+    private int srcHeight = -1;
+    private int rowStride = -1;
+    private int sensorOrientation = -1;
+    private int guideSize = -1;
+
+    /** Returns the width and height of the square guide for frames of the given size. */
+    public static int getGuideSize(final int srcWidth, final int srcHeight) {
+        return Math.min(srcWidth, srcHeight);
+    }
+
+    /** Rebuilds the plane index if the frame geometry has changed. */
+    public void configure(
+            final int srcWidth, final int srcHeight, final int rowStride, final int sensorOrientation) {
+        if (srcWidth == this.srcWidth
+                && srcHeight == this.srcHeight
+                && rowStride == this.rowStride
+                && sensorOrientation == this.sensorOrientation) {
+            return;
+        }
+        guideSize = getGuideSize(srcWidth, srcHeight);
+        planeIndex = new int[guideSize * guideSize];
+        ImageUtils.computeSampleMap(
+                srcWidth, srcHeight, guideSize, guideSize, sensorOrientation, planeIndex);
+        for (int i = 0; i < planeIndex.length; i++) {
+            planeIndex[i] = (planeIndex[i] / srcWidth) * rowStride + planeIndex[i] % srcWidth;
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.rowStride = rowStride;
+        this.sensorOrientation = sensorOrientation;
+    }
+
+    /** Returns the width and height of the guide. Valid after {@link #configure}. */
+    public int getGuideSize() {
+        return guideSize;
+    }
+
+    /** Copies the guide out of a luminance array into {@code guide}, row by row. */
+    public void sample(final byte[] luminance, final byte[] guide) {
+        for (int i = 0; i < planeIndex.length; i++) {
+            guide[i] = luminance[planeIndex[i]];
+        }
+    }
+
+    /** Copies the guide out of a luminance plane buffer into {@code guide}, row by row. */
+    public void sample(final ByteBuffer luminance, final byte[] guide) {
+        for (int i = 0; i < planeIndex.length; i++) {
+            guide[i] = luminance.get(planeIndex[i]);
+        }
+    }
+}
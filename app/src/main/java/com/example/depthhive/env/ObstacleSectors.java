@@ -0,0 +1,91 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+/**
+ * The nearest obstacles of a depth frame, reduced to angular sectors from left to right. Sectors
+ * without any valid depth report infinite distances and an occupied fraction of zero.
+ */
+public final class ObstacleSectors {
+    private final float[] nearestMeters;
+    private final float[] lowPercentileMeters;
+    private final float[] occupiedFraction;
+    private long timestampNs;
+
+    public ObstacleSectors(final int numSectors) {
+        nearestMeters = new float[numSectors];
+        lowPercentileMeters = new float[numSectors];
+        occupiedFraction = new float[numSectors];
+    }
+
+    public int getSectorCount() {
+        return nearestMeters.length;
+    }
+
+    /** Returns the distance of the nearest depth sample of a sector in meters. */
+    public float getNearestMeters(final int sector) {
+        return nearestMeters[sector];
+    }
+
+    /**
+     * Returns a low percentile of the distances of a sector in meters, which unlike the nearest
+     * distance is robust against single outliers of the depth map.
+     */
+    public float getLowPercentileMeters(final int sector) {
+        return lowPercentileMeters[sector];
+    }
+
+    /** Returns the fraction of the depth samples of a sector closer than the occupied distance. */
+    public float getOccupiedFraction(final int sector) {
+        return occupiedFraction[sector];
+    }
+
+    /** Returns the capture time of the depth frame in nanoseconds. */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Returns the sector with the nearest low percentile distance. */
+    public int getNearestSector() {
+        int nearest = 0;
+        for (int s = 1; s < lowPercentileMeters.length; s++) {
+            if (lowPercentileMeters[s] < lowPercentileMeters[nearest]) {
+                nearest = s;
+            }
+        }
+        return nearest;
+    }
+
+    /** Copies the sectors of another result with the same sector count. */
+    public void copyFrom(final ObstacleSectors other) {
+        System.arraycopy(other.nearestMeters, 0, nearestMeters, 0, nearestMeters.length);
+        System.arraycopy(
+                other.lowPercentileMeters, 0, lowPercentileMeters, 0, lowPercentileMeters.length);
+        System.arraycopy(other.occupiedFraction, 0, occupiedFraction, 0, occupiedFraction.length);
+        timestampNs = other.timestampNs;
+    }
+
+    void set(
+            final int sector,
+            final float nearestMeters,
+            final float lowPercentileMeters,
+            final float occupiedFraction) {
+        this.nearestMeters[sector] = nearestMeters;
+        this.lowPercentileMeters[sector] = lowPercentileMeters;
+        this.occupiedFraction[sector] = occupiedFraction;
+    }
+
+    void setTimestampNs(final long timestampNs) {
+        this.timestampNs = timestampNs;
+    }
+}
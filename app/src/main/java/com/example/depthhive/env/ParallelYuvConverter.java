@@ -0,0 +1,241 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Row-striped, multi-core variants of the {@link ImageUtils} YUV to ARGB converters.
+ *
+ * <p>Each stripe runs the same row kernel as the serial converter, so the output is identical.
+ * Stripes are split on row pairs so that every 2x2 chroma block stays within one stripe. The
+ * stripe tasks are allocated once and re-armed for every frame.
+ */
+public final class ParallelYuvConverter {
+    private final RowStripeExecutor executor;
+    private final YUV420SPTask yuv420SPTask = new YUV420SPTask();
+    private final YUV420Task yuv420Task = new YUV420Task();
+    private final YUV420BufferTask yuv420BufferTask = new YUV420BufferTask();
+    private boolean parallel = true;
+
+    /** Creates a converter backed by {@code numThreads} threads, including the caller. */
+    public ParallelYuvConverter(final int numThreads) {
+        executor = new RowStripeExecutor(numThreads);
+    }
+
+    /** Selects the parallel path, or the serial {@link ImageUtils} path if false. */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /** Parallel equivalent of {@link ImageUtils#convertYUV420SPToARGB8888(byte[], int, int, int[])}. */
+    public void convertYUV420SPToARGB8888(
+            final byte[] input, final int width, final int height, final int[] output) {
+        if (!parallel) {
+            ImageUtils.convertYUV420SPToARGB8888(input, width, height, output);
+            return;
+        }
+        yuv420SPTask.set(input, width, height, output);
+        executor.execute(yuv420SPTask, (height + 1) / 2);
+        yuv420SPTask.clear();
+    }
+
+    /** Parallel equivalent of {@link ImageUtils#convertYUV420ToARGB8888}. */
+    public void convertYUV420ToARGB8888(
+            final byte[] yData,
+            final byte[] uData,
+            final byte[] vData,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int[] out) {
+        if (!parallel) {
+            ImageUtils.convertYUV420ToARGB8888(
+                    yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+            return;
+        }
+        yuv420Task.set(yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+        executor.execute(yuv420Task, (height + 1) / 2);
+        yuv420Task.clear();
+    }
+
+    /** Parallel equivalent of the plane-buffer {@link ImageUtils#convertYUV420ToARGB8888}. */
+    public void convertYUV420ToARGB8888(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int[] out) {
+        if (!parallel) {
+            ImageUtils.convertYUV420ToARGB8888(
+                    yBuffer, uBuffer, vBuffer, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+            return;
+        }
+        yuv420BufferTask.set(
+                yBuffer, uBuffer, vBuffer, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+        executor.execute(yuv420BufferTask, (height + 1) / 2);
+        yuv420BufferTask.clear();
+    }
+
+    /** Stops the worker threads. */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static final class YUV420SPTask implements RowStripeExecutor.RowTask {
+        private byte[] input;
+        private int width;
+        private int height;
+        private int[] output;
+
+        void set(final byte[] input, final int width, final int height, final int[] output) {
+            this.input = input;
+            this.width = width;
+            this.height = height;
+            this.output = output;
+        }
+
+        void clear() {
+            input = null;
+            output = null;
+        }
+
+        @Override
+        public void run(final int startPair, final int endPair) {
+            ImageUtils.convertYUV420SPToARGB8888(
+                    input, width, height, output, 2 * startPair, Math.min(2 * endPair, height));
+        }
+    }
+
+    private static final class YUV420Task implements RowStripeExecutor.RowTask {
+        private byte[] yData;
+        private byte[] uData;
+        private byte[] vData;
+        private int width;
+        private int height;
+        private int yRowStride;
+        private int uvRowStride;
+        private int uvPixelStride;
+        private int[] out;
+
+        void set(
+                final byte[] yData,
+                final byte[] uData,
+                final byte[] vData,
+                final int width,
+                final int height,
+                final int yRowStride,
+                final int uvRowStride,
+                final int uvPixelStride,
+                final int[] out) {
+            this.yData = yData;
+            this.uData = uData;
+            this.vData = vData;
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.out = out;
+        }
+
+        void clear() {
+            yData = null;
+            uData = null;
+            vData = null;
+            out = null;
+        }
+
+        @Override
+        public void run(final int startPair, final int endPair) {
+            ImageUtils.convertYUV420ToARGB8888(
+                    yData,
+                    uData,
+                    vData,
+                    width,
+                    height,
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    out,
+                    2 * startPair,
+                    Math.min(2 * endPair, height));
+        }
+    }
+
+    private static final class YUV420BufferTask implements RowStripeExecutor.RowTask {
+        private ByteBuffer yBuffer;
+        private ByteBuffer uBuffer;
+        private ByteBuffer vBuffer;
+        private int width;
+        private int height;
+        private int yRowStride;
+        private int uvRowStride;
+        private int uvPixelStride;
+        private int[] out;
+
+        void set(
+                final ByteBuffer yBuffer,
+                final ByteBuffer uBuffer,
+                final ByteBuffer vBuffer,
+                final int width,
+                final int height,
+                final int yRowStride,
+                final int uvRowStride,
+                final int uvPixelStride,
+                final int[] out) {
+            this.yBuffer = yBuffer;
+            this.uBuffer = uBuffer;
+            this.vBuffer = vBuffer;
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.out = out;
+        }
+
+        void clear() {
+            yBuffer = null;
+            uBuffer = null;
+            vBuffer = null;
+            out = null;
+        }
+
+        @Override
+        public void run(final int startPair, final int endPair) {
+            ImageUtils.convertYUV420ToARGB8888(
+                    yBuffer,
+                    uBuffer,
+                    vBuffer,
+                    width,
+                    height,
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    out,
+                    2 * startPair,
+                    Math.min(2 * endPair, height));
+        }
+    }
+}
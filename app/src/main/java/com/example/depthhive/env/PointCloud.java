@@ -0,0 +1,90 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * An organized point cloud back-projected from a depth map by {@link PointCloudProjector}.
+ *
+ * <p>Points are stored as x, y, z triples in meters in a direct buffer, one point per depth map
+ * pixel in row-major order, so that they can be handed to OpenGL or native code without copying.
+ * Pixels without a valid depth hold NaN coordinates. The camera looks along +z, with +x to the
+ * right and +y down in the upright depth map. Point clouds are meant to be reused: the buffer is
+ * only reallocated when a larger depth map has to fit.
+ */
+public final class PointCloud {
+    private static final int FLOATS_PER_POINT = 3;
+
+    private FloatBuffer points = allocate(0);
+    private int width;
+    private int height;
+    private long timestampNs;
+
+    /** Sizes the cloud for a depth map, reallocating the buffer only if it is too small. */
+    void set(final int width, final int height, final long timestampNs) {
+        final int numFloats = width * height * FLOATS_PER_POINT;
+        if (points.capacity() < numFloats) {
+            points = allocate(numFloats);
+        }
+        points.clear();
+        points.limit(numFloats);
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+    }
+
+    /**
+     * Returns the x, y, z triples of all points, from position 0 up to the limit. The buffer is
+     * overwritten by the next projection into this cloud.
+     */
+    public FloatBuffer getPoints() {
+        return points;
+    }
+
+    /** Returns the number of points, including those without valid depth. */
+    public int getPointCount() {
+        return width * height;
+    }
+
+    /** Returns the width of the depth map the cloud was projected from. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Returns the height of the depth map the cloud was projected from. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the capture time of the camera frame in nanoseconds. */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Copies another point cloud into this one. */
+    public void copyFrom(final PointCloud other) {
+        set(other.width, other.height, other.timestampNs);
+        final FloatBuffer source = other.points.duplicate();
+        source.position(0);
+        source.limit(getPointCount() * FLOATS_PER_POINT);
+        points.put(source);
+        points.position(0);
+    }
+
+    private static FloatBuffer allocate(final int numFloats) {
+        return ByteBuffer.allocateDirect(numFloats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
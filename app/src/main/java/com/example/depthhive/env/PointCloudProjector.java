@@ -0,0 +1,182 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Back-projects depth maps into {@link PointCloud}s using the intrinsics of the camera stream.
+ *
+ * <p>Depth maps cover the center crop of the camera frame, resized to the model input and rotated
+ * by the frame rotation, as in {@link ImageUtils#computeSampleMap}. For every depth map pixel, the
+ * ray through the center of the camera pixel it was sampled from is precomputed at unit depth and
+ * rotated into the upright depth map. Projecting a frame then takes a multiply per coordinate. The
+ * tables are rebuilt only when the intrinsics or any of the sizes change.
+ */
+public final class PointCloudProjector {
+    private CameraIntrinsics intrinsics;
+    private int frameWidth;
+    private int frameHeight;
+    private int sensorOrientation;
+    private int depthWidth;
+    private int depthHeight;
+
+    /** The x and y of the ray of each depth map pixel at unit depth. */
+    private float[] rayX = new float[0];
+    private float[] rayY = new float[0];
+
+    /** Points staged for a bulk put into the direct buffer of the cloud. */
+    private float[] staging = new float[0];
+
+    /**
+     * Prepares the ray tables for depth maps of frames with the given geometry. Cheap if nothing
+     * changed since the last call.
+     *
+     * @param intrinsics The intrinsics of the camera stream, scaled to the frame size if needed.
+     * @param sensorOrientation The rotation the frames were converted with, a multiple of 90.
+     */
+    public void configure(
+            final CameraIntrinsics intrinsics,
+            final int frameWidth,
+            final int frameHeight,
+            final int sensorOrientation,
+            final int depthWidth,
+            final int depthHeight) {
+        if (intrinsics == this.intrinsics
+                && frameWidth == this.frameWidth
+                && frameHeight == this.frameHeight
+                && sensorOrientation == this.sensorOrientation
+                && depthWidth == this.depthWidth
+                && depthHeight == this.depthHeight) {
+            return;
+        }
+        this.intrinsics = intrinsics;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.sensorOrientation = sensorOrientation;
+        this.depthWidth = depthWidth;
+        this.depthHeight = depthHeight;
+
+        final int numPixels = depthWidth * depthHeight;
+        rayX = new float[numPixels];
+        rayY = new float[numPixels];
+        staging = new float[numPixels * 3];
+        computeRays(
+                intrinsics.scaleTo(frameWidth, frameHeight),
+                frameWidth,
+                frameHeight,
+                sensorOrientation,
+                depthWidth,
+                depthHeight,
+                rayX,
+                rayY);
+    }
+
+    /**
+     * Back-projects a depth map of the configured size into {@code cloud}. Depths are distances
+     * along the optical axis in meters; invalid depths, such as zero or NaN, give NaN points.
+     */
+    public void project(final float[] depth, final long timestampNs, final PointCloud cloud) {
+        final int numPixels = depthWidth * depthHeight;
+        final float[] rayX = this.rayX;
+        final float[] rayY = this.rayY;
+        final float[] staging = this.staging;
+        for (int i = 0, o = 0; i < numPixels; i++, o += 3) {
+            float z = depth[i];
+            // Also rejects NaN.
+            if (!(z > 0f)) {
+                z = Float.NaN;
+            }
+            staging[o] = z * rayX[i];
+            staging[o + 1] = z * rayY[i];
+            staging[o + 2] = z;
+        }
+        cloud.set(depthWidth, depthHeight, timestampNs);
+        final FloatBuffer points = cloud.getPoints();
+        points.put(staging, 0, numPixels * 3);
+        points.position(0);
+    }
+
+    /**
+     * Computes the ray of each depth map pixel at unit depth, in the camera frame rotated upright
+     * like the depth map.
+     */
+    static void computeRays(
+            final CameraIntrinsics intrinsics,
+            final int frameWidth,
+            final int frameHeight,
+            final int sensorOrientation,
+            final int depthWidth,
+            final int depthHeight,
+            final float[] rayX,
+            final float[] rayY) {
+        final int cropSize = Math.min(frameWidth, frameHeight);
+        final float cropLeft = (frameWidth - cropSize) / 2;
+        final float cropTop = (frameHeight - cropSize) / 2;
+        final int numRotation = ((sensorOrientation / 90) % 4 + 4) % 4;
+        final int resizedWidth = (numRotation % 2 == 0) ? depthWidth : depthHeight;
+        final int resizedHeight = (numRotation % 2 == 0) ? depthHeight : depthWidth;
+        final float invFocalLengthX = 1f / intrinsics.getFocalLengthX();
+        final float invFocalLengthY = 1f / intrinsics.getFocalLengthY();
+
+        for (int y = 0, i = 0; y < depthHeight; y++) {
+            for (int x = 0; x < depthWidth; x++, i++) {
+                // Same pixel of the resized crop as sampled by ImageUtils.computeSampleMap.
+                final int rx;
+                final int ry;
+                switch (numRotation) {
+                    case 1:
+                        rx = resizedWidth - 1 - y;
+                        ry = x;
+                        break;
+                    case 2:
+                        rx = resizedWidth - 1 - x;
+                        ry = resizedHeight - 1 - y;
+                        break;
+                    case 3:
+                        rx = y;
+                        ry = resizedHeight - 1 - x;
+                        break;
+                    default:
+                        rx = x;
+                        ry = y;
+                        break;
+                }
+                final float sx = cropLeft + (rx + 0.5f) * cropSize / resizedWidth;
+                final float sy = cropTop + (ry + 0.5f) * cropSize / resizedHeight;
+                final float cameraX = (sx - intrinsics.getPrincipalPointX()) * invFocalLengthX;
+                final float cameraY = (sy - intrinsics.getPrincipalPointY()) * invFocalLengthY;
+
+                // Rotates the camera axes like the image, about the optical axis.
+                switch (numRotation) {
+                    case 1:
+                        rayX[i] = cameraY;
+                        rayY[i] = -cameraX;
+                        break;
+                    case 2:
+                        rayX[i] = -cameraX;
+                        rayY[i] = -cameraY;
+                        break;
+                    case 3:
+                        rayX[i] = -cameraY;
+                        rayY[i] = cameraX;
+                        break;
+                    default:
+                        rayX[i] = cameraX;
+                        rayY[i] = cameraY;
+                        break;
+                }
+            }
+        }
+    }
+}
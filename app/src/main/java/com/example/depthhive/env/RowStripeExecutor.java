@@ -0,0 +1,160 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+/**
+ * A fixed pool of worker threads that splits a range of rows into contiguous stripes and runs
+ * them concurrently.
+ *
+ * <p>The workers are started once and reused for every call to {@link #execute}, and the calling
+ * thread processes the first stripe itself, so running a task allocates nothing.
+ */
+public final class RowStripeExecutor {
+    private static final Logger LOGGER = new Logger();
+
+    /** A unit of work over a range of rows. */
+    public interface RowTask {
+        /** Processes rows {@code [startRow, endRow)}. */
+        void run(int startRow, int endRow);
+    }
+
+    private final Object lock = new Object();
+    private final Thread[] workers;
+
+    /** Current task, guarded by {@link #lock}. */
+    private RowTask task;
+    /** Number of rows in the current task, guarded by {@link #lock}. */
+    private int numRows;
+    /** Incremented for every task so that workers can tell new work apart, guarded by {@link #lock}. */
+    private long generation;
+    /** Number of workers still running the current task, guarded by {@link #lock}. */
+    private int pending;
+    /** Set once the pool is shut down, guarded by {@link #lock}. */
+    private boolean shutdown;
+
+    /**
+     * Creates an executor that splits each task into {@code numStripes} stripes.
+     *
+     * @param numStripes The number of concurrent stripes, including the calling thread's.
+     */
+    public RowStripeExecutor(final int numStripes) {
+        workers = new Thread[Math.max(0, numStripes - 1)];
+        for (int i = 0; i < workers.length; i++) {
+            final int stripe = i + 1;
+            workers[i] =
+                    new Thread(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    workerLoop(stripe);
+                                }
+                            },
+                            "RowStripe-" + stripe);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Returns the number of stripes each task is split into. */
+    public int getNumStripes() {
+        return workers.length + 1;
+    }
+
+    /**
+     * Runs {@code task} over rows {@code [0, numRows)} and returns once every stripe is done.
+     * Calls are serialized, so a task object may be reused for the next call.
+     */
+    public synchronized void execute(final RowTask task, final int numRows) {
+        synchronized (lock) {
+            if (shutdown || workers.length == 0 || numRows <= 1) {
+                task.run(0, numRows);
+                return;
+            }
+            this.task = task;
+            this.numRows = numRows;
+            pending = workers.length;
+            generation++;
+            lock.notifyAll();
+        }
+
+        runStripe(task, numRows, 0);
+
+        boolean interrupted = false;
+        synchronized (lock) {
+            // Workers are writing into the caller's buffers, so wait for them even if interrupted.
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            this.task = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Stops the worker threads. Tasks executed afterwards run serially on the calling thread. */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void runStripe(final RowTask task, final int numRows, final int stripe) {
+        final int numStripes = workers.length + 1;
+        final int startRow = (int) ((long) numRows * stripe / numStripes);
+        final int endRow = (int) ((long) numRows * (stripe + 1) / numStripes);
+        if (startRow < endRow) {
+            task.run(startRow, endRow);
+        }
+    }
+
+    private void workerLoop(final int stripe) {
+        long seenGeneration = 0;
+        while (true) {
+            final RowTask currentTask;
+            final int currentRows;
+            synchronized (lock) {
+                while (!shutdown && generation == seenGeneration) {
+                    try {
+                        lock.wait();
+                    } catch (final InterruptedException e) {
+                        LOGGER.w("Row stripe worker %d interrupted", stripe);
+                    }
+                }
+                if (generation == seenGeneration) {
+                    // Shut down with no task left to finish.
+                    return;
+                }
+                seenGeneration = generation;
+                currentTask = task;
+                currentRows = numRows;
+            }
+            try {
+                runStripe(currentTask, currentRows, stripe);
+            } catch (final RuntimeException e) {
+                LOGGER.e(e, "Exception!");
+            } finally {
+                synchronized (lock) {
+                    if (--pending == 0) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
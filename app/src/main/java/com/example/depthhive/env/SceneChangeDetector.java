@@ -0,0 +1,199 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides per frame whether the scene has changed enough to re-run depth estimation, or whether
+ * the previous depth map can be re-published.
+ *
+ * <p>The luminance plane is reduced to a coarse grid of cell means by sparse sampling, and compared
+ * with the grid of the last frame that was actually estimated. Comparing against that reference,
+ * rather than the previous frame, keeps slow drift from accumulating unnoticed. A frame is
+ * re-estimated if the mean cell difference or the fraction of strongly changed cells exceeds its
+ * threshold, or if the previous depth map is older than the maximum reuse age.
+ *
+ * <p>Examining a frame does not change the reference. The caller copies the cells of a frame it
+ * estimates with {@link #copyCells} and hands them to {@link #commitReference} once the depth map
+ * of that frame is published, so that a frame dropped on the way to inference never becomes the
+ * reference. Examining and committing may happen on different threads.
+ */
+public class SceneChangeDetector {
+    /** Number of luminance samples taken along each axis of a grid cell. */
+    private static final int SAMPLES_PER_CELL_AXIS = 4;
+
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int[] cells;
+    private final int[] referenceCells;
+    private boolean hasReference = false;
+    private long referenceTimestampMs;
+
+    private float meanDifferenceThreshold = 4.0f;
+    private int cellDifferenceThreshold = 24;
+    private float changedFractionThreshold = 0.05f;
+    private long maxReuseAgeMs = 500;
+
+    private long computedCount = 0;
+    private long reusedCount = 0;
+
+    /** Creates a detector that compares frames on a {@code gridWidth x gridHeight} grid. */
+    public SceneChangeDetector(final int gridWidth, final int gridHeight) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        cells = new int[gridWidth * gridHeight];
+        referenceCells = new int[gridWidth * gridHeight];
+    }
+
+    /**
+     * Sets the change thresholds.
+     *
+     * @param meanDifference Mean absolute difference of the cell luminances, in 8-bit levels, above
+     *     which the scene is considered changed.
+     * @param cellDifference Absolute difference above which a single cell counts as changed.
+     * @param changedFraction Fraction of changed cells above which the scene is considered changed.
+     */
+    public void setThresholds(
+            final float meanDifference, final int cellDifference, final float changedFraction) {
+        this.meanDifferenceThreshold = meanDifference;
+        this.cellDifferenceThreshold = cellDifference;
+        this.changedFractionThreshold = changedFraction;
+    }
+
+    /** Sets how long a depth map may be re-published before estimation is forced. */
+    public void setMaxReuseAgeMs(final long maxReuseAgeMs) {
+        this.maxReuseAgeMs = maxReuseAgeMs;
+    }
+
+    /** Forces the next frame to be estimated, e.g. after the estimator changed. */
+    public synchronized void reset() {
+        hasReference = false;
+    }
+
+    /** Returns the number of frames that were estimated and committed. */
+    public synchronized long getComputedCount() {
+        return computedCount;
+    }
+
+    /** Returns the number of frames that re-used the previous depth map. */
+    public synchronized long getReusedCount() {
+        return reusedCount;
+    }
+
+    /** Returns the number of grid cells, the length of the arrays of {@link #copyCells}. */
+    public int getCellCount() {
+        return cells.length;
+    }
+
+    /** Copies the cells of the frame examined last into {@code dst}. */
+    public synchronized void copyCells(final int[] dst) {
+        System.arraycopy(cells, 0, dst, 0, cells.length);
+    }
+
+    /**
+     * Makes a frame the reference later frames are compared with, once its depth map is
+     * published.
+     *
+     * @param frameCells The cells of the frame, copied with {@link #copyCells} when examined.
+     * @param timestampMs The timestamp the frame was examined with.
+     */
+    public synchronized void commitReference(final int[] frameCells, final long timestampMs) {
+        System.arraycopy(frameCells, 0, referenceCells, 0, referenceCells.length);
+        referenceTimestampMs = timestampMs;
+        hasReference = true;
+        computedCount++;
+    }
+
+    /**
+     * Examines a frame given as a luminance array, without changing the reference.
+     *
+     * @return true if the frame should be estimated, false if the previous depth map can be reused.
+     */
+    public synchronized boolean shouldEstimate(
+            final byte[] luminance,
+            final int width,
+            final int height,
+            final int rowStride,
+            final long timestampMs) {
+        for (int gy = 0, c = 0; gy < gridHeight; gy++) {
+            for (int gx = 0; gx < gridWidth; gx++, c++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES_PER_CELL_AXIS; sy++) {
+                    final int rowOffset = sampleCoordinate(gy, sy, gridHeight, height) * rowStride;
+                    for (int sx = 0; sx < SAMPLES_PER_CELL_AXIS; sx++) {
+                        sum += 0xff & luminance[rowOffset + sampleCoordinate(gx, sx, gridWidth, width)];
+                    }
+                }
+                cells[c] = sum / (SAMPLES_PER_CELL_AXIS * SAMPLES_PER_CELL_AXIS);
+            }
+        }
+        return decide(timestampMs);
+    }
+
+    /**
+     * Examines a frame given as a luminance plane buffer, without changing the reference. Only
+     * absolute reads are used.
+     *
+     * @return true if the frame should be estimated, false if the previous depth map can be reused.
+     */
+    public synchronized boolean shouldEstimate(
+            final ByteBuffer luminance,
+            final int width,
+            final int height,
+            final int rowStride,
+            final long timestampMs) {
+        for (int gy = 0, c = 0; gy < gridHeight; gy++) {
+            for (int gx = 0; gx < gridWidth; gx++, c++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES_PER_CELL_AXIS; sy++) {
+                    final int rowOffset = sampleCoordinate(gy, sy, gridHeight, height) * rowStride;
+                    for (int sx = 0; sx < SAMPLES_PER_CELL_AXIS; sx++) {
+                        sum += 0xff & luminance.get(rowOffset + sampleCoordinate(gx, sx, gridWidth, width));
+                    }
+                }
+                cells[c] = sum / (SAMPLES_PER_CELL_AXIS * SAMPLES_PER_CELL_AXIS);
+            }
+        }
+        return decide(timestampMs);
+    }
+
+    /** Returns the image coordinate of sample {@code s} inside grid cell {@code cell}. */
+    private static int sampleCoordinate(final int cell, final int s, final int gridSize, final int size) {
+        return (int) (((long) (2 * (cell * SAMPLES_PER_CELL_AXIS + s) + 1) * size)
+                / (2L * gridSize * SAMPLES_PER_CELL_AXIS));
+    }
+
+    private boolean decide(final long timestampMs) {
+        boolean estimate = !hasReference || timestampMs - referenceTimestampMs >= maxReuseAgeMs;
+        if (!estimate) {
+            int totalDifference = 0;
+            int changedCells = 0;
+            for (int c = 0; c < cells.length; c++) {
+                final int difference = Math.abs(cells[c] - referenceCells[c]);
+                totalDifference += difference;
+                if (difference > cellDifferenceThreshold) {
+                    changedCells++;
+                }
+            }
+            estimate =
+                    totalDifference > meanDifferenceThreshold * cells.length
+                            || changedCells > changedFractionThreshold * cells.length;
+        }
+
+        if (!estimate) {
+            reusedCount++;
+        }
+        return estimate;
+    }
+}
@@ -0,0 +1,208 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.Arrays;
+
+/**
+ * Reduces depth frames to the nearest obstacles in a fan of angular sectors, for navigation
+ * feedback.
+ *
+ * <p>The columns of the depth map are assigned to sectors of equal angle across the horizontal
+ * field of view, and a horizontal band of rows is sampled on a sparse grid. Per sector, the exact
+ * nearest distance is tracked along with a histogram of distances, from which a low percentile and
+ * the occupied fraction are read. The column-to-sector map is rebuilt only when the width or the
+ * field of view changes and all other state is preallocated, so nothing is allocated per frame.
+ */
+public class SectorObstacleEngine {
+    /** Width of the distance histogram bins, bounding the resolution of the percentile. */
+    private static final float BIN_METERS = 0.05f;
+
+    /** Distances up to which depth samples are counted as invalid. */
+    private static final float MIN_VALID_METERS = 0.01f;
+
+    private final int numSectors;
+    private float horizontalFovRadians;
+    private final float maxRangeMeters;
+    private final int numBins;
+
+    /** Distance histogram of each sector, {@link #numBins} bins per sector. */
+    private final int[] histograms;
+    private final int[] numValid;
+    private final int[] numOccupied;
+    private final float[] nearest;
+
+    /** Sector of each depth map column, rebuilt when the width or field of view changes. */
+    private int[] sectorOfColumn = new int[0];
+
+    private float occupiedMeters = 1.5f;
+    private float percentile = 0.05f;
+    private float bandTop = 0.2f;
+    private float bandBottom = 0.8f;
+    private int sampleStep = 2;
+
+    private long lastAnalysisNanos = 0;
+
+    /**
+     * @param numSectors The number of sectors the field of view is divided into.
+     * @param horizontalFovDegrees The horizontal field of view of the depth map.
+     * @param maxRangeMeters Distances beyond which the histogram saturates.
+     */
+    public SectorObstacleEngine(
+            final int numSectors, final float horizontalFovDegrees, final float maxRangeMeters) {
+        this.numSectors = numSectors;
+        this.horizontalFovRadians = (float) Math.toRadians(horizontalFovDegrees);
+        this.maxRangeMeters = maxRangeMeters;
+        numBins = (int) Math.ceil(maxRangeMeters / BIN_METERS);
+        histograms = new int[numSectors * numBins];
+        numValid = new int[numSectors];
+        numOccupied = new int[numSectors];
+        nearest = new float[numSectors];
+    }
+
+    /**
+     * Sets what counts as an obstacle.
+     *
+     * @param occupiedMeters Distance below which a depth sample counts as occupied.
+     * @param percentile Fraction of the depth samples of a sector reported as its low percentile.
+     */
+    public void setThresholds(final float occupiedMeters, final float percentile) {
+        this.occupiedMeters = occupiedMeters;
+        this.percentile = percentile;
+    }
+
+    /**
+     * Sets the band of rows that is sampled, as fractions of the height from the top, e.g. to
+     * leave out the ceiling and the floor right ahead.
+     */
+    public void setRowBand(final float top, final float bottom) {
+        this.bandTop = top;
+        this.bandBottom = bottom;
+    }
+
+    /**
+     * Sets the horizontal field of view of the depth map, e.g. once the camera intrinsics are
+     * known. The column-to-sector map is only rebuilt if the field of view differs.
+     */
+    public void setHorizontalFov(final float horizontalFovDegrees) {
+        final float radians = (float) Math.toRadians(horizontalFovDegrees);
+        if (radians != horizontalFovRadians) {
+            horizontalFovRadians = radians;
+            sectorOfColumn = new int[0];
+        }
+    }
+
+    /** Sets the distance between sampled rows and columns, trading accuracy for speed. */
+    public void setSampleStep(final int sampleStep) {
+        this.sampleStep = Math.max(1, sampleStep);
+    }
+
+    public int getSectorCount() {
+        return numSectors;
+    }
+
+    /** Returns the duration of the last {@link #analyze} in nanoseconds. */
+    public long getLastAnalysisNanos() {
+        return lastAnalysisNanos;
+    }
+
+    /**
+     * Analyzes a depth map in meters, laid out row by row with a stride of {@code width}, and
+     * writes the sectors into {@code result}, which must have as many sectors as the engine.
+     */
+    public void analyze(
+            final float[] depth,
+            final int width,
+            final int height,
+            final long timestampNs,
+            final ObstacleSectors result) {
+        final long startTime = System.nanoTime();
+        if (sectorOfColumn.length != width) {
+            sectorOfColumn = computeSectorOfColumn(width, numSectors, horizontalFovRadians);
+        }
+        Arrays.fill(histograms, 0);
+        Arrays.fill(numValid, 0);
+        Arrays.fill(numOccupied, 0);
+        Arrays.fill(nearest, Float.POSITIVE_INFINITY);
+
+        final int rowStart = Math.max(0, Math.min(height, Math.round(bandTop * height)));
+        final int rowEnd = Math.max(rowStart, Math.min(height, Math.round(bandBottom * height)));
+        final float binsPerMeter = 1f / BIN_METERS;
+        for (int y = rowStart; y < rowEnd; y += sampleStep) {
+            final int rowOffset = y * width;
+            for (int x = sampleStep / 2; x < width; x += sampleStep) {
+                final float d = depth[rowOffset + x];
+                // Also rejects NaN.
+                if (!(d > MIN_VALID_METERS)) {
+                    continue;
+                }
+                final int sector = sectorOfColumn[x];
+                numValid[sector]++;
+                if (d < occupiedMeters) {
+                    numOccupied[sector]++;
+                }
+                if (d < nearest[sector]) {
+                    nearest[sector] = d;
+                }
+                final int bin = d >= maxRangeMeters ? numBins - 1 : (int) (d * binsPerMeter);
+                histograms[sector * numBins + bin]++;
+            }
+        }
+
+        for (int s = 0; s < numSectors; s++) {
+            if (numValid[s] == 0) {
+                result.set(s, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, 0f);
+                continue;
+            }
+            result.set(
+                    s,
+                    nearest[s],
+                    Math.max(nearest[s], getPercentileMeters(s)),
+                    (float) numOccupied[s] / numValid[s]);
+        }
+        result.setTimestampNs(timestampNs);
+        lastAnalysisNanos = System.nanoTime() - startTime;
+    }
+
+    /** Returns the center of the histogram bin holding the percentile of a sector. */
+    private float getPercentileMeters(final int sector) {
+        final int target = Math.max(1, (int) Math.ceil(percentile * numValid[sector]));
+        final int offset = sector * numBins;
+        int count = 0;
+        for (int b = 0; b < numBins; b++) {
+            count += histograms[offset + b];
+            if (count >= target) {
+                return Math.min((b + 0.5f) * BIN_METERS, maxRangeMeters);
+            }
+        }
+        return maxRangeMeters;
+    }
+
+    /**
+     * Assigns columns to sectors of equal angle, given a pinhole projection spanning the field of
+     * view across the width.
+     */
+    static int[] computeSectorOfColumn(
+            final int width, final int numSectors, final float horizontalFovRadians) {
+        final int[] sectors = new int[width];
+        final double halfFov = horizontalFovRadians / 2.0;
+        final double tanHalfFov = Math.tan(halfFov);
+        for (int x = 0; x < width; x++) {
+            final double u = (2.0 * x + 1.0) / width - 1.0;
+            final double angle = Math.atan(u * tanHalfFov);
+            final int sector = (int) ((angle + halfFov) / horizontalFovRadians * numSectors);
+            sectors[x] = Math.max(0, Math.min(numSectors - 1, sector));
+        }
+        return sectors;
+    }
+}
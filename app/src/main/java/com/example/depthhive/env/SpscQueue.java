@@ -0,0 +1,82 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * <p>Elements live in a power-of-two ring indexed by two ever-increasing counters, so neither
+ * {@link #offer} nor {@link #poll} allocates or blocks.
+ */
+final class SpscQueue<T> {
+    private final Object[] elements;
+    private final int mask;
+
+    /** Index of the next element to poll, written only by the consumer. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Index of the next element to offer, written only by the producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Creates a queue holding at least {@code capacity} elements. */
+    SpscQueue(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        elements = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Appends an element. Must only be called by the producer thread.
+     *
+     * @return false if the queue is full.
+     */
+    boolean offer(final T element) {
+        final long t = tail.get();
+        if (t - head.get() == elements.length) {
+            return false;
+        }
+        elements[(int) t & mask] = element;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element. Must only be called by the consumer thread.
+     *
+     * @return the element, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        final long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        final int index = (int) h & mask;
+        final T element = (T) elements[index];
+        elements[index] = null;
+        head.set(h + 1);
+        return element;
+    }
+
+    /** Returns the number of queued elements. May be called from any thread. */
+    int size() {
+        // The head is read first, so that a concurrent poll can not make the size negative.
+        final long h = head.get();
+        return (int) (tail.get() - h);
+    }
+}
@@ -0,0 +1,243 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.env;
+
+import java.util.Arrays;
+
+/**
+ * Smooths consecutive depth maps in place, so that the flicker of single-frame estimates does not
+ * reach obstacle warnings.
+ *
+ * <p>Every pixel keeps its own estimate, updated either by an exponential moving average or by a
+ * one-dimensional Kalman filter whose noise grows with the depth, as the error of monocular depth
+ * does. Measurements too far from the estimate are rejected by a gate and the estimate is kept,
+ * until a pixel has missed too many frames in a row and restarts from the measurement. If a large
+ * fraction of the frame is rejected at once the scene has changed, e.g. the camera turned, and
+ * every pixel restarts from the new frame.
+ *
+ * <p>The state lives in arrays reused while the size is unchanged, and rows are filtered in
+ * stripes on a {@link RowStripeExecutor}, so nothing is allocated per frame.
+ */
+public class TemporalDepthFilter {
+    /** How the estimate of a pixel follows its measurements. */
+    public enum Mode {
+        /** Exponential moving average with a fixed weight of new measurements. */
+        EMA,
+        /** Kalman filter with a constant-depth model. */
+        KALMAN
+    }
+
+    /** Distance always tolerated by the gate, for estimates close to the camera. */
+    private static final float GATE_FLOOR_METERS = 0.1f;
+
+    private final RowStripeExecutor executor;
+    private final FilterTask task = new FilterTask();
+
+    private Mode mode = Mode.KALMAN;
+    private float emaAlpha = 0.3f;
+    private float processNoise = 0.05f;
+    private float measurementNoise = 0.1f;
+    private float gateFraction = 0.3f;
+    private int maxMisses = 3;
+    private float resetFraction = 0.5f;
+
+    private int width = 0;
+    private int height = 0;
+
+    /** Estimate of each pixel in meters; zero until the first valid measurement. */
+    private float[] estimate = new float[0];
+
+    /** Variance of the estimate of each pixel, in square meters, for the Kalman mode. */
+    private float[] variance = new float[0];
+
+    /** Number of consecutive measurements each pixel rejected. */
+    private byte[] misses = new byte[0];
+
+    /** Copy of the measurements of the current frame, for restarting after a scene change. */
+    private float[] measurement = new float[0];
+
+    /** Number of measurements rejected in each row of the current frame. */
+    private int[] rejectedPerRow = new int[0];
+
+    private long resetCount = 0;
+
+    /** @param numStripes The number of threads filtering rows, including the caller. */
+    public TemporalDepthFilter(final int numStripes) {
+        executor = new RowStripeExecutor(numStripes);
+    }
+
+    public void setMode(final Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Sets the weight of a new measurement in the moving average. */
+    public void setEmaAlpha(final float emaAlpha) {
+        this.emaAlpha = emaAlpha;
+    }
+
+    /**
+     * Sets the noise of the Kalman filter, as standard deviations relative to the depth.
+     *
+     * @param process Drift of the true depth between two frames.
+     * @param measurement Error of a single depth estimate.
+     */
+    public void setKalmanNoise(final float process, final float measurement) {
+        this.processNoise = process;
+        this.measurementNoise = measurement;
+    }
+
+    /**
+     * Sets the outlier gate.
+     *
+     * @param fraction Deviation from the estimate, relative to it, beyond which a measurement is
+     *     rejected.
+     * @param maxMisses Number of consecutive rejections after which a pixel restarts.
+     * @param resetFraction Fraction of rejected pixels beyond which every pixel restarts.
+     */
+    public void setGate(final float fraction, final int maxMisses, final float resetFraction) {
+        this.gateFraction = fraction;
+        this.maxMisses = Math.max(0, Math.min(Byte.MAX_VALUE, maxMisses));
+        this.resetFraction = resetFraction;
+    }
+
+    /** Returns the number of times the whole frame restarted after a scene change. */
+    public long getResetCount() {
+        return resetCount;
+    }
+
+    /** Forgets all estimates, e.g. after the estimator changed. */
+    public void reset() {
+        Arrays.fill(estimate, 0f);
+        Arrays.fill(variance, 0f);
+        Arrays.fill(misses, (byte) 0);
+    }
+
+    /**
+     * Filters a depth map in meters, laid out row by row with a stride of {@code width}, in place.
+     * Invalid depths, such as zero or NaN, are replaced by the estimate where there is one.
+     */
+    public void filter(final float[] depth, final int width, final int height) {
+        if (width != this.width || height != this.height) {
+            resize(width, height);
+        }
+        task.depth = depth;
+        executor.execute(task, height);
+        task.depth = null;
+
+        int numRejected = 0;
+        for (int y = 0; y < height; y++) {
+            numRejected += rejectedPerRow[y];
+        }
+        if (numRejected > resetFraction * width * height) {
+            // The scene changed: every pixel restarts from the new frame.
+            resetCount++;
+            reset();
+            System.arraycopy(measurement, 0, depth, 0, width * height);
+            for (int i = 0; i < width * height; i++) {
+                final float z = measurement[i];
+                if (z > 0f) {
+                    estimate[i] = z;
+                    variance[i] = square(measurementNoise * z);
+                }
+            }
+        }
+    }
+
+    /** Stops the worker threads. */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void resize(final int width, final int height) {
+        final int numPixels = width * height;
+        estimate = new float[numPixels];
+        variance = new float[numPixels];
+        misses = new byte[numPixels];
+        measurement = new float[numPixels];
+        rejectedPerRow = new int[height];
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Filters rows {@code [startRow, endRow)} of the current depth map. */
+    private void filterRows(final float[] depth, final int startRow, final int endRow) {
+        final boolean kalman = mode == Mode.KALMAN;
+        for (int y = startRow; y < endRow; y++) {
+            final int rowStart = y * width;
+            final int rowEnd = rowStart + width;
+            System.arraycopy(depth, rowStart, measurement, rowStart, width);
+            int numRejected = 0;
+            for (int i = rowStart; i < rowEnd; i++) {
+                final float z = depth[i];
+                float x = estimate[i];
+                // Also rejects NaN.
+                if (!(z > 0f)) {
+                    if (x > 0f) {
+                        depth[i] = x;
+                    }
+                    continue;
+                }
+                if (!(x > 0f)) {
+                    estimate[i] = z;
+                    variance[i] = square(measurementNoise * z);
+                    misses[i] = 0;
+                    continue;
+                }
+                final float residual = z - x;
+                if (Math.abs(residual) > gateFraction * x + GATE_FLOOR_METERS) {
+                    numRejected++;
+                    if (misses[i] < maxMisses) {
+                        misses[i]++;
+                        depth[i] = x;
+                        continue;
+                    }
+                    // Persistently different: the pixel restarts from the measurement.
+                    estimate[i] = z;
+                    variance[i] = square(measurementNoise * z);
+                    misses[i] = 0;
+                    continue;
+                }
+                misses[i] = 0;
+                if (kalman) {
+                    final float p = variance[i] + square(processNoise * x);
+                    final float gain = p / (p + square(measurementNoise * z));
+                    x += gain * residual;
+                    variance[i] = (1f - gain) * p;
+                } else {
+                    x += emaAlpha * residual;
+                }
+                estimate[i] = x;
+                depth[i] = x;
+            }
+            rejectedPerRow[y] = numRejected;
+        }
+    }
+
+    private static float square(final float value) {
+        return value * value;
+    }
+
+    /** Runs {@link #filterRows} for the stripes of the executor, re-armed for every frame. */
+    private final class FilterTask implements RowStripeExecutor.RowTask {
+        float[] depth;
+
+        @Override
+        public void run(final int startRow, final int endRow) {
+            filterRows(depth, startRow, endRow);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.os.Build;
+import android.os.SystemClock;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import com.example.depthhive.BuildConfig;
+import com.example.depthhive.env.Logger;
+import com.example.depthhive.tflite.DepthEstimator.Device;
+import com.example.depthhive.tflite.DepthEstimator.Model;
+import org.tensorflow.lite.support.common.FileUtil;
+
+/**
+ * Benchmarks estimator configurations on synthetic frames and remembers the best one.
+ *
+ * <p>Every device, a range of thread counts and both model variants are timed, on the CPU also
+ * with several interpreters inferring concurrently. The chosen configuration is the fastest one
+ * meeting the latency target, preferring the float model for its accuracy; if none meets the
+ * target, the fastest one overall. The result is persisted keyed by
+ * device model, app version and a checksum of the model files, so tuning runs again after an
+ * update or on another device.
+ */
+public final class AutoTuner {
+    private static final Logger LOGGER = new Logger();
+
+    private static final String PREFERENCES_NAME = "autotune";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_MODEL = "model";
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_NUM_THREADS = "num_threads";
+    private static final String KEY_NUM_INTERPRETERS = "num_interpreters";
+    private static final String KEY_LATENCY_MS = "latency_ms";
+    private static final String KEY_CHECKSUM_SOURCE = "checksum_source";
+    private static final String KEY_CHECKSUM = "checksum";
+
+    /** Highest thread count tried, matching the limit of the bottom sheet. */
+    private static final int MAX_NUM_THREADS = 9;
+
+    /** Number of untimed inferences per configuration. */
+    private static final int NUM_WARM_UP_RUNS = 1;
+
+    /** Number of timed inferences per configuration; the median is used. */
+    private static final int NUM_TIMED_RUNS = 5;
+
+    /** Chunk size used to checksum the model files. */
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    /** An estimator configuration together with its measured latency. */
+    public static final class Configuration {
+        private final Model model;
+        private final Device device;
+        private final int numThreads;
+        private final int numInterpreters;
+        private final float latencyMs;
+
+        public Configuration(
+                final Model model, final Device device, final int numThreads, final float latencyMs) {
+            this(model, device, numThreads, 1, latencyMs);
+        }
+
+        public Configuration(
+                final Model model,
+                final Device device,
+                final int numThreads,
+                final int numInterpreters,
+                final float latencyMs) {
+            this.model = model;
+            this.device = device;
+            this.numThreads = numThreads;
+            this.numInterpreters = numInterpreters;
+            this.latencyMs = latencyMs;
+        }
+
+        public Model getModel() {
+            return model;
+        }
+
+        public Device getDevice() {
+            return device;
+        }
+
+        public int getNumThreads() {
+            return numThreads;
+        }
+
+        /** Returns the number of interpreters inferring concurrently, each with the threads. */
+        public int getNumInterpreters() {
+            return numInterpreters;
+        }
+
+        /**
+         * Returns the median inference latency divided by the number of interpreters, i.e. the
+         * time per frame while all of them are busy, or infinity if the configuration failed.
+         */
+        public float getLatencyMs() {
+            return latencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.US,
+                    "%s/%s/%dx%d threads: %.1fms",
+                    model,
+                    device,
+                    numInterpreters,
+                    numThreads,
+                    latencyMs);
+        }
+    }
+
+    private final Activity activity;
+    private final float latencyTargetMs;
+    private final int maxNumInterpreters;
+    private final SharedPreferences preferences;
+
+    /**
+     * @param latencyTargetMs The inference latency a configuration has to meet to be preferred
+     *     for its model variant.
+     * @param maxNumInterpreters The highest number of concurrent interpreters tried on the CPU.
+     */
+    public AutoTuner(
+            final Activity activity, final float latencyTargetMs, final int maxNumInterpreters) {
+        this.activity = activity;
+        this.latencyTargetMs = latencyTargetMs;
+        this.maxNumInterpreters = maxNumInterpreters;
+        preferences = activity.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the configuration stored by the last {@link #tune} on this device, app version and
+     * model files, or null if tuning has to run.
+     */
+    public Configuration loadTunedConfiguration() {
+        final String fingerprint;
+        try {
+            fingerprint = getFingerprint();
+        } catch (final IOException e) {
+            LOGGER.e(e, "Failed to checksum the model files.");
+            return null;
+        }
+        if (!fingerprint.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+        try {
+            return new Configuration(
+                    Model.valueOf(preferences.getString(KEY_MODEL, null)),
+                    Device.valueOf(preferences.getString(KEY_DEVICE, null)),
+                    preferences.getInt(KEY_NUM_THREADS, 1),
+                    // Written as one interpreter by versions that did not tune the count.
+                    Math.min(preferences.getInt(KEY_NUM_INTERPRETERS, 1), maxNumInterpreters),
+                    preferences.getFloat(KEY_LATENCY_MS, Float.POSITIVE_INFINITY));
+        } catch (final IllegalArgumentException | NullPointerException e) {
+            // Written by a version with other models or devices.
+            return null;
+        }
+    }
+
+    /**
+     * Benchmarks every candidate configuration, stores the chosen one and returns it. Takes several
+     * seconds, so it must not run on the UI thread, nor while frames are being inferred.
+     *
+     * @return the chosen configuration, or null if no configuration could be run.
+     */
+    public Configuration tune() throws IOException {
+        final String fingerprint = getFingerprint();
+        final List<Configuration> results = new ArrayList<Configuration>();
+        for (final Configuration candidate : getCandidates()) {
+            final Configuration result = benchmark(candidate);
+            LOGGER.i("Autotune %s", result);
+            results.add(result);
+        }
+        final Configuration chosen = choose(results, latencyTargetMs);
+        if (chosen == null) {
+            return null;
+        }
+        LOGGER.i("Autotune chose %s", chosen);
+        preferences
+                .edit()
+                .putString(KEY_FINGERPRINT, fingerprint)
+                .putString(KEY_MODEL, chosen.getModel().name())
+                .putString(KEY_DEVICE, chosen.getDevice().name())
+                .putInt(KEY_NUM_THREADS, chosen.getNumThreads())
+                .putInt(KEY_NUM_INTERPRETERS, chosen.getNumInterpreters())
+                .putFloat(KEY_LATENCY_MS, chosen.getLatencyMs())
+                .apply();
+        return chosen;
+    }
+
+    /**
+     * Returns the configurations to benchmark. Thread and interpreter counts only apply to the
+     * CPU; several interpreters are only tried while their threads fit on the processors.
+     */
+    static List<Configuration> getCandidates(
+            final int numProcessors, final int maxNumInterpreters) {
+        final List<Configuration> candidates = new ArrayList<Configuration>();
+        final int maxNumThreads = Math.max(1, Math.min(numProcessors, MAX_NUM_THREADS));
+        for (final Model model : Model.values()) {
+            for (final Device device : Device.values()) {
+                if (device == Device.GPU && model == Model.QUANTIZED_MOBILENET) {
+                    // GPU doesn't support quantized models.
+                    continue;
+                }
+                if (device != Device.CPU) {
+                    candidates.add(new Configuration(model, device, 1, Float.POSITIVE_INFINITY));
+                    continue;
+                }
+                for (int numInterpreters = 1;
+                        numInterpreters <= maxNumInterpreters;
+                        numInterpreters++) {
+                    final int numThreadCounts =
+                            numInterpreters == 1 ? maxNumThreads : numProcessors / numInterpreters;
+                    for (int numThreads = 1; numThreads <= numThreadCounts; numThreads++) {
+                        candidates.add(
+                                new Configuration(
+                                        model,
+                                        device,
+                                        numThreads,
+                                        numInterpreters,
+                                        Float.POSITIVE_INFINITY));
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private List<Configuration> getCandidates() {
+        return getCandidates(Runtime.getRuntime().availableProcessors(), maxNumInterpreters);
+    }
+
+    /**
+     * Chooses among benchmark results: the fastest configuration meeting the target for the first
+     * model variant of {@link Model} that has one, otherwise the fastest configuration overall.
+     *
+     * @return the chosen configuration, or null if every configuration failed.
+     */
+    static Configuration choose(final List<Configuration> results, final float latencyTargetMs) {
+        for (final Model model : Model.values()) {
+            final Configuration fastest = getFastest(results, model, latencyTargetMs);
+            if (fastest != null) {
+                return fastest;
+            }
+        }
+        return getFastest(results, null, Float.POSITIVE_INFINITY);
+    }
+
+    /** Returns the fastest result for {@code model}, or any model if null, within the limit. */
+    private static Configuration getFastest(
+            final List<Configuration> results, final Model model, final float maxLatencyMs) {
+        Configuration fastest = null;
+        for (final Configuration result : results) {
+            if ((model != null && result.getModel() != model)
+                    || !(result.getLatencyMs() <= maxLatencyMs)
+                    || Float.isInfinite(result.getLatencyMs())) {
+                continue;
+            }
+            if (fastest == null || result.getLatencyMs() < fastest.getLatencyMs()) {
+                fastest = result;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Times a candidate on a synthetic frame, returning an infinite latency if it fails. With
+     * several interpreters, each one runs the timed inferences on its own thread at the same time.
+     */
+    private Configuration benchmark(final Configuration candidate) {
+        DepthEstimator estimator = null;
+        try {
+            estimator =
+                    DepthEstimator.create(
+                            activity,
+                            candidate.getModel(),
+                            candidate.getDevice(),
+                            candidate.getNumThreads(),
+                            candidate.getNumInterpreters());
+            final int numInterpreters = estimator.getInterpreterCount();
+            final int width = estimator.getImageSizeX();
+            final int height = estimator.getImageSizeY();
+            final int[] frame = createSyntheticFrame(width, height);
+            final ByteBuffer[] inputs = new ByteBuffer[numInterpreters];
+            for (int i = 0; i < numInterpreters; i++) {
+                inputs[i] = estimator.createInputBuffer();
+                estimator.convertImage(frame, width, height, 0, inputs[i]);
+            }
+
+            estimator.warmUp(NUM_WARM_UP_RUNS);
+            final long[] latencies = new long[numInterpreters * NUM_TIMED_RUNS];
+            final RuntimeException[] failures = new RuntimeException[numInterpreters];
+            final Thread[] workers = new Thread[numInterpreters - 1];
+            final DepthEstimator timed = estimator;
+            for (int i = 0; i < workers.length; i++) {
+                final int worker = i + 1;
+                workers[i] =
+                        new Thread(
+                                () -> timeInferences(timed, inputs, worker, latencies, failures));
+                workers[i].start();
+            }
+            timeInferences(timed, inputs, 0, latencies, failures);
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+            for (final RuntimeException failure : failures) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            Arrays.sort(latencies);
+            return new Configuration(
+                    candidate.getModel(),
+                    candidate.getDevice(),
+                    candidate.getNumThreads(),
+                    numInterpreters,
+                    latencies[latencies.length / 2] / 1e6f / numInterpreters);
+        } catch (final IOException | RuntimeException e) {
+            // E.g. a delegate the device does not support.
+            LOGGER.w("Autotune could not run %s: %s", candidate, e);
+            return candidate;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return candidate;
+        } finally {
+            if (estimator != null) {
+                estimator.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the timed inferences of one interpreter on {@code inputs[worker]}, storing their
+     * latencies in its range of {@code latencies}, or the failure in {@code failures[worker]}.
+     */
+    private static void timeInferences(
+            final DepthEstimator estimator,
+            final ByteBuffer[] inputs,
+            final int worker,
+            final long[] latencies,
+            final RuntimeException[] failures) {
+        final int[] depthPixels =
+                new int[estimator.getDepthMapWidth() * estimator.getDepthMapHeight()];
+        try {
+            for (int i = 0; i < NUM_TIMED_RUNS; i++) {
+                final long startTime = SystemClock.elapsedRealtimeNanos();
+                estimator.recognizeInput(inputs[worker], depthPixels);
+                latencies[worker * NUM_TIMED_RUNS + i] =
+                        SystemClock.elapsedRealtimeNanos() - startTime;
+            }
+        } catch (final RuntimeException e) {
+            failures[worker] = e;
+        }
+    }
+
+    /** Creates a textured ARGB frame, so that the benchmark does not run on uniform input. */
+    private static int[] createSyntheticFrame(final int width, final int height) {
+        final Random random = new Random(0);
+        final int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int value = ((x ^ y) + random.nextInt(32)) & 0xff;
+                argb[y * width + x] = 0xff000000 | (value << 16) | ((x & 0xff) << 8) | (y & 0xff);
+            }
+        }
+        return argb;
+    }
+
+    /**
+     * Returns a key identifying the device model, the app version and the model files. The
+     * checksum of the model files is only computed again if the app version or their sizes change.
+     */
+    private String getFingerprint() throws IOException {
+        final String checksumSource = getChecksumSource();
+        String checksum =
+                checksumSource.equals(preferences.getString(KEY_CHECKSUM_SOURCE, null))
+                        ? preferences.getString(KEY_CHECKSUM, null)
+                        : null;
+        if (checksum == null) {
+            checksum = computeChecksum();
+            preferences
+                    .edit()
+                    .putString(KEY_CHECKSUM_SOURCE, checksumSource)
+                    .putString(KEY_CHECKSUM, checksum)
+                    .apply();
+        }
+        return Build.MODEL + "/" + BuildConfig.VERSION_CODE + "/" + checksum;
+    }
+
+    /** Returns the app version and the sizes of the model files, which the checksum depends on. */
+    private String getChecksumSource() throws IOException {
+        final StringBuilder source = new StringBuilder().append(BuildConfig.VERSION_CODE);
+        for (final Model model : Model.values()) {
+            try (AssetFileDescriptor descriptor =
+                    activity.getAssets().openFd(DepthEstimator.getModelPath(model))) {
+                source.append('/').append(descriptor.getLength());
+            }
+        }
+        return source.toString();
+    }
+
+    /** Returns a checksum of the contents of the model files. */
+    private String computeChecksum() throws IOException {
+        final CRC32 checksum = new CRC32();
+        final byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+        for (final Model model : Model.values()) {
+            final MappedByteBuffer buffer =
+                    FileUtil.loadMappedFile(activity, DepthEstimator.getModelPath(model));
+            while (buffer.hasRemaining()) {
+                final int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+            }
+        }
+        return Long.toHexString(checksum.getValue());
+    }
+}
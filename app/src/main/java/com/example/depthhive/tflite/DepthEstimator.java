@@ -17,25 +17,21 @@ limitations under the License.
         import android.graphics.RectF;
         import android.os.SystemClock;
         import android.os.Trace;
+        import android.util.Log;
         import java.io.IOException;
+        import java.nio.ByteBuffer;
+        import java.nio.ByteOrder;
         import java.nio.MappedByteBuffer;
+        import java.util.HashMap;
+        import java.util.Map;
         import org.tensorflow.lite.DataType;
         import org.tensorflow.lite.Interpreter;
+        import org.tensorflow.lite.Tensor;
         import com.example.depthhive.env.Logger;
 
         import org.tensorflow.lite.gpu.GpuDelegate;
         import org.tensorflow.lite.nnapi.NnApiDelegate;
         import org.tensorflow.lite.support.common.FileUtil;
-        import org.tensorflow.lite.support.common.TensorOperator;
-        import org.tensorflow.lite.support.common.TensorProcessor;
-        import org.tensorflow.lite.support.image.ImageProcessor;
-        import org.tensorflow.lite.support.image.TensorImage;
-        import org.tensorflow.lite.support.image.ops.ResizeOp;
-        import org.tensorflow.lite.support.image.ops.ResizeOp.ResizeMethod;
-        import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp;
-        import org.tensorflow.lite.support.image.ops.Rot90Op;
-        import org.tensorflow.lite.support.image.ColorSpaceType;
-        import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 /** A classifier specialized to label images using TensorFlow Lite. */
 public abstract class DepthEstimator {
@@ -63,29 +59,97 @@ public abstract class DepthEstimator {
     /** Image size along the y axis. */
     private final int imageSizeY;
 
+    /** Ratio of the input size to the size the model was converted with. */
+    private final float inputScale;
+
     /** Optional GPU delegate for accleration. */
     private GpuDelegate gpuDelegate = null;
 
     /** Optional NNAPI delegate for accleration. */
     private NnApiDelegate nnApiDelegate = null;
 
-    /** An instance of the driver class to run model inference with Tensorflow Lite. */
+    /**
+     * An instance of the driver class to run model inference with Tensorflow Lite. The first
+     * interpreter of the pool.
+     */
     protected Interpreter tflite;
 
+    /**
+     * Interpreters backed by the same mapped model, each with private output buffers, so that
+     * several frames can be inferred at once. Guarded by itself.
+     */
+    private final PooledInterpreter[] interpreters;
+
+    /** Index of the interpreter tried first by the next inference, guarded by interpreters. */
+    private int nextInterpreter = 0;
+
+    /** Set once closed, guarded by interpreters. */
+    private boolean closed = false;
+
+    /** Number of frames holding the estimator with {@link #retain}, guarded by interpreters. */
+    private int numRetained = 0;
+
+    /** Set once the estimator is to be closed after the last {@link #release}. */
+    private boolean closeWhenReleased = false;
+
     /** Options for configuring the Interpreter. */
     private final Interpreter.Options tfliteOptions = new Interpreter.Options();
 
-    /** Input image TensorBuffer. */
-    private TensorImage inputImageBuffer;
+    /** Reused input tensor, filled in a single pass by the preprocessing plan. */
+    private final ByteBuffer inputBuffer;
+
+    /** Fused crop, resize, rotation and normalization of ARGB frames into the input tensor. */
+    private final PreprocessPlan preprocessPlan;
+
+    /** Converter from YUV camera frames to the input tensor. */
+    private final YuvInputConverter yuvInputConverter;
 
-    /** Output depth map TensorBuffer. */
-    private final TensorBuffer outputTensorBuffer;
+    /** Reused pixel array for frames passed in as Bitmaps. */
+    private int[] bitmapPixels = new int[0];
 
-    /** Output TensorImage container used to create Bitmap */
-    private final TensorImage outputDepthMapBuffer;
+    /** Width of the output depth map. */
+    private final int depthMapWidth;
 
-    /** Processer to apply post processing of the output probability. */
-    private final TensorProcessor DepthMapProcessor;
+    /** Height of the output depth map. */
+    private final int depthMapHeight;
+
+    /** Normalization of the output tensor into grayscale depth map pixels or meters. */
+    private final DepthMapWriter depthMapWriter;
+
+    /** Estimated memory held by the estimator, see {@link #getMemoryFootprint}. */
+    private final long memoryFootprint;
+
+    /**
+     * An interpreter together with its output buffers. The run arguments are cached, so that
+     * running it allocates no wrapper arrays or maps.
+     */
+    private static final class PooledInterpreter {
+        final Interpreter interpreter;
+
+        /** Raw output tensor, in native byte order. */
+        final ByteBuffer outputBuffer;
+
+        /** Input argument of the run, holding the input tensor during an inference. */
+        final Object[] inputs = new Object[1];
+
+        /** Output argument of the run, mapping the output index to {@link #outputBuffer}. */
+        final Map<Integer, Object> outputs = new HashMap<Integer, Object>();
+
+        /** Depth map pixels of the last inference, for callers passing a Bitmap. */
+        final int[] depthPixels;
+
+        /** Whether an inference is running on the interpreter. */
+        boolean busy = false;
+
+        PooledInterpreter(
+                final Interpreter interpreter, final int outputByteSize, final int numPixels) {
+            this.interpreter = interpreter;
+            outputBuffer = ByteBuffer.allocateDirect(outputByteSize);
+            outputBuffer.order(ByteOrder.nativeOrder());
+            outputs.put(0, outputBuffer);
+            depthPixels = new int[numPixels];
+        }
+    }
 
     /**
      * Creates a classifier with the provided configuration.
@@ -98,10 +162,44 @@ public abstract class DepthEstimator {
      */
     public static DepthEstimator create(Activity activity, Model model, Device device, int numThreads)
             throws IOException {
+        return create(activity, model, device, numThreads, 1);
+    }
+
+    /**
+     * Creates a classifier with a pool of interpreters, so that up to {@code numInterpreters}
+     * frames can be inferred concurrently from different threads.
+     *
+     * @param numThreads The number of threads used by each interpreter.
+     * @param numInterpreters The number of interpreters. Only the CPU supports more than one.
+     * @return A classifier with the desired configuration.
+     */
+    public static DepthEstimator create(
+            Activity activity, Model model, Device device, int numThreads, int numInterpreters)
+            throws IOException {
+        return create(activity, model, device, numThreads, numInterpreters, 1f);
+    }
+
+    /**
+     * Creates a classifier with a pool of interpreters whose input is resized by {@code
+     * inputScale}, trading accuracy for speed. Models with a fixed input size keep their size; see
+     * {@link #getInputScale}.
+     *
+     * @param inputScale The ratio of the input size to the size the model was converted with.
+     */
+    public static DepthEstimator create(
+            Activity activity,
+            Model model,
+            Device device,
+            int numThreads,
+            int numInterpreters,
+            float inputScale)
+            throws IOException {
         if (model == Model.QUANTIZED_MOBILENET) {
-            return new DepthEstimatorQuantizedMobileNet(activity, device, numThreads);
+            return new DepthEstimatorQuantizedMobileNet(
+                    activity, device, numThreads, numInterpreters, inputScale);
         } else if (model == Model.FLOAT_MOBILENET) {
-            return new DepthEstimatorFloatMobileNet(activity, device, numThreads);
+            return new DepthEstimatorFloatMobileNet(
+                    activity, device, numThreads, numInterpreters, inputScale);
         } else {
             throw new UnsupportedOperationException();
         }
@@ -110,6 +208,21 @@ public abstract class DepthEstimator {
 
     /** Initializes a {@code DepthEstimator}. */
     protected DepthEstimator(Activity activity, Device device, int numThreads) throws IOException {
+        this(activity, device, numThreads, 1, 1f);
+    }
+
+    /**
+     * Initializes a {@code DepthEstimator} with a pool of {@code numInterpreters} interpreters,
+     * whose input is resized by {@code inputScale} if the model allows it.
+     */
+    protected DepthEstimator(
+            Activity activity, Device device, int numThreads, int numInterpreters, float inputScale)
+            throws IOException {
+        if (device != Device.CPU && numInterpreters > 1) {
+            // Delegates can not be shared between interpreters.
+            LOGGER.w("Only one interpreter is supported on %s.", device);
+            numInterpreters = 1;
+        }
         tfliteModel = FileUtil.loadMappedFile(activity, getModelPath());
         switch (device) {
             case NNAPI:
@@ -129,6 +242,19 @@ public abstract class DepthEstimator {
         // Reads type and shape of input and output tensors, respectively.
         int imageTensorIndex = 0;
         int[] imageShape = tflite.getInputTensor(imageTensorIndex).shape(); // {1, height, width, 3}
+        if (inputScale != 1f) {
+            final int[] scaledShape = getScaledInputShape(imageShape, inputScale);
+            if (resizeInput(tflite, scaledShape)) {
+                imageShape = scaledShape;
+            } else {
+                LOGGER.w("Input of %s can not be resized, keeping its size.", getModelPath());
+                // A failed resize can leave the interpreter without tensors.
+                tflite.close();
+                tflite = new Interpreter(tfliteModel, tfliteOptions);
+                inputScale = 1f;
+            }
+        }
+        this.inputScale = inputScale;
         imageSizeY = imageShape[1];
         imageSizeX = imageShape[2];
         DataType imageDataType = tflite.getInputTensor(imageTensorIndex).dataType();
@@ -136,18 +262,89 @@ public abstract class DepthEstimator {
         int[] depthMapTensorShape =
                 tflite.getOutputTensor(depthMapTensorIndex).shape(); // {1, height, width, 1}
         DataType depthMapDataType = tflite.getOutputTensor(depthMapTensorIndex).dataType();
+        Tensor.QuantizationParams depthMapQuantization =
+                tflite.getOutputTensor(depthMapTensorIndex).quantizationParams();
 
         // Creates the input tensor.
-        inputImageBuffer = new TensorImage(imageDataType);
+        preprocessPlan =
+                new PreprocessPlan(
+                        imageSizeX,
+                        imageSizeY,
+                        imageDataType == DataType.UINT8,
+                        getImageMean(),
+                        getImageStd());
+        yuvInputConverter = new YuvInputConverter(preprocessPlan);
+        inputBuffer = ByteBuffer.allocateDirect(preprocessPlan.getOutputByteSize());
+        inputBuffer.order(ByteOrder.nativeOrder());
+
+        // Creates the output normalization. Float outputs are in meters, quantized outputs are
+        // dequantized into meters; a zero scale means the output is not actually quantized.
+        depthMapHeight = depthMapTensorShape[1];
+        depthMapWidth = depthMapTensorShape[2];
+        final boolean hasDepthMapScale =
+                depthMapQuantization != null && depthMapQuantization.getScale() != 0f;
+        depthMapWriter =
+                new DepthMapWriter(
+                        depthMapWidth,
+                        depthMapHeight,
+                        depthMapDataType == DataType.UINT8,
+                        getDepthMean(),
+                        getDepthStd(),
+                        hasDepthMapScale ? depthMapQuantization.getScale() : 1f,
+                        hasDepthMapScale ? depthMapQuantization.getZeroPoint() : 0);
+
+        // Creates the interpreters, each with its own output tensor.
+        interpreters = new PooledInterpreter[Math.max(1, numInterpreters)];
+        for (int i = 0; i < interpreters.length; i++) {
+            final Interpreter interpreter =
+                    i == 0 ? tflite : new Interpreter(tfliteModel, tfliteOptions);
+            if (i > 0 && this.inputScale != 1f) {
+                resizeInput(interpreter, imageShape);
+            }
+            interpreters[i] =
+                    new PooledInterpreter(
+                            interpreter,
+                            depthMapWriter.getInputByteSize(),
+                            depthMapWidth * depthMapHeight);
+        }
 
-        // Creates the output tensor and its processor.
-        outputTensorBuffer = TensorBuffer.createFixedSize(depthMapTensorShape, depthMapDataType);
-        outputDepthMapBuffer = new TensorImage(DataType.UINT8);
+        memoryFootprint =
+                tfliteModel.capacity()
+                        + inputBuffer.capacity()
+                        + (long) interpreters.length
+                                * (inputBuffer.capacity()
+                                        + depthMapWriter.getInputByteSize()
+                                        + depthMapWidth * depthMapHeight * 4);
+
+        LOGGER.d(
+                "Created a Tensorflow Lite Depth Map Estimator with %d interpreters.",
+                interpreters.length);
+    }
 
-        // Creates the post processor for the output probability.
-        DepthMapProcessor = new TensorProcessor.Builder().add(getPostprocessNormalizeOp()).build();
+    /**
+     * Returns the input shape scaled by {@code inputScale}, rounded to the stride of 32 of the
+     * encoder.
+     */
+    private static int[] getScaledInputShape(final int[] shape, final float inputScale) {
+        final int[] scaled = shape.clone();
+        scaled[1] = Math.max(1, Math.round(shape[1] * inputScale / 32)) * 32;
+        scaled[2] = Math.max(1, Math.round(shape[2] * inputScale / 32)) * 32;
+        return scaled;
+    }
 
-        LOGGER.d("Created a Tensorflow Lite Depth Map Estimator.");
+    /**
+     * Resizes the input tensor of an interpreter and reallocates its tensors.
+     *
+     * @return false if the model does not allow the new size.
+     */
+    private static boolean resizeInput(final Interpreter interpreter, final int[] shape) {
+        try {
+            interpreter.resizeInput(0, shape);
+            interpreter.allocateTensors();
+            return true;
+        } catch (final IllegalArgumentException | IllegalStateException e) {
+            return false;
+        }
     }
 
     /** Runs inference and returns the depth map. */
@@ -157,35 +354,515 @@ public abstract class DepthEstimator {
 
         Trace.beginSection("loadImage");
         long startTimeForLoadImage = SystemClock.uptimeMillis();
-        inputImageBuffer = loadImage(bitmap, sensorOrientation);
+        loadImage(bitmap, sensorOrientation);
         long endTimeForLoadImage = SystemClock.uptimeMillis();
         Trace.endSection();
         LOGGER.v("Timecost to load the image: " + (endTimeForLoadImage - startTimeForLoadImage));
 
-        // Runs the inference call.
-        Trace.beginSection("runInference");
-        long startTimeForReference = SystemClock.uptimeMillis();
-        tflite.run(inputImageBuffer.getBuffer(), outputTensorBuffer.getBuffer().rewind());
-        long endTimeForReference = SystemClock.uptimeMillis();
+        Bitmap outputDepthMap = runInference(inputBuffer);
+        Trace.endSection();
+
+        // Return Bitmap Depth Map.
+        return outputDepthMap;
+    }
+
+    /**
+     * Runs inference on an ARGB frame given as packed pixels with a row stride of {@code width},
+     * such as the output of the {@code ImageUtils} YUV converters.
+     */
+    public Bitmap recognizeImage(
+            final int[] argbPixels, final int width, final int height, final int sensorOrientation) {
+        Trace.beginSection("recognizeImage");
+        convertImage(argbPixels, width, height, sensorOrientation, inputBuffer);
+        Bitmap outputDepthMap = runInference(inputBuffer);
         Trace.endSection();
-        LOGGER.v("Timecost to run model inference: " + (endTimeForReference - startTimeForReference));
+        return outputDepthMap;
+    }
 
-        // Gets the map of label and probability.
-        outputDepthMapBuffer.load(
-                DepthMapProcessor.process(outputTensorBuffer), ColorSpaceType.GRAYSCALE);
-        Bitmap outputDepthMap = outputDepthMapBuffer.getBitmap();
+    /**
+     * Runs inference on a YUV_420_888 frame, sampling its planes straight into the input tensor
+     * instead of going through an ARGB Bitmap.
+     */
+    public Bitmap recognizeImage(
+            final byte[] yData,
+            final byte[] uData,
+            final byte[] vData,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int sensorOrientation) {
+        Trace.beginSection("recognizeImage");
+        convertImage(
+                yData, uData, vData,
+                width,
+                height,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                sensorOrientation,
+                inputBuffer);
+        Bitmap outputDepthMap = runInference(inputBuffer);
         Trace.endSection();
+        return outputDepthMap;
+    }
 
-        // Return Bitmap Depth Map.
+    /**
+     * Runs inference on a YUV_420_888 frame, reading its plane buffers in place instead of copying
+     * them into arrays first.
+     */
+    public Bitmap recognizeImage(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int sensorOrientation) {
+        Trace.beginSection("recognizeImage");
+        convertImage(
+                yBuffer, uBuffer, vBuffer,
+                width,
+                height,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                sensorOrientation,
+                inputBuffer);
+        Bitmap outputDepthMap = runInference(inputBuffer);
+        Trace.endSection();
+        return outputDepthMap;
+    }
+
+    /**
+     * Runs inference on a YUV420SP (NV21) frame, sampling it straight into the input tensor instead
+     * of going through an ARGB Bitmap.
+     */
+    public Bitmap recognizeImage(
+            final byte[] yuv420sp, final int width, final int height, final int sensorOrientation) {
+        Trace.beginSection("recognizeImage");
+        convertImage(yuv420sp, width, height, sensorOrientation, inputBuffer);
+        Bitmap outputDepthMap = runInference(inputBuffer);
+        Trace.endSection();
+        return outputDepthMap;
+    }
+
+    /**
+     * Allocates an input tensor that a frame can be converted into with {@code convertImage} ahead
+     * of {@link #recognizeInput}, so that conversion of the next frame can overlap inference.
+     */
+    public ByteBuffer createInputBuffer() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(getInputByteSize());
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /** Returns the number of bytes of an input tensor. */
+    public int getInputByteSize() {
+        return preprocessPlan.getOutputByteSize();
+    }
+
+    /**
+     * Converts an ARGB frame given as packed pixels with a row stride of {@code width} into an
+     * input tensor from {@link #createInputBuffer}. Conversions must not run concurrently, but may
+     * run on another thread than inference.
+     */
+    public void convertImage(
+            final int[] argbPixels,
+            final int width,
+            final int height,
+            final int sensorOrientation,
+            final ByteBuffer input) {
+        Trace.beginSection("loadImage");
+        long startTimeForLoadImage = SystemClock.uptimeMillis();
+        preprocessPlan.configure(width, height, sensorOrientation);
+        preprocessPlan.apply(argbPixels, input);
+        long endTimeForLoadImage = SystemClock.uptimeMillis();
+        Trace.endSection();
+        if (LOGGER.isLoggable(Log.VERBOSE)) {
+            LOGGER.v("Timecost to load the image: " + (endTimeForLoadImage - startTimeForLoadImage));
+        }
+    }
+
+    /**
+     * Converts a YUV420SP (NV21) frame into an input tensor from {@link #createInputBuffer}.
+     * Conversions must not run concurrently, but may run on another thread than inference.
+     */
+    public void convertImage(
+            final byte[] yuv420sp,
+            final int width,
+            final int height,
+            final int sensorOrientation,
+            final ByteBuffer input) {
+        Trace.beginSection("loadImage");
+        long startTimeForLoadImage = SystemClock.uptimeMillis();
+        yuvInputConverter.configure(width, height, width, width, 2, sensorOrientation);
+        yuvInputConverter.convertYUV420SP(yuv420sp, input);
+        long endTimeForLoadImage = SystemClock.uptimeMillis();
+        Trace.endSection();
+        if (LOGGER.isLoggable(Log.VERBOSE)) {
+            LOGGER.v("Timecost to load the image: " + (endTimeForLoadImage - startTimeForLoadImage));
+        }
+    }
+
+    /**
+     * Converts a YUV_420_888 frame, with one array per plane, into an input tensor from {@link
+     * #createInputBuffer}. Conversions must not run concurrently, but may run on another thread
+     * than inference.
+     */
+    public void convertImage(
+            final byte[] yData,
+            final byte[] uData,
+            final byte[] vData,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int sensorOrientation,
+            final ByteBuffer input) {
+        Trace.beginSection("loadImage");
+        long startTimeForLoadImage = SystemClock.uptimeMillis();
+        yuvInputConverter.configure(
+                width, height, yRowStride, uvRowStride, uvPixelStride, sensorOrientation);
+        yuvInputConverter.convertYUV420(yData, uData, vData, input);
+        long endTimeForLoadImage = SystemClock.uptimeMillis();
+        Trace.endSection();
+        if (LOGGER.isLoggable(Log.VERBOSE)) {
+            LOGGER.v("Timecost to load the image: " + (endTimeForLoadImage - startTimeForLoadImage));
+        }
+    }
+
+    /**
+     * Converts a YUV_420_888 frame straight from its plane buffers into an input tensor from {@link
+     * #createInputBuffer}. Conversions must not run concurrently, but may run on another thread
+     * than inference.
+     */
+    public void convertImage(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int sensorOrientation,
+            final ByteBuffer input) {
+        Trace.beginSection("loadImage");
+        long startTimeForLoadImage = SystemClock.uptimeMillis();
+        yuvInputConverter.configure(
+                width, height, yRowStride, uvRowStride, uvPixelStride, sensorOrientation);
+        yuvInputConverter.convertYUV420(yBuffer, uBuffer, vBuffer, input);
+        long endTimeForLoadImage = SystemClock.uptimeMillis();
+        Trace.endSection();
+        if (LOGGER.isLoggable(Log.VERBOSE)) {
+            LOGGER.v("Timecost to load the image: " + (endTimeForLoadImage - startTimeForLoadImage));
+        }
+    }
+
+    /**
+     * Runs inference on an input tensor filled by {@code convertImage} and returns the depth map
+     * in a new Bitmap. Prefer the overloads writing into reused pixels or Bitmaps per frame.
+     *
+     * @return the depth map, or null if the estimator has been closed.
+     */
+    public Bitmap recognizeInput(final ByteBuffer input) {
+        Trace.beginSection("recognizeImage");
+        final Bitmap outputDepthMap = runInference(input);
+        Trace.endSection();
         return outputDepthMap;
     }
 
-    /** Closes the interpreter and model to release resources. */
+    /**
+     * Runs inference on an input tensor filled by {@code convertImage} and writes the depth map
+     * into {@code depthMap}, of {@link #getDepthMapWidth} by {@link #getDepthMapHeight} pixels.
+     *
+     * @return false if the estimator has been closed.
+     */
+    public boolean recognizeInput(final ByteBuffer input, final Bitmap depthMap) {
+        Trace.beginSection("recognizeImage");
+        final boolean recognized = runInference(input, null, null, depthMap);
+        Trace.endSection();
+        return recognized;
+    }
+
+    /**
+     * Runs inference on an input tensor filled by {@code convertImage} and writes the depth map as
+     * grayscale ARGB pixels into {@code depthPixels}, with a row stride of {@link
+     * #getDepthMapWidth}. Up to {@link #getInterpreterCount} calls may run concurrently on
+     * different threads with different input tensors; further calls wait for a free interpreter.
+     *
+     * @return false if the estimator has been closed.
+     */
+    public boolean recognizeInput(final ByteBuffer input, final int[] depthPixels) {
+        Trace.beginSection("recognizeImage");
+        final boolean recognized = runInference(input, null, depthPixels, null);
+        Trace.endSection();
+        return recognized;
+    }
+
+    /**
+     * Runs inference on an input tensor filled by {@code convertImage} and writes the depth in
+     * meters into {@code depthFrame}, without rendering it into pixels. Like {@link
+     * #recognizeInput(ByteBuffer, int[])}, calls may run concurrently on different threads.
+     *
+     * @param timestampNs The capture time of the camera frame the input was converted from.
+     * @param sensorOrientation The rotation the input was converted with.
+     * @return false if the estimator has been closed.
+     */
+    public boolean recognizeDepth(
+            final ByteBuffer input,
+            final long timestampNs,
+            final int sensorOrientation,
+            final DepthFrame depthFrame) {
+        return recognizeDepth(input, timestampNs, sensorOrientation, depthFrame, null);
+    }
+
+    /**
+     * Runs inference on an input tensor filled by {@code convertImage} and writes the depth in
+     * meters into {@code depthFrame}, and the same depth map as grayscale ARGB pixels into {@code
+     * depthPixels} if not null, from a single inference.
+     *
+     * @return false if the estimator has been closed.
+     */
+    public boolean recognizeDepth(
+            final ByteBuffer input,
+            final long timestampNs,
+            final int sensorOrientation,
+            final DepthFrame depthFrame,
+            final int[] depthPixels) {
+        Trace.beginSection("recognizeDepth");
+        depthFrame.set(depthMapWidth, depthMapHeight, timestampNs, sensorOrientation);
+        final boolean recognized = runInference(input, depthFrame, depthPixels, null);
+        Trace.endSection();
+        return recognized;
+    }
+
+    /**
+     * Renders {@code numPixels} depths in meters, e.g. of a filtered or upsampled {@link
+     * DepthFrame}, into grayscale ARGB pixels shaded like the depth maps of this estimator.
+     */
+    public void renderDepth(final float[] depth, final int numPixels, final int[] depthPixels) {
+        depthMapWriter.writeFromMetric(depth, numPixels, depthPixels);
+    }
+
+    /** Allocates a Bitmap the depth maps can be written into. */
+    public Bitmap createDepthMapBitmap() {
+        return Bitmap.createBitmap(depthMapWidth, depthMapHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Returns the width of the depth maps. */
+    public int getDepthMapWidth() {
+        return depthMapWidth;
+    }
+
+    /** Returns the height of the depth maps. */
+    public int getDepthMapHeight() {
+        return depthMapHeight;
+    }
+
+    /** Runs the model on a prepared input tensor and returns the depth map in a new Bitmap. */
+    private Bitmap runInference(final ByteBuffer input) {
+        final Bitmap depthMap = createDepthMapBitmap();
+        return runInference(input, null, null, depthMap) ? depthMap : null;
+    }
+
+    /**
+     * Runs the model on a prepared input tensor with a free interpreter and writes the output in
+     * meters into {@code depthFrame} if given, as pixels into {@code depthPixels} if given, and
+     * into {@code depthMap} if given, through pixels of the interpreter unless {@code depthPixels}
+     * is given.
+     *
+     * @return false if the estimator has been closed.
+     */
+    private boolean runInference(
+            final ByteBuffer input,
+            final DepthFrame depthFrame,
+            int[] depthPixels,
+            final Bitmap depthMap) {
+        final PooledInterpreter pooled = acquireInterpreter();
+        if (pooled == null) {
+            return false;
+        }
+        try {
+            // Runs the inference call.
+            Trace.beginSection("runInference");
+            long startTimeForReference = SystemClock.uptimeMillis();
+            input.rewind();
+            pooled.outputBuffer.rewind();
+            pooled.inputs[0] = input;
+            pooled.interpreter.runForMultipleInputsOutputs(pooled.inputs, pooled.outputs);
+            pooled.inputs[0] = null;
+            long endTimeForReference = SystemClock.uptimeMillis();
+            Trace.endSection();
+            if (LOGGER.isLoggable(Log.VERBOSE)) {
+                LOGGER.v(
+                        "Timecost to run model inference: "
+                                + (endTimeForReference - startTimeForReference));
+            }
+
+            if (depthFrame != null) {
+                depthMapWriter.writeMetric(pooled.outputBuffer, depthFrame.getDepth());
+            }
+
+            // Normalizes the output straight into the depth map pixels, if any are wanted.
+            if (depthPixels == null && depthMap != null) {
+                depthPixels = pooled.depthPixels;
+            }
+            if (depthPixels != null) {
+                depthMapWriter.write(pooled.outputBuffer, depthPixels);
+            }
+            if (depthMap != null) {
+                depthMap.setPixels(
+                        depthPixels, 0, depthMapWidth, 0, 0, depthMapWidth, depthMapHeight);
+            }
+            return true;
+        } finally {
+            releaseInterpreter(pooled);
+        }
+    }
+
+    /**
+     * Takes the next free interpreter in round-robin order, waiting until one is free.
+     *
+     * @return the interpreter, or null if the estimator has been closed.
+     */
+    private PooledInterpreter acquireInterpreter() {
+        boolean interrupted = false;
+        try {
+            synchronized (interpreters) {
+                while (!closed) {
+                    for (int i = 0; i < interpreters.length; i++) {
+                        final int index = (nextInterpreter + i) % interpreters.length;
+                        if (!interpreters[index].busy) {
+                            interpreters[index].busy = true;
+                            nextInterpreter = (index + 1) % interpreters.length;
+                            return interpreters[index];
+                        }
+                    }
+                    try {
+                        interpreters.wait();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return null;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void releaseInterpreter(final PooledInterpreter pooled) {
+        synchronized (interpreters) {
+            pooled.busy = false;
+            interpreters.notifyAll();
+        }
+    }
+
+    /**
+     * Runs the model on a blank input {@code numRuns} times on every interpreter, so that the
+     * first frames do not pay for lazy initialization and memory planning.
+     */
+    public void warmUp(final int numRuns) {
+        Trace.beginSection("warmUp");
+        final long startTime = SystemClock.uptimeMillis();
+        final ByteBuffer input = createInputBuffer();
+        // Interpreters are taken in round-robin order, so every one of them is run.
+        for (int i = 0; i < numRuns * interpreters.length; i++) {
+            runInference(input, null, null, null);
+        }
+        Trace.endSection();
+        LOGGER.d("Warmed up in %dms.", SystemClock.uptimeMillis() - startTime);
+    }
+
+    /**
+     * Holds the estimator for a frame until {@link #release}, so that {@link #closeWhenReleased}
+     * does not close it while the frame is in flight.
+     *
+     * @return false if the estimator is closed or about to be closed, and must not be used.
+     */
+    public boolean retain() {
+        synchronized (interpreters) {
+            if (closed || closeWhenReleased) {
+                return false;
+            }
+            numRetained++;
+            return true;
+        }
+    }
+
+    /** Releases a hold taken with {@link #retain}, closing the estimator if it was the last one. */
+    public void release() {
+        synchronized (interpreters) {
+            if (--numRetained > 0 || !closeWhenReleased) {
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Closes the estimator once every frame holding it has been released, and refuses new holds
+     * right away.
+     */
+    public void closeWhenReleased() {
+        synchronized (interpreters) {
+            closeWhenReleased = true;
+            if (numRetained > 0) {
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Returns an estimate of the memory held by the estimator in bytes: the mapped model, and per
+     * interpreter one input and output tensor and its depth map pixels. The runtime does not
+     * report the scratch memory of the interpreters, so the estimate is a lower bound.
+     */
+    public long getMemoryFootprint() {
+        return memoryFootprint;
+    }
+
+    /** Returns the number of interpreters, i.e. of frames that can be inferred at once. */
+    public int getInterpreterCount() {
+        return interpreters.length;
+    }
+
+    /**
+     * Closes the interpreters and model to release resources, once the inferences running on them
+     * have finished.
+     */
     public void close() {
-        if (tflite != null) {
-            tflite.close();
-            tflite = null;
+        boolean interrupted = false;
+        synchronized (interpreters) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final PooledInterpreter pooled : interpreters) {
+                while (pooled.busy) {
+                    try {
+                        interpreters.wait();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                pooled.interpreter.close();
+            }
+            interpreters.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
+        tflite = null;
         if (gpuDelegate != null) {
             gpuDelegate.close();
             gpuDelegate = null;
@@ -207,38 +884,67 @@ public abstract class DepthEstimator {
         return imageSizeY;
     }
 
-    /** Loads input image, and applies preprocessing. */
-    private TensorImage loadImage(final Bitmap bitmap, int sensorOrientation) {
-        // Loads bitmap into a TensorImage.
-        inputImageBuffer.load(bitmap);
+    /**
+     * Returns the ratio of the input size to the size the model was converted with, which is 1 if
+     * the model does not allow resizing.
+     */
+    public float getInputScale() {
+        return inputScale;
+    }
+
+    /** Loads input image, and applies preprocessing with the cached plan. */
+    private void loadImage(final Bitmap bitmap, int sensorOrientation) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (bitmapPixels.length != width * height) {
+            bitmapPixels = new int[width * height];
+        }
+        bitmap.getPixels(bitmapPixels, 0, width, 0, 0, width, height);
+        preprocessPlan.configure(width, height, sensorOrientation);
+        preprocessPlan.apply(bitmapPixels, inputBuffer);
+    }
+
+    /** Gets the name of the model file stored in Assets for the given model type. */
+    public static String getModelPath(final Model model) {
+        switch (model) {
+            case QUANTIZED_MOBILENET:
+                return DepthEstimatorQuantizedMobileNet.MODEL_PATH;
+            case FLOAT_MOBILENET:
+                return DepthEstimatorFloatMobileNet.MODEL_PATH;
+            default:
+                throw new UnsupportedOperationException();
+        }
+    }
 
-        // Creates processor for the TensorImage.
-        int cropSize = Math.min(bitmap.getWidth(), bitmap.getHeight());
-        int numRotation = sensorOrientation / 90;
-        // TODO(b/143564309): Fuse ops inside ImageProcessor.
-        ImageProcessor imageProcessor =
-                new ImageProcessor.Builder()
-                        .add(new ResizeWithCropOrPadOp(cropSize, cropSize))
-                        .add(new ResizeOp(imageSizeX, imageSizeY, ResizeMethod.NEAREST_NEIGHBOR))
-                        .add(new Rot90Op(numRotation))
-                        .add(getPreprocessNormalizeOp())
-                        .build();
-        return imageProcessor.process(inputImageBuffer);
+    /**
+     * Returns the input shape {1, height, width, 3} a model was converted with. Only the model
+     * file is mapped and parsed, without building an interpreter, so that this is cheap enough
+     * for the UI thread.
+     */
+    public static int[] readInputShape(final Activity activity, final Model model)
+            throws IOException {
+        return ModelShapeReader.readInputShape(
+                FileUtil.loadMappedFile(activity, getModelPath(model)));
     }
 
     /** Gets the name of the model file stored in Assets. */
     protected abstract String getModelPath();
 
-    /** Gets the TensorOperator to normalize the input image in preprocessing. */
-    protected abstract TensorOperator getPreprocessNormalizeOp();
+    /** Gets the mean subtracted from each input channel value in preprocessing. */
+    protected abstract float getImageMean();
+
+    /** Gets the std each input channel value is divided by in preprocessing. */
+    protected abstract float getImageStd();
 
     /**
-     * Gets the TensorOperator to dequantize the output probability in post processing.
+     * Gets the mean subtracted from each output value in post processing.
      *
-     * <p>For quantized model, we need de-quantize the prediction with NormalizeOp (as they are all
-     * essentially linear transformation). For float model, de-quantize is not required. But to
-     * uniform the API, de-quantize is added to float model too. Mean and std are set to 0.0f and
-     * 1.0f, respectively.
+     * <p>Together with {@link #getDepthStd} it maps the output onto the 8-bit depth map. For the
+     * quantized model, whose output already is 8-bit, mean and std are set to 0.0f and 1.0f,
+     * respectively.
      */
-    protected abstract TensorOperator getPostprocessNormalizeOp();
+    protected abstract float getDepthMean();
+
+    /** Gets the std each output value is divided by in post processing. */
+    protected abstract float getDepthStd();
 }
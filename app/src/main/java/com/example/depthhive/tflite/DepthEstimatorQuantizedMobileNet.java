@@ -16,15 +16,16 @@ import android.app.Activity;
 import java.io.IOException;
 
 import com.example.depthhive.tflite.DepthEstimator.Device;
-import org.tensorflow.lite.support.common.TensorOperator;
-import org.tensorflow.lite.support.common.ops.NormalizeOp;
 
 /** This TensorFlow Lite classifier works with the quantized MobileNet model. */
 public class DepthEstimatorQuantizedMobileNet extends DepthEstimator {
 
+    /** Name of the model file stored in Assets. */
+    static final String MODEL_PATH = "bts_nyu_mobilenet_quant.tflite";
+
     /**
      * The quantized model does not require normalization, thus set mean as 0.0f, and std as 1.0f to
-     * bypass the normalization.
+     * bypass the normalization. The camera channels are then copied into the input as is.
      */
     private static final float IMAGE_MEAN = 0.0f;
 
@@ -45,21 +46,41 @@ public class DepthEstimatorQuantizedMobileNet extends DepthEstimator {
         super(activity, device, numThreads);
     }
 
+    /**
+     * Initializes a {@code DepthEstimatorQuantizedMobileNet} with a pool of interpreters and a resized
+     * input.
+     */
+    public DepthEstimatorQuantizedMobileNet(
+            Activity activity, Device device, int numThreads, int numInterpreters, float inputScale)
+            throws IOException {
+        super(activity, device, numThreads, numInterpreters, inputScale);
+    }
+
     @Override
     protected String getModelPath() {
         // you can download this file from
         // see build.gradle for where to obtain this file. It should be auto
         // downloaded into assets.
-        return "bts_nyu_mobilenet_quant.tflite";
+        return MODEL_PATH;
+    }
+
+    @Override
+    protected float getImageMean() {
+        return IMAGE_MEAN;
+    }
+
+    @Override
+    protected float getImageStd() {
+        return IMAGE_STD;
     }
 
     @Override
-    protected TensorOperator getPreprocessNormalizeOp() {
-        return new NormalizeOp(IMAGE_MEAN, IMAGE_STD);
+    protected float getDepthMean() {
+        return DEPTH_MEAN;
     }
 
     @Override
-    protected TensorOperator getPostprocessNormalizeOp() {
-        return new NormalizeOp(DEPTH_MEAN, DEPTH_STD);
+    protected float getDepthStd() {
+        return DEPTH_STD;
     }
 }
\ No newline at end of file
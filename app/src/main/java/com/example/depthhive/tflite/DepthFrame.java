@@ -0,0 +1,73 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+/**
+ * A depth map in meters, as estimated by {@link DepthEstimator#recognizeDepth}.
+ *
+ * <p>Depth frames are meant to be reused: the depth array is only reallocated when the size of the
+ * depth map changes. The map is upright in screen orientation, i.e. the camera frame was rotated
+ * by {@link #getRotation} degrees before inference.
+ */
+public final class DepthFrame {
+    private float[] depth = new float[0];
+    private int width;
+    private int height;
+    private long timestampNs;
+    private int rotation;
+
+    /** Sizes the frame for a depth map, reallocating the depth array only if needed. */
+    void set(final int width, final int height, final long timestampNs, final int rotation) {
+        if (depth.length != width * height) {
+            depth = new float[width * height];
+        }
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+        this.rotation = rotation;
+    }
+
+    /** Returns the depth of every pixel in meters, row by row with a stride of the width. */
+    public float[] getDepth() {
+        return depth;
+    }
+
+    /** Returns the depth at a pixel in meters. */
+    public float getDepthAt(final int x, final int y) {
+        return depth[y * width + x];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the capture time of the camera frame in nanoseconds. */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Returns the rotation applied to the camera frame before inference, in degrees. */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /** Copies another depth frame into this one. */
+    public void copyFrom(final DepthFrame other) {
+        set(other.width, other.height, other.timestampNs, other.rotation);
+        System.arraycopy(other.depth, 0, depth, 0, width * height);
+    }
+}
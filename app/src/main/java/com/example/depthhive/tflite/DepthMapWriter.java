@@ -0,0 +1,142 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the raw output tensor into grayscale ARGB pixels in a single pass, with the depth
+ * normalization folded in, or into depth in meters.
+ *
+ * <p>This matches normalizing the output, loading it into an 8-bit grayscale image and converting
+ * that to a Bitmap, without any of the intermediate buffers. Quantized outputs go through
+ * precomputed tables of all 256 values.
+ */
+final class DepthMapWriter {
+    /** Number of pixels of the depth map. */
+    private final int numPixels;
+
+    /** Whether the output tensor holds uint8 values rather than float32 values. */
+    private final boolean isQuantized;
+
+    private final float mean;
+    private final float std;
+
+    /** Grayscale ARGB pixel of each uint8 output value. */
+    private final int[] pixelTable = new int[256];
+
+    /** Depth in meters of each uint8 output value. */
+    private final float[] metricTable = new float[256];
+
+    /** Quantized output steps per meter and the output value of zero meters. */
+    private final float inverseScale;
+    private final int zeroPoint;
+
+    /** Creates a writer for an output in meters, or quantized with a scale of a meter. */
+    DepthMapWriter(
+            final int width,
+            final int height,
+            final boolean isQuantized,
+            final float mean,
+            final float std) {
+        this(width, height, isQuantized, mean, std, 1f, 0);
+    }
+
+    /**
+     * @param scale Meters per step of a quantized output, ignored for float outputs.
+     * @param zeroPoint The quantized output value of zero meters, ignored for float outputs.
+     */
+    DepthMapWriter(
+            final int width,
+            final int height,
+            final boolean isQuantized,
+            final float mean,
+            final float std,
+            final float scale,
+            final int zeroPoint) {
+        this.numPixels = width * height;
+        this.isQuantized = isQuantized;
+        this.mean = mean;
+        this.std = std;
+        for (int value = 0; value < 256; value++) {
+            pixelTable[value] = toPixel(value);
+            metricTable[value] = scale * (value - zeroPoint);
+        }
+        this.inverseScale = 1f / scale;
+        this.zeroPoint = zeroPoint;
+    }
+
+    /** Returns the number of bytes the output tensor occupies. */
+    int getInputByteSize() {
+        return numPixels * (isQuantized ? 1 : 4);
+    }
+
+    /**
+     * Writes the depth map held by {@code output}, in native byte order, into {@code argb} with a
+     * row stride of the depth map width.
+     */
+    void write(final ByteBuffer output, final int[] argb) {
+        if (isQuantized) {
+            for (int i = 0; i < numPixels; i++) {
+                argb[i] = pixelTable[output.get(i) & 0xff];
+            }
+        } else {
+            for (int i = 0; i < numPixels; i++) {
+                argb[i] = toPixel(output.getFloat(i * 4));
+            }
+        }
+    }
+
+    /**
+     * Writes the depth map held by {@code output}, in native byte order, into {@code depth} in
+     * meters with a row stride of the depth map width.
+     */
+    void writeMetric(final ByteBuffer output, final float[] depth) {
+        if (isQuantized) {
+            for (int i = 0; i < numPixels; i++) {
+                depth[i] = metricTable[output.get(i) & 0xff];
+            }
+        } else {
+            for (int i = 0; i < numPixels; i++) {
+                depth[i] = output.getFloat(i * 4);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code numPixels} depths in meters, e.g. of a filtered or resampled depth map, into
+     * {@code argb} with the same grayscale mapping as {@link #write}.
+     *
+     * <p>Depths are mapped back onto the output they came from before normalizing, rounding to the
+     * nearest quantized value, so that a depth map which went through {@link #writeMetric} shades
+     * exactly like the output itself.
+     */
+    void writeFromMetric(final float[] depth, final int numPixels, final int[] argb) {
+        if (isQuantized) {
+            for (int i = 0; i < numPixels; i++) {
+                final int value = Math.round(depth[i] * inverseScale) + zeroPoint;
+                argb[i] = value >= 0 && value < 256 ? pixelTable[value] : toPixel(value);
+            }
+        } else {
+            for (int i = 0; i < numPixels; i++) {
+                argb[i] = toPixel(depth[i]);
+            }
+        }
+    }
+
+    private int toPixel(final float value) {
+        // Clamped and truncated like the 8-bit grayscale image used to be.
+        final int gray = (int) Math.max(Math.min((value - mean) / std, 255f), 0f);
+        return 0xff000000 | (gray << 16) | (gray << 8) | gray;
+    }
+}
@@ -0,0 +1,177 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import com.example.depthhive.env.Logger;
+import com.example.depthhive.tflite.DepthEstimator.Device;
+import com.example.depthhive.tflite.DepthEstimator.Model;
+
+/**
+ * Keeps estimators that were swapped out initialized and warm, so that switching back to their
+ * configuration does not map the model and build the interpreters and delegates again.
+ *
+ * <p>Only idle estimators are cached: {@link #take} removes an estimator, and {@link #put} hands
+ * it back once another one replaces it. When the estimated memory of the cached estimators exceeds
+ * the capacity, the least recently put ones are evicted and closed once their frames are released.
+ */
+public final class EstimatorCache {
+    private static final Logger LOGGER = new Logger();
+
+    /** The configuration an estimator was created with. */
+    public static final class Key {
+        private final Model model;
+        private final Device device;
+        private final int numThreads;
+        private final int numInterpreters;
+        private final float inputScale;
+
+        public Key(
+                final Model model,
+                final Device device,
+                final int numThreads,
+                final int numInterpreters,
+                final float inputScale) {
+            this.model = model;
+            this.device = device;
+            this.numThreads = numThreads;
+            this.numInterpreters = numInterpreters;
+            this.inputScale = inputScale;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return model == other.model
+                    && device == other.device
+                    && numThreads == other.numThreads
+                    && numInterpreters == other.numInterpreters
+                    && Float.compare(inputScale, other.inputScale) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = model.hashCode();
+            hash = 31 * hash + device.hashCode();
+            hash = 31 * hash + numThreads;
+            hash = 31 * hash + numInterpreters;
+            hash = 31 * hash + Float.floatToIntBits(inputScale);
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.US,
+                    "%s/%s/%dx%d threads@%.2f",
+                    model,
+                    device,
+                    numInterpreters,
+                    numThreads,
+                    inputScale);
+        }
+    }
+
+    private final long capacityBytes;
+
+    /** Idle estimators from the least to the most recently put, guarded by itself. */
+    private final LinkedHashMap<Key, DepthEstimator> estimators =
+            new LinkedHashMap<Key, DepthEstimator>();
+
+    /** Estimated memory of the cached estimators, guarded by estimators. */
+    private long sizeBytes = 0;
+
+    /**
+     * @param capacityBytes The estimated memory the idle estimators may hold, see {@link
+     *     DepthEstimator#getMemoryFootprint}. Zero disables caching.
+     */
+    public EstimatorCache(final long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Removes the cached estimator for a configuration and returns it.
+     *
+     * @return the estimator, or null if none is cached.
+     */
+    public DepthEstimator take(final Key key) {
+        synchronized (estimators) {
+            final DepthEstimator estimator = estimators.remove(key);
+            if (estimator != null) {
+                sizeBytes -= estimator.getMemoryFootprint();
+                LOGGER.d("Reusing cached depth estimator %s.", key);
+            }
+            return estimator;
+        }
+    }
+
+    /**
+     * Caches an estimator that was swapped out, evicting the least recently put estimators that no
+     * longer fit. An estimator larger than the capacity is closed right away.
+     */
+    public void put(final Key key, final DepthEstimator estimator) {
+        final List<DepthEstimator> evicted = new ArrayList<DepthEstimator>();
+        synchronized (estimators) {
+            // Removed first so that the estimator moves to the most recently put end.
+            final DepthEstimator displaced = estimators.remove(key);
+            estimators.put(key, estimator);
+            if (displaced != null) {
+                sizeBytes -= displaced.getMemoryFootprint();
+                if (displaced != estimator) {
+                    evicted.add(displaced);
+                }
+            }
+            sizeBytes += estimator.getMemoryFootprint();
+            final Iterator<Map.Entry<Key, DepthEstimator>> eldest =
+                    estimators.entrySet().iterator();
+            while (sizeBytes > capacityBytes && eldest.hasNext()) {
+                final Map.Entry<Key, DepthEstimator> entry = eldest.next();
+                LOGGER.d("Evicting cached depth estimator %s.", entry.getKey());
+                sizeBytes -= entry.getValue().getMemoryFootprint();
+                evicted.add(entry.getValue());
+                eldest.remove();
+            }
+        }
+        for (final DepthEstimator e : evicted) {
+            e.closeWhenReleased();
+        }
+    }
+
+    /** Closes every cached estimator once its frames are released. */
+    public void clear() {
+        final List<DepthEstimator> evicted;
+        synchronized (estimators) {
+            evicted = new ArrayList<DepthEstimator>(estimators.values());
+            estimators.clear();
+            sizeBytes = 0;
+        }
+        for (final DepthEstimator e : evicted) {
+            e.closeWhenReleased();
+        }
+    }
+
+    /** Returns the estimated memory of the cached estimators. */
+    public long getSizeBytes() {
+        synchronized (estimators) {
+            return sizeBytes;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import com.example.depthhive.env.Logger;
+import com.example.depthhive.tflite.DepthEstimator.Device;
+import com.example.depthhive.tflite.DepthEstimator.Model;
+
+/**
+ * Keeps the inference latency inside a budget by moving between quality levels, e.g. as the
+ * device heats up or other apps load the CPU.
+ *
+ * <p>Levels are ordered from the highest quality down, and trade accuracy for speed by model
+ * variant, input resolution and inference cadence. The controller smooths the measured latencies
+ * and steps down a level once they stay above the budget, and back up once they stay well below
+ * it. Stepping up takes longer than stepping down, and no step is taken until a new level has
+ * settled, so the levels do not oscillate.
+ */
+public final class LatencyBudgetController {
+    private static final Logger LOGGER = new Logger();
+
+    /** Weight of a new latency in the smoothed latency. */
+    private static final float SMOOTHING = 0.2f;
+
+    /** Fraction of the budget below which the smoothed latency counts as headroom. */
+    private static final float UPGRADE_FRACTION = 0.6f;
+
+    /** Number of consecutive inferences over budget before stepping down. */
+    private static final int DOWNGRADE_COUNT = 5;
+
+    /** Number of consecutive inferences with headroom before stepping up. */
+    private static final int UPGRADE_COUNT = 30;
+
+    /** Number of inferences ignored after a level change, e.g. of the replaced estimator. */
+    private static final int SETTLE_COUNT = 10;
+
+    /** A trade-off between accuracy and latency. */
+    public static final class QualityLevel {
+        private final Model model;
+        private final float inputScale;
+        private final int cadence;
+
+        public QualityLevel(final Model model, final float inputScale, final int cadence) {
+            this.model = model;
+            this.inputScale = inputScale;
+            this.cadence = cadence;
+        }
+
+        public Model getModel() {
+            return model;
+        }
+
+        /** Returns the ratio of the input size to the size the model was converted with. */
+        public float getInputScale() {
+            return inputScale;
+        }
+
+        /** Returns the number of camera frames per inference. */
+        public int getCadence() {
+            return cadence;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s@%.2f/%d", model, inputScale, cadence);
+        }
+    }
+
+    private final QualityLevel[] levels;
+    private final float budgetMs;
+
+    /** Index of the current level, written by the thread reporting latencies. */
+    private volatile int levelIndex = 0;
+
+    private float smoothedLatencyMs = 0;
+    private int numOverBudget = 0;
+    private int numWithHeadroom = 0;
+    private int numToSettle = SETTLE_COUNT;
+
+    /** Counts camera frames for the cadence, used only by the camera thread. */
+    private int numSkippedFrames = 0;
+
+    /**
+     * @param levels The quality levels, from the highest quality down.
+     * @param budgetMs The inference latency to stay within.
+     */
+    public LatencyBudgetController(final List<QualityLevel> levels, final float budgetMs) {
+        if (levels.isEmpty()) {
+            throw new IllegalArgumentException("At least one quality level is required.");
+        }
+        this.levels = levels.toArray(new QualityLevel[0]);
+        this.budgetMs = budgetMs;
+    }
+
+    /**
+     * Returns the quality levels available starting from {@code model} on {@code device}: lower
+     * input resolutions, the quantized model unless running on the GPU, and finally skipping
+     * camera frames.
+     */
+    public static List<QualityLevel> createLevels(final Model model, final Device device) {
+        final List<QualityLevel> levels = new ArrayList<QualityLevel>();
+        if (model == Model.FLOAT_MOBILENET) {
+            levels.add(new QualityLevel(Model.FLOAT_MOBILENET, 1f, 1));
+            levels.add(new QualityLevel(Model.FLOAT_MOBILENET, 0.75f, 1));
+        }
+        // GPU doesn't support quantized models.
+        final Model fastest = device == Device.GPU ? Model.FLOAT_MOBILENET : Model.QUANTIZED_MOBILENET;
+        if (fastest != model || model == Model.QUANTIZED_MOBILENET) {
+            levels.add(new QualityLevel(fastest, 1f, 1));
+            levels.add(new QualityLevel(fastest, 0.75f, 1));
+        }
+        levels.add(new QualityLevel(fastest, 0.5f, 1));
+        levels.add(new QualityLevel(fastest, 0.5f, 2));
+        levels.add(new QualityLevel(fastest, 0.5f, 3));
+        return levels;
+    }
+
+    /** Returns the current quality level. */
+    public QualityLevel getLevel() {
+        return levels[levelIndex];
+    }
+
+    /**
+     * Reports the latency of an inference. Must always be called from the same thread.
+     *
+     * @return true if the quality level changed.
+     */
+    public boolean onInference(final long latencyMs) {
+        if (numToSettle > 0) {
+            numToSettle--;
+            smoothedLatencyMs = latencyMs;
+            return false;
+        }
+        smoothedLatencyMs += SMOOTHING * (latencyMs - smoothedLatencyMs);
+
+        if (smoothedLatencyMs > budgetMs) {
+            numWithHeadroom = 0;
+            if (++numOverBudget >= DOWNGRADE_COUNT && levelIndex + 1 < levels.length) {
+                return setLevel(levelIndex + 1);
+            }
+        } else if (smoothedLatencyMs < UPGRADE_FRACTION * budgetMs) {
+            numOverBudget = 0;
+            if (++numWithHeadroom >= UPGRADE_COUNT && levelIndex > 0) {
+                return setLevel(levelIndex - 1);
+            }
+        } else {
+            numOverBudget = 0;
+            numWithHeadroom = 0;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the current camera frame is to be inferred under the cadence of the current
+     * level. Must always be called from the same thread, once per frame.
+     */
+    public boolean shouldInfer() {
+        if (++numSkippedFrames < levels[levelIndex].getCadence()) {
+            return false;
+        }
+        numSkippedFrames = 0;
+        return true;
+    }
+
+    private boolean setLevel(final int index) {
+        LOGGER.i(
+                "Latency %.1fms of budget %.1fms: quality %s -> %s",
+                smoothedLatencyMs,
+                budgetMs,
+                levels[levelIndex],
+                levels[index]);
+        levelIndex = index;
+        numOverBudget = 0;
+        numWithHeadroom = 0;
+        numToSettle = SETTLE_COUNT;
+        return true;
+    }
+}
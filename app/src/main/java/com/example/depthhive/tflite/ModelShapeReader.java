@@ -0,0 +1,99 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the shape of the first input tensor straight from the FlatBuffer of a TensorFlow Lite
+ * model, without building an interpreter.
+ *
+ * <p>Only the few tables on the way to the shape are visited: Model.subgraphs[0], its inputs[0]
+ * and the Tensor it indexes. Field indices follow the TensorFlow Lite schema.
+ */
+final class ModelShapeReader {
+    /** Field index of Model.subgraphs. */
+    private static final int MODEL_SUBGRAPHS = 2;
+
+    /** Field index of SubGraph.tensors. */
+    private static final int SUBGRAPH_TENSORS = 0;
+
+    /** Field index of SubGraph.inputs. */
+    private static final int SUBGRAPH_INPUTS = 1;
+
+    /** Field index of Tensor.shape. */
+    private static final int TENSOR_SHAPE = 0;
+
+    private ModelShapeReader() {}
+
+    /**
+     * Returns the shape of the first input tensor of the first subgraph, e.g. {1, height, width,
+     * 3} for an image model.
+     *
+     * @throws IllegalArgumentException if the buffer does not hold such a tensor.
+     */
+    static int[] readInputShape(final ByteBuffer model) {
+        final ByteBuffer buffer = model.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            final int root = indirect(buffer, 0);
+            final int subgraph = vectorTable(buffer, field(buffer, root, MODEL_SUBGRAPHS), 0);
+            final int inputs = vector(buffer, field(buffer, subgraph, SUBGRAPH_INPUTS), 0);
+            final int tensor =
+                    vectorTable(
+                            buffer, field(buffer, subgraph, SUBGRAPH_TENSORS), buffer.getInt(inputs));
+            final int shapeField = field(buffer, tensor, TENSOR_SHAPE);
+            final int length = buffer.getInt(indirect(buffer, shapeField));
+            final int[] shape = new int[length];
+            for (int i = 0; i < length; i++) {
+                shape[i] = buffer.getInt(vector(buffer, shapeField, i));
+            }
+            return shape;
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated model", e);
+        }
+    }
+
+    /** Returns the position of a present table field, following the vtable of the table. */
+    private static int field(final ByteBuffer buffer, final int table, final int index) {
+        final int vtable = table - buffer.getInt(table);
+        final int entry = 4 + 2 * index;
+        final int offset =
+                entry < (buffer.getShort(vtable) & 0xffff)
+                        ? buffer.getShort(vtable + entry) & 0xffff
+                        : 0;
+        if (offset == 0) {
+            throw new IllegalArgumentException("Model lacks field " + index + " of a table");
+        }
+        return table + offset;
+    }
+
+    /** Returns the position of element {@code i} of the vector referenced at {@code field}. */
+    private static int vector(final ByteBuffer buffer, final int field, final int i) {
+        final int vector = indirect(buffer, field);
+        if (i < 0 || i >= buffer.getInt(vector)) {
+            throw new IllegalArgumentException("Model lacks element " + i + " of a vector");
+        }
+        return vector + 4 + 4 * i;
+    }
+
+    /** Returns the position of table {@code i} of the vector of tables referenced at field. */
+    private static int vectorTable(final ByteBuffer buffer, final int field, final int i) {
+        return indirect(buffer, vector(buffer, field, i));
+    }
+
+    /** Follows the unsigned offset stored at {@code position}. */
+    private static int indirect(final ByteBuffer buffer, final int position) {
+        return position + buffer.getInt(position);
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import java.nio.ByteBuffer;
+import com.example.depthhive.env.ImageUtils;
+
+/**
+ * A precompiled preprocessing plan that performs the center crop, nearest-neighbour resize,
+ * rotation and normalization of the model input in a single pass.
+ *
+ * <p>The plan belongs to one model and is recompiled only when the source size or rotation
+ * changes. Each frame is then a gather through the precomputed source-index map into a reused
+ * input tensor, with no intermediate images.
+ *
+ * <p>Quantized inputs stay in integers end to end: channels are gathered into a byte array, as is
+ * when the normalization is the identity, and copied into the tensor in bulk by {@link #finish}.
+ */
+final class PreprocessPlan {
+    /** Width of the model input. */
+    private final int outputWidth;
+
+    /** Height of the model input. */
+    private final int outputHeight;
+
+    /** Whether the input tensor holds uint8 values rather than float32 values. */
+    private final boolean isQuantized;
+
+    /** Normalized float value of each 8-bit channel value. */
+    private final float[] floatTable = new float[256];
+
+    /** Normalized uint8 value of each 8-bit channel value. */
+    private final byte[] byteTable = new byte[256];
+
+    /** Whether {@link #byteTable} maps every value onto itself, so it can be skipped. */
+    private final boolean isIdentity;
+
+    /** Quantized input gathered per frame before the bulk copy, null for float inputs. */
+    private final byte[] quantizedInput;
+
+    /** Index of the source pixel sampled by each output pixel. */
+    private final int[] sampleMap;
+
+    private int srcWidth = -1;
+    private int srcHeight = -1;
+    private int sensorOrientation = -1;
+
+    PreprocessPlan(
+            final int outputWidth,
+            final int outputHeight,
+            final boolean isQuantized,
+            final float mean,
+            final float std) {
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        this.isQuantized = isQuantized;
+        boolean isIdentity = true;
+        for (int c = 0; c < 256; c++) {
+            final float normalized = (c - mean) / std;
+            floatTable[c] = normalized;
+            byteTable[c] = (byte) Math.max(0, Math.min(255, Math.round(normalized)));
+            isIdentity &= (byteTable[c] & 0xff) == c;
+        }
+        this.isIdentity = isIdentity;
+        sampleMap = new int[outputWidth * outputHeight];
+        quantizedInput = isQuantized ? new byte[outputWidth * outputHeight * 3] : null;
+    }
+
+    /** Returns the number of bytes the input tensor occupies. */
+    int getOutputByteSize() {
+        return outputWidth * outputHeight * 3 * (isQuantized ? 1 : 4);
+    }
+
+    int getSrcWidth() {
+        return srcWidth;
+    }
+
+    int getSrcHeight() {
+        return srcHeight;
+    }
+
+    /** Returns the source pixel index of each output pixel. Valid after {@link #configure}. */
+    int[] getSampleMap() {
+        return sampleMap;
+    }
+
+    /**
+     * Recompiles the plan for a new source geometry.
+     *
+     * @return true if the source-index map changed.
+     */
+    boolean configure(final int width, final int height, final int sensorOrientation) {
+        if (width == srcWidth && height == srcHeight && sensorOrientation == this.sensorOrientation) {
+            return false;
+        }
+        ImageUtils.computeSampleMap(
+                width, height, outputWidth, outputHeight, sensorOrientation, sampleMap);
+        this.srcWidth = width;
+        this.srcHeight = height;
+        this.sensorOrientation = sensorOrientation;
+        return true;
+    }
+
+    /** Fills {@code output} from ARGB pixels laid out with a row stride of the source width. */
+    void apply(final int[] argbPixels, final ByteBuffer output) {
+        final int numPixels = sampleMap.length;
+        for (int i = 0; i < numPixels; i++) {
+            putPixel(output, i, argbPixels[sampleMap[i]]);
+        }
+        finish(output);
+    }
+
+    /**
+     * Writes the normalized RGB channels of an ARGB pixel as output pixel {@code i}. Quantized
+     * pixels only reach {@code output} with {@link #finish}.
+     */
+    void putPixel(final ByteBuffer output, final int i, final int argb) {
+        if (isQuantized) {
+            final int o = i * 3;
+            if (isIdentity) {
+                quantizedInput[o] = (byte) (argb >> 16);
+                quantizedInput[o + 1] = (byte) (argb >> 8);
+                quantizedInput[o + 2] = (byte) argb;
+            } else {
+                quantizedInput[o] = byteTable[(argb >> 16) & 0xff];
+                quantizedInput[o + 1] = byteTable[(argb >> 8) & 0xff];
+                quantizedInput[o + 2] = byteTable[argb & 0xff];
+            }
+        } else {
+            final int o = i * 12;
+            output.putFloat(o, floatTable[(argb >> 16) & 0xff]);
+            output.putFloat(o + 4, floatTable[(argb >> 8) & 0xff]);
+            output.putFloat(o + 8, floatTable[argb & 0xff]);
+        }
+    }
+
+    /** Completes a frame written with {@link #putPixel}, copying quantized pixels in bulk. */
+    void finish(final ByteBuffer output) {
+        if (isQuantized) {
+            output.position(0);
+            output.put(quantizedInput);
+            output.position(0);
+        }
+    }
+}
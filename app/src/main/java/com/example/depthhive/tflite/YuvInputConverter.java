@@ -0,0 +1,133 @@
+/* Copyright 2020 The TensorFlow Authors and Clarence Chen. All Rights Reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.depthhive.tflite;
+
+import java.nio.ByteBuffer;
+import com.example.depthhive.env.ImageUtils;
+
+/**
+ * Converts camera frames straight into the model input tensor.
+ *
+ * <p>The Y, U and V planes are sampled only at the model resolution, through the source-index map
+ * of a {@link PreprocessPlan} translated into plane offsets. The offsets are rebuilt only when
+ * the frame geometry changes, and no ARGB frame or Bitmap is materialized.
+ */
+final class YuvInputConverter {
+    /** The plan providing the source-index map and normalization. */
+    private final PreprocessPlan plan;
+
+    /** Index into the luminance plane for each output pixel. */
+    private final int[] yIndex;
+
+    /** Index into the chroma planes for each output pixel. */
+    private final int[] uvIndex;
+
+    /**
+     * The frame geometry the index maps were built for. Kept here rather than inferred from the
+     * plan, which may have been configured for other frames in between, e.g. ARGB ones.
+     */
+    private int width = -1;
+    private int height = -1;
+    private int sensorOrientation = -1;
+    private int yRowStride = -1;
+    private int uvRowStride = -1;
+    private int uvPixelStride = -1;
+
+    YuvInputConverter(final PreprocessPlan plan) {
+        this.plan = plan;
+        final int numPixels = plan.getSampleMap().length;
+        yIndex = new int[numPixels];
+        uvIndex = new int[numPixels];
+    }
+
+    /** Rebuilds the plane index maps if the frame geometry has changed. */
+    void configure(
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int sensorOrientation) {
+        plan.configure(width, height, sensorOrientation);
+        if (width == this.width
+                && height == this.height
+                && sensorOrientation == this.sensorOrientation
+                && yRowStride == this.yRowStride
+                && uvRowStride == this.uvRowStride
+                && uvPixelStride == this.uvPixelStride) {
+            return;
+        }
+        final int[] sampleMap = plan.getSampleMap();
+        for (int i = 0; i < sampleMap.length; i++) {
+            final int x = sampleMap[i] % width;
+            final int y = sampleMap[i] / width;
+            yIndex[i] = y * yRowStride + x;
+            uvIndex[i] = (y >> 1) * uvRowStride + (x >> 1) * uvPixelStride;
+        }
+        this.width = width;
+        this.height = height;
+        this.sensorOrientation = sensorOrientation;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+    }
+
+    /** Converts a YUV_420_888 frame, with one array per plane, into {@code output}. */
+    void convertYUV420(
+            final byte[] yData, final byte[] uData, final byte[] vData, final ByteBuffer output) {
+        convert(yData, uData, 0, vData, 0, output);
+    }
+
+    /** Converts a YUV_420_888 frame straight from its plane buffers into {@code output}. */
+    void convertYUV420(
+            final ByteBuffer yBuffer,
+            final ByteBuffer uBuffer,
+            final ByteBuffer vBuffer,
+            final ByteBuffer output) {
+        final int numPixels = yIndex.length;
+        for (int i = 0; i < numPixels; i++) {
+            final int uv = uvIndex[i];
+            plan.putPixel(
+                    output,
+                    i,
+                    ImageUtils.YUV2RGB(
+                            0xff & yBuffer.get(yIndex[i]), 0xff & uBuffer.get(uv), 0xff & vBuffer.get(uv)));
+        }
+        plan.finish(output);
+    }
+
+    /** Converts a YUV420SP (NV21) frame, with interleaved V and U samples, into {@code output}. */
+    void convertYUV420SP(final byte[] input, final ByteBuffer output) {
+        final int frameSize = plan.getSrcWidth() * plan.getSrcHeight();
+        convert(input, input, frameSize + 1, input, frameSize, output);
+    }
+
+    private void convert(
+            final byte[] yData,
+            final byte[] uData,
+            final int uOffset,
+            final byte[] vData,
+            final int vOffset,
+            final ByteBuffer output) {
+        final int numPixels = yIndex.length;
+        for (int i = 0; i < numPixels; i++) {
+            final int uv = uvIndex[i];
+            plan.putPixel(
+                    output,
+                    i,
+                    ImageUtils.YUV2RGB(
+                            0xff & yData[yIndex[i]], 0xff & uData[uOffset + uv], 0xff & vData[vOffset + uv]));
+        }
+        plan.finish(output);
+    }
+}
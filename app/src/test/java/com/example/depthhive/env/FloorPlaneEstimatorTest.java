@@ -0,0 +1,100 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** Checks the floor plane, inlier mask and drop-offs of {@link FloorPlaneEstimator}. */
+public class FloorPlaneEstimatorTest {
+    private static final int SIZE = 64;
+    private static final float CAMERA_HEIGHT = 1.2f;
+    private static final float LEDGE_DISTANCE = 3.5f;
+    private static final float LEDGE_DROP = 0.4f;
+    private static final float WALL_DISTANCE = 6f;
+    /** Columns left of this one end in a ledge instead of at the wall. */
+    private static final int LEDGE_COLUMNS = 20;
+
+    @Test
+    public void levelCamera_findsFloorAndDropOff() {
+        final FloorPlaneEstimator estimator = new FloorPlaneEstimator();
+        estimator.setBudget(200, Long.MAX_VALUE);
+        final FloorPlane floor = new FloorPlane();
+
+        assertTrue(estimator.estimate(createScene(), floor));
+        assertTrue(floor.isValid());
+        assertEquals(0f, floor.getNormalX(), 0.02f);
+        assertEquals(-1f, floor.getNormalY(), 0.02f);
+        assertEquals(0f, floor.getNormalZ(), 0.02f);
+        assertEquals(CAMERA_HEIGHT, floor.getOffset(), 0.05f);
+
+        assertTrue(floor.isFloor(SIZE / 2, SIZE - 1));
+        assertFalse(floor.isFloor(SIZE / 2, 0));
+        assertTrue(floor.getInlierCount() > SIZE * SIZE / 4);
+        assertTrue(floor.isDropOff(5));
+        assertFalse(floor.isDropOff(50));
+        // The ledge is nearer than the wall, so its floor ends lower in the image.
+        assertTrue(floor.getFloorEndRow(5) > floor.getFloorEndRow(50));
+        assertTrue(floor.getFloorEndRow(50) < SIZE);
+    }
+
+    @Test
+    public void previousPlane_isKeptWithoutIterations() {
+        final FloorPlaneEstimator estimator = new FloorPlaneEstimator();
+        estimator.setBudget(200, Long.MAX_VALUE);
+        final PointCloud cloud = createScene();
+        final FloorPlane floor = new FloorPlane();
+        assertTrue(estimator.estimate(cloud, floor));
+
+        estimator.setBudget(0, 0);
+        final FloorPlane next = new FloorPlane();
+        assertTrue(estimator.estimate(cloud, next));
+        assertEquals(0, estimator.getLastIterations());
+        assertEquals(floor.getOffset(), next.getOffset(), 0.01f);
+        assertEquals(floor.getInlierMask(), next.getInlierMask());
+
+        estimator.reset();
+        assertFalse(estimator.estimate(cloud, next));
+    }
+
+    @Test
+    public void gravity_rejectsTiltedPlanes() {
+        final FloorPlaneEstimator estimator = new FloorPlaneEstimator();
+        estimator.setBudget(200, Long.MAX_VALUE);
+        // Looking straight down, so the scene's floor would be a wall.
+        estimator.setGravity(0f, 0f, 9.81f);
+        final FloorPlane floor = new FloorPlane();
+
+        assertFalse(estimator.estimate(createScene(), floor));
+        assertFalse(floor.isValid());
+        assertEquals(0, floor.getInlierCount());
+        assertEquals(SIZE, floor.getFloorEndRow(5));
+        assertFalse(floor.isDropOff(5));
+    }
+
+    /**
+     * Creates the cloud of a level camera above a floor that ends in a wall, except on the left
+     * where it drops off a ledge onto a lower floor.
+     */
+    private static PointCloud createScene() {
+        final float[] rayX = new float[SIZE * SIZE];
+        final float[] rayY = new float[SIZE * SIZE];
+        final CameraIntrinsics intrinsics = CameraIntrinsics.fromFieldOfView(60f, SIZE, SIZE);
+        PointCloudProjector.computeRays(intrinsics, SIZE, SIZE, 0, SIZE, SIZE, rayX, rayY);
+        final float[] depth = new float[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                final int i = y * SIZE + x;
+                float z = rayY[i] > 0f ? CAMERA_HEIGHT / rayY[i] : WALL_DISTANCE;
+                if (x < LEDGE_COLUMNS && z > LEDGE_DISTANCE) {
+                    z = (CAMERA_HEIGHT + LEDGE_DROP) / rayY[i];
+                }
+                depth[i] = Math.min(z, WALL_DISTANCE);
+            }
+        }
+        final PointCloudProjector projector = new PointCloudProjector();
+        projector.configure(intrinsics, SIZE, SIZE, 0, SIZE, SIZE);
+        final PointCloud cloud = new PointCloud();
+        projector.project(depth, 1L, cloud);
+        return cloud;
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ordering, dropping, displacement, inactive workers, pausing and shutdown of {@link
+ * FramePipeline}.
+ */
+public class FramePipelineTest {
+    private static final int NUM_FRAMES = 200;
+
+    private static final class Job {
+        int frame;
+        int stagesRun;
+    }
+
+    @Test
+    public void jobs_leaveThePipelineExactlyOnce() {
+        runPipeline(1);
+    }
+
+    @Test
+    public void concurrentInferWorkers_deliverInOrder() {
+        runPipeline(3);
+    }
+
+    @Test
+    public void inactiveInferWorkers_takeNoJobs() {
+        final List<Thread> inferThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        final List<Integer> published = Collections.synchronizedList(new ArrayList<Integer>());
+        final FramePipeline<Job> pipeline =
+                new FramePipeline<Job>(
+                        new Job[] {new Job(), new Job(), new Job(), new Job()},
+                        countingStage(),
+                        new FramePipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(final Job job) {
+                                inferThreads.add(Thread.currentThread());
+                                return true;
+                            }
+                        },
+                        3,
+                        new FramePipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(final Job job) {
+                                published.add(job.frame);
+                                return true;
+                            }
+                        },
+                        countingStage());
+        pipeline.setActiveInferWorkerCount(1);
+        assertEquals(1, pipeline.getActiveInferWorkerCount());
+        final int half = submitFrames(pipeline, 0, NUM_FRAMES / 2);
+        pipeline.pause();
+        assertEquals(1, new HashSet<Thread>(inferThreads).size());
+
+        // Reactivated workers pick up jobs again, still delivered in order.
+        pipeline.resume();
+        pipeline.setActiveInferWorkerCount(5);
+        assertEquals(3, pipeline.getActiveInferWorkerCount());
+        submitFrames(pipeline, half, NUM_FRAMES);
+        pipeline.shutdown();
+        int previous = -1;
+        for (final int frame : published) {
+            assertTrue(frame > previous);
+            previous = frame;
+        }
+    }
+
+    @Test
+    public void pause_drainsJobsAndRejectsFrames() {
+        final List<Integer> recycled = Collections.synchronizedList(new ArrayList<Integer>());
+        final FramePipeline<Job> pipeline =
+                new FramePipeline<Job>(
+                        new Job[] {new Job(), new Job(), new Job()},
+                        countingStage(),
+                        countingStage(),
+                        countingStage(),
+                        new FramePipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(final Job job) {
+                                recycled.add(job.frame);
+                                return true;
+                            }
+                        });
+
+        int submitted = 0;
+        while (submitted < 3) {
+            final Job job = pipeline.obtain();
+            if (job == null) {
+                Thread.yield();
+                continue;
+            }
+            job.frame = submitted++;
+            assertTrue(pipeline.submit(job));
+        }
+        pipeline.pause();
+        assertTrue(pipeline.isPaused());
+        assertEquals(submitted, recycled.size());
+
+        // A rejected job is handed out again rather than lost.
+        final Job rejected = pipeline.obtain();
+        assertNotNull(rejected);
+        assertFalse(pipeline.submit(rejected));
+        assertSame(rejected, pipeline.obtain());
+
+        pipeline.resume();
+        rejected.frame = submitted++;
+        assertTrue(pipeline.submit(rejected));
+        pipeline.shutdown();
+        assertEquals(submitted, recycled.size());
+    }
+
+    private static void runPipeline(final int numInferWorkers) {
+        final List<Integer> published = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> recycled = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> inferred = Collections.synchronizedList(new ArrayList<Integer>());
+        final FramePipeline<Job> pipeline =
+                new FramePipeline<Job>(
+                        new Job[] {new Job(), new Job(), new Job(), new Job(), new Job()},
+                        countingStage(),
+                        new FramePipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(final Job job) {
+                                job.stagesRun++;
+                                inferred.add(job.frame);
+                                if (job.frame % 2 == 0) {
+                                    // Lets concurrent workers overtake each other.
+                                    Thread.yield();
+                                }
+                                // Every third frame is dropped by the infer stage.
+                                return job.frame % 3 != 0;
+                            }
+                        },
+                        numInferWorkers,
+                        new FramePipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(final Job job) {
+                                assertEquals(2, job.stagesRun);
+                                published.add(job.frame);
+                                return true;
+                            }
+                        },
+                        new FramePipeline.Stage<Job>() {
+                            @Override
+                            public boolean process(final Job job) {
+                                recycled.add(job.frame);
+                                return true;
+                            }
+                        });
+
+        int submitted = 0;
+        while (submitted < NUM_FRAMES) {
+            final Job job = pipeline.obtain();
+            if (job == null) {
+                Thread.yield();
+                continue;
+            }
+            job.frame = submitted++;
+            job.stagesRun = 0;
+            assertTrue(pipeline.submit(job));
+        }
+        pipeline.shutdown();
+
+        // Every frame leaves the pipeline exactly once, whether published, dropped or displaced.
+        assertEquals(NUM_FRAMES, recycled.size());
+        Collections.sort(recycled);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            assertEquals(i, (int) recycled.get(i));
+        }
+        // Neither displacement nor concurrent inference ever reorders frames.
+        int previous = -1;
+        for (final int frame : published) {
+            assertTrue(frame % 3 != 0);
+            assertTrue(frame > previous);
+            previous = frame;
+        }
+        assertEquals(NUM_FRAMES, inferred.size() + pipeline.getDisplacedCount());
+        int numPublishable = 0;
+        for (final int frame : inferred) {
+            if (frame % 3 != 0) {
+                numPublishable++;
+            }
+        }
+        assertEquals(numPublishable, published.size());
+
+        assertNotNull(pipeline.obtain());
+        assertFalse(pipeline.submit(new Job()));
+    }
+
+    /**
+     * Submits frames {@code first} up to {@code end}, waiting for free jobs.
+     *
+     * @return {@code end}.
+     */
+    private static int submitFrames(
+            final FramePipeline<Job> pipeline, final int first, final int end) {
+        int submitted = first;
+        while (submitted < end) {
+            final Job job = pipeline.obtain();
+            if (job == null) {
+                Thread.yield();
+                continue;
+            }
+            job.frame = submitted++;
+            job.stagesRun = 0;
+            assertTrue(pipeline.submit(job));
+        }
+        return submitted;
+    }
+
+    private static FramePipeline.Stage<Job> countingStage() {
+        return new FramePipeline.Stage<Job>() {
+            @Override
+            public boolean process(final Job job) {
+                job.stagesRun++;
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Checks the table-driven YUV converters against the original arithmetic implementation. */
+public class ImageUtilsTest {
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void yuv2rgb_isBitExactForAllInputs() {
+        for (int y = 0; y < 256; y++) {
+            for (int u = 0; u < 256; u++) {
+                for (int v = 0; v < 256; v++) {
+                    if (ImageUtils.YUV2RGB(y, u, v) != referenceYUV2RGB(y, u, v)) {
+                        fail("Mismatch at y=" + y + " u=" + u + " v=" + v);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void yuv420sp_matchesReferenceOnRandomFrames() {
+        final Random random = new Random(3);
+        for (int n = 0; n < ITERATIONS; n++) {
+            final int width = 1 + random.nextInt(40);
+            final int height = 1 + random.nextInt(40);
+            final byte[] input = new byte[ImageUtils.getYUVByteSize(width, height) + width];
+            random.nextBytes(input);
+
+            final int[] expected = new int[width * height];
+            referenceYUV420SPToARGB8888(input, width, height, expected);
+
+            final int[] actual = new int[width * height];
+            ImageUtils.convertYUV420SPToARGB8888(input, width, height, actual);
+            assertArrayEquals(expected, actual);
+
+            // Odd stripe boundaries must not change the output.
+            final int[] striped = new int[width * height];
+            final int split = random.nextInt(height + 1);
+            ImageUtils.convertYUV420SPToARGB8888(input, width, height, striped, 0, split);
+            ImageUtils.convertYUV420SPToARGB8888(input, width, height, striped, split, height);
+            assertArrayEquals(expected, striped);
+        }
+    }
+
+    @Test
+    public void yuv420_matchesReferenceOnRandomFrames() {
+        final Random random = new Random(4);
+        for (int n = 0; n < ITERATIONS; n++) {
+            final int width = 1 + random.nextInt(40);
+            final int height = 1 + random.nextInt(40);
+            final int uvPixelStride = 1 + random.nextInt(2);
+            final int yRowStride = width + random.nextInt(8);
+            final int uvRowStride = ((width + 1) / 2) * uvPixelStride + random.nextInt(8);
+            final byte[] yData = new byte[yRowStride * height];
+            final byte[] uData = new byte[uvRowStride * ((height + 1) / 2)];
+            final byte[] vData = new byte[uData.length];
+            random.nextBytes(yData);
+            random.nextBytes(uData);
+            random.nextBytes(vData);
+
+            final int[] expected = new int[width * height];
+            referenceYUV420ToARGB8888(
+                    yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, expected);
+
+            final int[] actual = new int[width * height];
+            ImageUtils.convertYUV420ToARGB8888(
+                    yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, actual);
+            assertArrayEquals(expected, actual);
+
+            final int[] striped = new int[width * height];
+            final int split = random.nextInt(height + 1);
+            ImageUtils.convertYUV420ToARGB8888(
+                    yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, striped,
+                    0, split);
+            ImageUtils.convertYUV420ToARGB8888(
+                    yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, striped,
+                    split, height);
+            assertArrayEquals(expected, striped);
+        }
+    }
+
+    @Test
+    public void yuv420Buffers_matchArrays() {
+        final Random random = new Random(5);
+        final int width = 37;
+        final int height = 29;
+        final int yRowStride = 40;
+        final int uvRowStride = 40;
+        final int uvPixelStride = 2;
+        final byte[] yData = new byte[yRowStride * height];
+        final byte[] uData = new byte[uvRowStride * ((height + 1) / 2)];
+        final byte[] vData = new byte[uData.length];
+        random.nextBytes(yData);
+        random.nextBytes(uData);
+        random.nextBytes(vData);
+
+        final int[] expected = new int[width * height];
+        ImageUtils.convertYUV420ToARGB8888(
+                yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, expected);
+
+        final int[] actual = new int[width * height];
+        ImageUtils.convertYUV420ToARGB8888(
+                toDirectBuffer(yData),
+                toDirectBuffer(uData),
+                toDirectBuffer(vData),
+                width,
+                height,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static ByteBuffer toDirectBuffer(byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static int referenceYUV2RGB(int y, int u, int v) {
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+
+        int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        r = r > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (r < 0 ? 0 : r);
+        g = g > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (g < 0 ? 0 : g);
+        b = b > ImageUtils.kMaxChannelValue ? ImageUtils.kMaxChannelValue : (b < 0 ? 0 : b);
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    private static void referenceYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+        final int frameSize = width * height;
+        for (int j = 0, yp = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            int u = 0;
+            int v = 0;
+
+            for (int i = 0; i < width; i++, yp++) {
+                int y = 0xff & input[yp];
+                if ((i & 1) == 0) {
+                    v = 0xff & input[uvp++];
+                    u = 0xff & input[uvp++];
+                }
+
+                output[yp] = referenceYUV2RGB(y, u, v);
+            }
+        }
+    }
+
+    private static void referenceYUV420ToARGB8888(
+            byte[] yData,
+            byte[] uData,
+            byte[] vData,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out) {
+        int yp = 0;
+        for (int j = 0; j < height; j++) {
+            int pY = yRowStride * j;
+            int pUV = uvRowStride * (j >> 1);
+
+            for (int i = 0; i < width; i++) {
+                int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+                out[yp++] =
+                        referenceYUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+            }
+        }
+    }
+}
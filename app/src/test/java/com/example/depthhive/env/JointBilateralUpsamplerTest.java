@@ -0,0 +1,71 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** Checks that {@link JointBilateralUpsampler} keeps depth edges on luminance edges. */
+public class JointBilateralUpsamplerTest {
+    private static final int DEPTH_SIZE = 8;
+    private static final int OUTPUT_SIZE = 32;
+
+    @Test
+    public void uniformDepth_staysUniform() {
+        final float[] depth = new float[DEPTH_SIZE * DEPTH_SIZE];
+        Arrays.fill(depth, 3f);
+        final byte[] guide = new byte[OUTPUT_SIZE * OUTPUT_SIZE];
+        for (int i = 0; i < guide.length; i++) {
+            guide[i] = (byte) (i * 7);
+        }
+        final float[] output = upsample(depth, guide);
+        for (final float d : output) {
+            assertEquals(3f, d, 1e-5f);
+        }
+    }
+
+    @Test
+    public void depthEdge_followsGuideEdge() {
+        // The guide has an edge at column 13, the depth map only resolves columns of 4 pixels.
+        final int edge = 13;
+        final byte[] guide = new byte[OUTPUT_SIZE * OUTPUT_SIZE];
+        final float[] depth = new float[DEPTH_SIZE * DEPTH_SIZE];
+        for (int y = 0; y < OUTPUT_SIZE; y++) {
+            for (int x = 0; x < OUTPUT_SIZE; x++) {
+                guide[y * OUTPUT_SIZE + x] = (byte) (x < edge ? 40 : 200);
+            }
+        }
+        for (int y = 0; y < DEPTH_SIZE; y++) {
+            for (int x = 0; x < DEPTH_SIZE; x++) {
+                depth[y * DEPTH_SIZE + x] = x * 4 + 2 < edge ? 1f : 4f;
+            }
+        }
+        final float[] output = upsample(depth, guide);
+        final int row = 16 * OUTPUT_SIZE;
+        // Right next to the edge, each side keeps its own depth instead of a blend.
+        assertEquals(1f, output[row + edge - 1], 0.1f);
+        assertEquals(4f, output[row + edge], 0.1f);
+    }
+
+    @Test
+    public void invalidDepth_isLeftOut() {
+        final float[] depth = new float[DEPTH_SIZE * DEPTH_SIZE];
+        Arrays.fill(depth, 2f);
+        depth[3 * DEPTH_SIZE + 3] = Float.NaN;
+        depth[3 * DEPTH_SIZE + 4] = 0f;
+        final float[] output = upsample(depth, new byte[OUTPUT_SIZE * OUTPUT_SIZE]);
+        for (final float d : output) {
+            assertEquals(2f, d, 1e-5f);
+        }
+    }
+
+    private static float[] upsample(final float[] depth, final byte[] guide) {
+        final JointBilateralUpsampler upsampler = new JointBilateralUpsampler(2);
+        upsampler.configure(DEPTH_SIZE, DEPTH_SIZE, OUTPUT_SIZE, OUTPUT_SIZE);
+        final float[] output = new float[OUTPUT_SIZE * OUTPUT_SIZE];
+        upsampler.upsample(depth, guide, output);
+        upsampler.close();
+        return output;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Checks that the row-striped converters match the serial {@link ImageUtils} converters. */
+public class ParallelYuvConverterTest {
+    private static final int WIDTH = 63;
+    private static final int HEIGHT = 47;
+
+    @Test
+    public void yuv420sp_matchesSerial() {
+        final Random random = new Random(1);
+        final byte[] input = new byte[ImageUtils.getYUVByteSize(WIDTH, HEIGHT) + WIDTH];
+        random.nextBytes(input);
+
+        final int[] expected = new int[WIDTH * HEIGHT];
+        ImageUtils.convertYUV420SPToARGB8888(input, WIDTH, HEIGHT, expected);
+
+        final ParallelYuvConverter converter = new ParallelYuvConverter(4);
+        try {
+            for (int i = 0; i < 3; i++) {
+                final int[] actual = new int[WIDTH * HEIGHT];
+                converter.convertYUV420SPToARGB8888(input, WIDTH, HEIGHT, actual);
+                assertArrayEquals(expected, actual);
+            }
+        } finally {
+            converter.close();
+        }
+    }
+
+    @Test
+    public void yuv420_matchesSerial() {
+        final Random random = new Random(2);
+        final int yRowStride = WIDTH + 5;
+        final int uvPixelStride = 2;
+        final int uvRowStride = WIDTH + 3;
+        final byte[] yData = new byte[yRowStride * HEIGHT];
+        final byte[] uData = new byte[uvRowStride * ((HEIGHT + 1) / 2)];
+        final byte[] vData = new byte[uData.length];
+        random.nextBytes(yData);
+        random.nextBytes(uData);
+        random.nextBytes(vData);
+
+        final int[] expected = new int[WIDTH * HEIGHT];
+        ImageUtils.convertYUV420ToARGB8888(
+                yData, uData, vData, WIDTH, HEIGHT, yRowStride, uvRowStride, uvPixelStride, expected);
+
+        final ParallelYuvConverter converter = new ParallelYuvConverter(3);
+        try {
+            final int[] actual = new int[WIDTH * HEIGHT];
+            converter.convertYUV420ToARGB8888(
+                    yData, uData, vData, WIDTH, HEIGHT, yRowStride, uvRowStride, uvPixelStride, actual);
+            assertArrayEquals(expected, actual);
+
+            converter.setParallel(false);
+            final int[] serial = new int[WIDTH * HEIGHT];
+            converter.convertYUV420ToARGB8888(
+                    yData, uData, vData, WIDTH, HEIGHT, yRowStride, uvRowStride, uvPixelStride, serial);
+            assertArrayEquals(expected, serial);
+        } finally {
+            converter.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/** Checks the back-projection of {@link PointCloudProjector} and {@link CameraIntrinsics}. */
+public class PointCloudProjectorTest {
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 480;
+    private static final int DEPTH_SIZE = 16;
+
+    private static final CameraIntrinsics INTRINSICS =
+            new CameraIntrinsics(500f, 510f, 330f, 235f, FRAME_WIDTH, FRAME_HEIGHT);
+
+    @Test
+    public void intrinsics_scaleToCroppedStream() {
+        // A 4:3 array streamed at 16:9 is scaled by half and cropped at the top and bottom.
+        final CameraIntrinsics array = new CameraIntrinsics(1000f, 1000f, 640f, 480f, 1280, 960);
+        final CameraIntrinsics stream = array.scaleTo(640, 360);
+
+        assertEquals(500f, stream.getFocalLengthX(), 1e-3f);
+        assertEquals(500f, stream.getFocalLengthY(), 1e-3f);
+        assertEquals(320f, stream.getPrincipalPointX(), 1e-3f);
+        assertEquals(180f, stream.getPrincipalPointY(), 1e-3f);
+        assertSame(stream, stream.scaleTo(640, 360));
+    }
+
+    @Test
+    public void rays_passThroughSampledPixelsForEveryRotation() {
+        final int[] sampleMap = new int[DEPTH_SIZE * DEPTH_SIZE];
+        final float[] rayX = new float[DEPTH_SIZE * DEPTH_SIZE];
+        final float[] rayY = new float[DEPTH_SIZE * DEPTH_SIZE];
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            ImageUtils.computeSampleMap(
+                    FRAME_WIDTH, FRAME_HEIGHT, DEPTH_SIZE, DEPTH_SIZE, rotation, sampleMap);
+            PointCloudProjector.computeRays(
+                    INTRINSICS,
+                    FRAME_WIDTH,
+                    FRAME_HEIGHT,
+                    rotation,
+                    DEPTH_SIZE,
+                    DEPTH_SIZE,
+                    rayX,
+                    rayY);
+            for (int y = 0; y < DEPTH_SIZE; y++) {
+                for (int x = 0; x < DEPTH_SIZE; x++) {
+                    final int i = y * DEPTH_SIZE + x;
+                    // Undo the rotation about the optical axis and project into the frame.
+                    final double angle = Math.toRadians(rotation);
+                    final double cameraX = rayX[i] * Math.cos(angle) - rayY[i] * Math.sin(angle);
+                    final double cameraY = rayX[i] * Math.sin(angle) + rayY[i] * Math.cos(angle);
+                    final double sx = cameraX * 500f + 330f;
+                    final double sy = cameraY * 510f + 235f;
+                    assertEquals(
+                            "x at rotation " + rotation, sampleMap[i] % FRAME_WIDTH, sx, 1.0);
+                    assertEquals(
+                            "y at rotation " + rotation, sampleMap[i] / FRAME_WIDTH, sy, 1.0);
+                    // The upright axes point right and down in the depth map.
+                    if (x > 0) {
+                        assertTrue(rayX[i] > rayX[i - 1]);
+                    }
+                    if (y > 0) {
+                        assertTrue(rayY[i] > rayY[i - DEPTH_SIZE]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void project_scalesRaysByDepthAndReusesTheBuffer() {
+        final PointCloudProjector projector = new PointCloudProjector();
+        projector.configure(INTRINSICS, FRAME_WIDTH, FRAME_HEIGHT, 90, DEPTH_SIZE, DEPTH_SIZE);
+        final float[] rayX = new float[DEPTH_SIZE * DEPTH_SIZE];
+        final float[] rayY = new float[DEPTH_SIZE * DEPTH_SIZE];
+        PointCloudProjector.computeRays(
+                INTRINSICS, FRAME_WIDTH, FRAME_HEIGHT, 90, DEPTH_SIZE, DEPTH_SIZE, rayX, rayY);
+
+        final float[] depth = new float[DEPTH_SIZE * DEPTH_SIZE];
+        for (int i = 0; i < depth.length; i++) {
+            depth[i] = 1f + i * 0.01f;
+        }
+        depth[5] = 0f;
+        depth[6] = Float.NaN;
+        final PointCloud cloud = new PointCloud();
+        projector.project(depth, 7L, cloud);
+        final FloatBuffer points = cloud.getPoints();
+
+        assertEquals(7L, cloud.getTimestampNs());
+        assertEquals(DEPTH_SIZE * DEPTH_SIZE, cloud.getPointCount());
+        assertEquals(0, points.position());
+        assertEquals(3 * DEPTH_SIZE * DEPTH_SIZE, points.limit());
+        assertTrue(points.isDirect());
+        for (int i = 0; i < depth.length; i++) {
+            if (i == 5 || i == 6) {
+                assertTrue(Float.isNaN(points.get(3 * i)));
+                assertTrue(Float.isNaN(points.get(3 * i + 2)));
+                continue;
+            }
+            assertEquals(depth[i] * rayX[i], points.get(3 * i), 1e-6f);
+            assertEquals(depth[i] * rayY[i], points.get(3 * i + 1), 1e-6f);
+            assertEquals(depth[i], points.get(3 * i + 2), 0f);
+        }
+
+        projector.project(depth, 8L, cloud);
+        assertSame(points, cloud.getPoints());
+
+        final PointCloud copy = new PointCloud();
+        copy.copyFrom(cloud);
+        assertEquals(8L, copy.getTimestampNs());
+        assertEquals(points.get(30), copy.getPoints().get(30), 0f);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** Checks the reuse decisions of {@link SceneChangeDetector}. */
+public class SceneChangeDetectorTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int ROW_STRIDE = 72;
+
+    @Test
+    public void unchangedScene_isReusedUntilMaxAge() {
+        final SceneChangeDetector detector = new SceneChangeDetector(8, 6);
+        detector.setMaxReuseAgeMs(100);
+        final byte[] frame = createFrame(80);
+
+        assertTrue(estimate(detector, frame, 0));
+        assertFalse(estimate(detector, frame, 50));
+        assertTrue(estimate(detector, frame, 100));
+        assertEquals(2, detector.getComputedCount());
+        assertEquals(1, detector.getReusedCount());
+
+        detector.reset();
+        assertTrue(estimate(detector, frame, 110));
+    }
+
+    @Test
+    public void changedScene_isEstimated() {
+        final SceneChangeDetector detector = new SceneChangeDetector(8, 6);
+        detector.setThresholds(4.0f, 24, 0.05f);
+        final byte[] frame = createFrame(80);
+        assertTrue(estimate(detector, frame, 0));
+
+        // Small global noise stays below the thresholds.
+        assertFalse(estimate(detector, createFrame(82), 10));
+
+        // A bright object covering a corner changes enough cells.
+        assertTrue(estimate(detector, createMovedFrame(), 20));
+    }
+
+    @Test
+    public void droppedChangedFrame_keepsNextFrameEstimated() {
+        final SceneChangeDetector detector = new SceneChangeDetector(8, 6);
+        detector.setThresholds(4.0f, 24, 0.05f);
+        assertTrue(estimate(detector, createFrame(80), 0));
+
+        // The changed frame is dropped before inference, so it is never committed.
+        final byte[] moved = createMovedFrame();
+        assertTrue(detector.shouldEstimate(moved, WIDTH, HEIGHT, ROW_STRIDE, 10));
+        assertEquals(1, detector.getComputedCount());
+
+        // The next frame of the changed scene is still compared with the old reference.
+        assertTrue(estimate(detector, moved, 20));
+        assertFalse(estimate(detector, moved, 30));
+    }
+
+    @Test
+    public void buffer_matchesArray() {
+        final SceneChangeDetector arrayDetector = new SceneChangeDetector(8, 6);
+        final SceneChangeDetector bufferDetector = new SceneChangeDetector(8, 6);
+        final int[] cells = new int[bufferDetector.getCellCount()];
+        final int[] levels = {80, 81, 120, 121, 200};
+        for (int i = 0; i < levels.length; i++) {
+            final byte[] frame = createFrame(levels[i]);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+            buffer.put(frame);
+            final boolean estimated =
+                    bufferDetector.shouldEstimate(buffer, WIDTH, HEIGHT, ROW_STRIDE, i);
+            if (estimated) {
+                bufferDetector.copyCells(cells);
+                bufferDetector.commitReference(cells, i);
+            }
+            assertEquals(estimate(arrayDetector, frame, i), estimated);
+        }
+    }
+
+    /** Examines a frame and, if it is to be estimated, commits it as if its map was published. */
+    private static boolean estimate(
+            final SceneChangeDetector detector, final byte[] frame, final long timestampMs) {
+        if (!detector.shouldEstimate(frame, WIDTH, HEIGHT, ROW_STRIDE, timestampMs)) {
+            return false;
+        }
+        final int[] cells = new int[detector.getCellCount()];
+        detector.copyCells(cells);
+        detector.commitReference(cells, timestampMs);
+        return true;
+    }
+
+    private static byte[] createMovedFrame() {
+        final byte[] moved = createFrame(80);
+        for (int y = 0; y < HEIGHT / 3; y++) {
+            Arrays.fill(moved, y * ROW_STRIDE, y * ROW_STRIDE + WIDTH / 3, (byte) 220);
+        }
+        return moved;
+    }
+
+    private static byte[] createFrame(final int level) {
+        final byte[] frame = new byte[ROW_STRIDE * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame[y * ROW_STRIDE + x] = (byte) (level + ((x + y) & 3));
+            }
+            // Padding past the row must be ignored.
+            Arrays.fill(frame, y * ROW_STRIDE + WIDTH, (y + 1) * ROW_STRIDE, (byte) 255);
+        }
+        return frame;
+    }
+}
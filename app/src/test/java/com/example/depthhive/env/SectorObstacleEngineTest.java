@@ -0,0 +1,97 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** Checks the sector reduction of {@link SectorObstacleEngine}. */
+public class SectorObstacleEngineTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int NUM_SECTORS = 4;
+
+    @Test
+    public void sectors_reportNearestPercentileAndOccupancy() {
+        final float[] depth = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                depth[y * WIDTH + x] = x < WIDTH / 2 ? 1f : 5f;
+            }
+        }
+        // A single outlier on the right, and a hole without depth.
+        depth[20 * WIDTH + 60] = 0.3f;
+        depth[21 * WIDTH + 60] = Float.NaN;
+
+        final SectorObstacleEngine engine = new SectorObstacleEngine(NUM_SECTORS, 60f, 10f);
+        engine.setRowBand(0f, 1f);
+        engine.setSampleStep(1);
+        final ObstacleSectors result = new ObstacleSectors(NUM_SECTORS);
+        engine.analyze(depth, WIDTH, HEIGHT, 42L, result);
+
+        assertEquals(42L, result.getTimestampNs());
+        assertEquals(1f, result.getNearestMeters(0), 0f);
+        assertEquals(1f, result.getLowPercentileMeters(0), 0.05f);
+        assertEquals(1f, result.getOccupiedFraction(0), 0f);
+        // The outlier is the nearest sample, but does not move the percentile.
+        assertEquals(0.3f, result.getNearestMeters(3), 0f);
+        assertEquals(5f, result.getLowPercentileMeters(3), 0.05f);
+        assertTrue(result.getOccupiedFraction(3) < 0.01f);
+        assertTrue(result.getNearestSector() < NUM_SECTORS / 2);
+    }
+
+    @Test
+    public void emptySectors_areInfinitelyFar() {
+        final float[] depth = new float[WIDTH * HEIGHT];
+        final SectorObstacleEngine engine = new SectorObstacleEngine(NUM_SECTORS, 60f, 10f);
+        final ObstacleSectors result = new ObstacleSectors(NUM_SECTORS);
+        engine.analyze(depth, WIDTH, HEIGHT, 0L, result);
+
+        for (int s = 0; s < NUM_SECTORS; s++) {
+            assertEquals(Float.POSITIVE_INFINITY, result.getNearestMeters(s), 0f);
+            assertEquals(0f, result.getOccupiedFraction(s), 0f);
+        }
+    }
+
+    @Test
+    public void changedFov_remapsColumns() {
+        final float[] depth = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                depth[y * WIDTH + x] = 1f + x * 0.1f;
+            }
+        }
+        final SectorObstacleEngine engine = new SectorObstacleEngine(NUM_SECTORS, 60f, 10f);
+        final ObstacleSectors narrow = new ObstacleSectors(NUM_SECTORS);
+        engine.analyze(depth, WIDTH, HEIGHT, 0L, narrow);
+
+        engine.setHorizontalFov(150f);
+        final ObstacleSectors wide = new ObstacleSectors(NUM_SECTORS);
+        engine.analyze(depth, WIDTH, HEIGHT, 0L, wide);
+        final ObstacleSectors expected = new ObstacleSectors(NUM_SECTORS);
+        new SectorObstacleEngine(NUM_SECTORS, 150f, 10f)
+                .analyze(depth, WIDTH, HEIGHT, 0L, expected);
+
+        for (int s = 0; s < NUM_SECTORS; s++) {
+            assertEquals(expected.getNearestMeters(s), wide.getNearestMeters(s), 0f);
+        }
+        // Equal angles of a wider view leave fewer columns to the inner sectors.
+        assertTrue(wide.getNearestMeters(1) > narrow.getNearestMeters(1));
+    }
+
+    @Test
+    public void sectorsOfColumns_areSymmetricAndEqualAngle() {
+        final int[] sectors = SectorObstacleEngine.computeSectorOfColumn(WIDTH, NUM_SECTORS, 1f);
+        for (int x = 0; x < WIDTH; x++) {
+            assertEquals(NUM_SECTORS - 1 - sectors[x], sectors[WIDTH - 1 - x]);
+        }
+        final int[] columnsPerSector = new int[NUM_SECTORS];
+        for (final int sector : sectors) {
+            columnsPerSector[sector]++;
+        }
+        // Outer sectors of equal angle span more columns than the inner ones.
+        assertTrue(columnsPerSector[0] > columnsPerSector[1]);
+        assertEquals(WIDTH, Arrays.stream(columnsPerSector).sum());
+    }
+}
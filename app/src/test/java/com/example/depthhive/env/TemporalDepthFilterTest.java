@@ -0,0 +1,84 @@
+package com.example.depthhive.env;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/** Checks smoothing, outlier rejection and scene-change resets of {@link TemporalDepthFilter}. */
+public class TemporalDepthFilterTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+
+    @Test
+    public void flicker_isSmoothedInBothModes() {
+        for (final TemporalDepthFilter.Mode mode : TemporalDepthFilter.Mode.values()) {
+            final TemporalDepthFilter filter = new TemporalDepthFilter(2);
+            filter.setMode(mode);
+            final float[] depth = new float[WIDTH * HEIGHT];
+            for (int frame = 0; frame < 30; frame++) {
+                Arrays.fill(depth, frame % 2 == 0 ? 2.1f : 1.9f);
+                filter.filter(depth, WIDTH, HEIGHT);
+            }
+            for (final float d : depth) {
+                assertEquals(mode.toString(), 2f, d, 0.05f);
+            }
+            filter.close();
+        }
+    }
+
+    @Test
+    public void outliers_areRejectedUntilPersistent() {
+        final TemporalDepthFilter filter = new TemporalDepthFilter(1);
+        filter.setGate(0.3f, 2, 0.5f);
+        final float[] depth = new float[WIDTH * HEIGHT];
+        for (int frame = 0; frame < 5; frame++) {
+            Arrays.fill(depth, 2f);
+            filter.filter(depth, WIDTH, HEIGHT);
+        }
+
+        final int pixel = 5 * WIDTH + 7;
+        for (int frame = 0; frame < 2; frame++) {
+            Arrays.fill(depth, 2f);
+            depth[pixel] = 8f;
+            filter.filter(depth, WIDTH, HEIGHT);
+            assertEquals(2f, depth[pixel], 1e-3f);
+        }
+        // A third rejection in a row restarts the pixel.
+        Arrays.fill(depth, 2f);
+        depth[pixel] = 8f;
+        filter.filter(depth, WIDTH, HEIGHT);
+        assertEquals(8f, depth[pixel], 1e-3f);
+
+        // Holes are filled from the estimate.
+        Arrays.fill(depth, 2f);
+        depth[0] = Float.NaN;
+        filter.filter(depth, WIDTH, HEIGHT);
+        assertEquals(2f, depth[0], 1e-3f);
+        assertEquals(0, filter.getResetCount());
+        filter.close();
+    }
+
+    @Test
+    public void sceneChange_restartsEveryPixel() {
+        final TemporalDepthFilter filter = new TemporalDepthFilter(2);
+        final float[] depth = new float[WIDTH * HEIGHT];
+        for (int frame = 0; frame < 5; frame++) {
+            Arrays.fill(depth, 2f);
+            filter.filter(depth, WIDTH, HEIGHT);
+        }
+        Arrays.fill(depth, 5f);
+        filter.filter(depth, WIDTH, HEIGHT);
+        assertEquals(1, filter.getResetCount());
+        for (final float d : depth) {
+            assertEquals(5f, d, 0f);
+        }
+
+        // The new estimates are tracked from then on.
+        Arrays.fill(depth, 5f);
+        filter.filter(depth, WIDTH, HEIGHT);
+        assertEquals(5f, depth[0], 1e-3f);
+        filter.close();
+    }
+}
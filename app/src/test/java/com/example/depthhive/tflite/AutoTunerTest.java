@@ -0,0 +1,78 @@
+package com.example.depthhive.tflite;
+
+import com.example.depthhive.tflite.AutoTuner.Configuration;
+import com.example.depthhive.tflite.DepthEstimator.Device;
+import com.example.depthhive.tflite.DepthEstimator.Model;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/** Checks the candidates and the choice of {@link AutoTuner}. */
+public class AutoTunerTest {
+    private static final float FAILED = Float.POSITIVE_INFINITY;
+
+    @Test
+    public void candidates_coverThreadCountsOnlyOnCpu() {
+        final List<Configuration> candidates = AutoTuner.getCandidates(4, 2);
+        int numCpu = 0;
+        int numPooled = 0;
+        for (final Configuration candidate : candidates) {
+            if (candidate.getDevice() != Device.CPU) {
+                assertEquals(1, candidate.getNumThreads());
+                assertEquals(1, candidate.getNumInterpreters());
+            } else if (candidate.getNumInterpreters() == 1) {
+                numCpu++;
+            } else {
+                // Concurrent interpreters only while their threads fit on the processors.
+                assertTrue(candidate.getNumThreads() * candidate.getNumInterpreters() <= 4);
+                numPooled++;
+            }
+            assertFalse(
+                    candidate.getDevice() == Device.GPU
+                            && candidate.getModel() == Model.QUANTIZED_MOBILENET);
+        }
+        assertEquals(4 * Model.values().length, numCpu);
+        assertEquals(2 * Model.values().length, numPooled);
+    }
+
+    @Test
+    public void choose_comparesTimePerFrameAcrossInterpreterCounts() {
+        final List<Configuration> results =
+                Arrays.asList(
+                        new Configuration(Model.FLOAT_MOBILENET, Device.CPU, 4, 1, 80),
+                        new Configuration(Model.FLOAT_MOBILENET, Device.CPU, 2, 2, 60));
+        assertEquals(2, AutoTuner.choose(results, 100).getNumInterpreters());
+    }
+
+    @Test
+    public void choose_prefersFloatModelMeetingTarget() {
+        final List<Configuration> results =
+                Arrays.asList(
+                        new Configuration(Model.FLOAT_MOBILENET, Device.CPU, 2, 90),
+                        new Configuration(Model.FLOAT_MOBILENET, Device.CPU, 4, 70),
+                        new Configuration(Model.FLOAT_MOBILENET, Device.GPU, 1, FAILED),
+                        new Configuration(Model.QUANTIZED_MOBILENET, Device.CPU, 4, 40));
+        final Configuration chosen = AutoTuner.choose(results, 100);
+        assertEquals(Model.FLOAT_MOBILENET, chosen.getModel());
+        assertEquals(4, chosen.getNumThreads());
+    }
+
+    @Test
+    public void choose_fallsBackToFastestOverall() {
+        final List<Configuration> results =
+                Arrays.asList(
+                        new Configuration(Model.FLOAT_MOBILENET, Device.CPU, 4, 300),
+                        new Configuration(Model.QUANTIZED_MOBILENET, Device.NNAPI, 1, 150),
+                        new Configuration(Model.QUANTIZED_MOBILENET, Device.CPU, 4, 120));
+        assertEquals(Device.CPU, AutoTuner.choose(results, 100).getDevice());
+        assertEquals(Model.QUANTIZED_MOBILENET, AutoTuner.choose(results, 200).getModel());
+
+        assertNull(
+                AutoTuner.choose(
+                        Arrays.asList(new Configuration(Model.FLOAT_MOBILENET, Device.GPU, 1, FAILED)),
+                        100));
+    }
+}
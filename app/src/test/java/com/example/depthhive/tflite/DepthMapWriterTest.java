@@ -0,0 +1,131 @@
+package com.example.depthhive.tflite;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link DepthMapWriter} against normalizing into an 8-bit grayscale image and against
+ * dequantizing into meters.
+ */
+public class DepthMapWriterTest {
+    private static final int WIDTH = 20;
+    private static final int HEIGHT = 12;
+
+    @Test
+    public void floatOutput_matchesNormalizedGrayscale() {
+        final float mean = 0f;
+        final float std = 10f / 255f;
+        final DepthMapWriter writer = new DepthMapWriter(WIDTH, HEIGHT, false, mean, std);
+        final ByteBuffer output = allocate(writer.getInputByteSize());
+        final Random random = new Random(0);
+        final float[] values = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < values.length; i++) {
+            // Covers values below 0 and above 255 after normalization.
+            values[i] = random.nextFloat() * 12f - 1f;
+            output.putFloat(i * 4, values[i]);
+        }
+
+        final int[] argb = new int[WIDTH * HEIGHT];
+        writer.write(output, argb);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(grayscale((values[i] - mean) / std), argb[i]);
+        }
+    }
+
+    @Test
+    public void quantizedOutput_matchesNormalizedGrayscale() {
+        final DepthMapWriter writer = new DepthMapWriter(WIDTH, HEIGHT, true, 0f, 1f);
+        final ByteBuffer output = allocate(writer.getInputByteSize());
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            output.put(i, (byte) i);
+        }
+
+        final int[] argb = new int[WIDTH * HEIGHT];
+        writer.write(output, argb);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(grayscale(i & 0xff), argb[i]);
+        }
+    }
+
+    @Test
+    public void metricOutput_dequantizesIntoMeters() {
+        final float scale = 10f / 255f;
+        final int zeroPoint = 3;
+        final DepthMapWriter quantized =
+                new DepthMapWriter(WIDTH, HEIGHT, true, 0f, 1f, scale, zeroPoint);
+        final DepthMapWriter floating = new DepthMapWriter(WIDTH, HEIGHT, false, 0f, 1f);
+        final ByteBuffer quantizedOutput = allocate(quantized.getInputByteSize());
+        final ByteBuffer floatOutput = allocate(floating.getInputByteSize());
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            quantizedOutput.put(i, (byte) i);
+            floatOutput.putFloat(i * 4, i * 0.01f);
+        }
+
+        final float[] depth = new float[WIDTH * HEIGHT];
+        quantized.writeMetric(quantizedOutput, depth);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(scale * ((i & 0xff) - zeroPoint), depth[i], 1e-6f);
+        }
+        floating.writeMetric(floatOutput, depth);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(i * 0.01f, depth[i], 0f);
+        }
+    }
+
+    @Test
+    public void pixelsFromMetric_matchPixelsFromQuantizedOutput() {
+        assertPixelsFromMetricMatch(new DepthMapWriter(256, 1, true, 0f, 1f, 0.04f, 0));
+        assertPixelsFromMetricMatch(new DepthMapWriter(256, 1, true, 0f, 1f, 0.0411f, 0));
+        assertPixelsFromMetricMatch(new DepthMapWriter(256, 1, true, 0f, 1f, 10f / 255f, 128));
+        assertPixelsFromMetricMatch(new DepthMapWriter(256, 1, true, 2f, 0.5f, 10f / 255f, 3));
+    }
+
+    @Test
+    public void pixelsFromMetric_matchPixelsFromFloatOutput() {
+        final DepthMapWriter writer = new DepthMapWriter(256, 1, false, 0f, 10f / 255f);
+        final ByteBuffer output = allocate(writer.getInputByteSize());
+        for (int i = 0; i < 256; i++) {
+            // Exactly on every gray level, where dividing and multiplying round differently.
+            output.putFloat(i * 4, i * (10f / 255f));
+        }
+        assertPixelsFromMetricMatch(writer, output, 256);
+    }
+
+    /** Checks every uint8 output value, for a writer of 256 pixels, against meters. */
+    private static void assertPixelsFromMetricMatch(final DepthMapWriter writer) {
+        final ByteBuffer output = allocate(writer.getInputByteSize());
+        for (int i = 0; i < 256; i++) {
+            output.put(i, (byte) i);
+        }
+        assertPixelsFromMetricMatch(writer, output, 256);
+    }
+
+    private static void assertPixelsFromMetricMatch(
+            final DepthMapWriter writer, final ByteBuffer output, final int numPixels) {
+        final float[] depth = new float[numPixels];
+        writer.writeMetric(output, depth);
+
+        final int[] expected = new int[numPixels];
+        final int[] argb = new int[numPixels];
+        writer.write(output, expected);
+        writer.writeFromMetric(depth, numPixels, argb);
+        assertArrayEquals(expected, argb);
+    }
+
+    private static ByteBuffer allocate(final int size) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /** Returns the pixel an 8-bit grayscale image holds for a normalized value. */
+    private static int grayscale(final double value) {
+        final int gray = (byte) Math.max(Math.min(value, 255.0), 0.0) & 0xff;
+        return 0xff000000 | gray * 0x010101;
+    }
+}
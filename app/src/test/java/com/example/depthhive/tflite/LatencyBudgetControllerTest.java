@@ -0,0 +1,90 @@
+package com.example.depthhive.tflite;
+
+import com.example.depthhive.tflite.DepthEstimator.Device;
+import com.example.depthhive.tflite.DepthEstimator.Model;
+import com.example.depthhive.tflite.LatencyBudgetController.QualityLevel;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/** Checks the level changes and hysteresis of {@link LatencyBudgetController}. */
+public class LatencyBudgetControllerTest {
+    private static final float BUDGET_MS = 100;
+
+    @Test
+    public void levels_startAtSelectedModel() {
+        final List<QualityLevel> cpuLevels =
+                LatencyBudgetController.createLevels(Model.FLOAT_MOBILENET, Device.CPU);
+        assertEquals(Model.FLOAT_MOBILENET, cpuLevels.get(0).getModel());
+        assertEquals(1f, cpuLevels.get(0).getInputScale(), 0);
+        assertEquals(
+                Model.QUANTIZED_MOBILENET, cpuLevels.get(cpuLevels.size() - 1).getModel());
+
+        for (final QualityLevel level :
+                LatencyBudgetController.createLevels(Model.FLOAT_MOBILENET, Device.GPU)) {
+            assertEquals(Model.FLOAT_MOBILENET, level.getModel());
+        }
+        for (final QualityLevel level :
+                LatencyBudgetController.createLevels(Model.QUANTIZED_MOBILENET, Device.CPU)) {
+            assertEquals(Model.QUANTIZED_MOBILENET, level.getModel());
+        }
+    }
+
+    @Test
+    public void sustainedOverload_stepsDownAndHeadroom_stepsBackUp() {
+        final LatencyBudgetController controller = createController();
+        final QualityLevel highest = controller.getLevel();
+
+        // A single slow inference does not change the level.
+        assertFalse(report(controller, 20, 50));
+        assertFalse(controller.onInference(400));
+        assertFalse(report(controller, 20, 50));
+        assertSame(highest, controller.getLevel());
+
+        assertTrue(report(controller, 20, 150));
+        final QualityLevel lower = controller.getLevel();
+        assertNotSame(highest, lower);
+
+        // Latencies between the thresholds keep the level.
+        assertFalse(report(controller, 100, 80));
+        assertSame(lower, controller.getLevel());
+
+        assertTrue(report(controller, 100, 30));
+        assertSame(highest, controller.getLevel());
+    }
+
+    @Test
+    public void lowestLevels_skipFrames() {
+        final LatencyBudgetController controller = createController();
+        while (report(controller, 50, 1000)) {
+            // Steps down to the lowest level.
+        }
+        final int cadence = controller.getLevel().getCadence();
+        assertTrue(cadence > 1);
+        int numInferred = 0;
+        for (int i = 0; i < 6 * cadence; i++) {
+            if (controller.shouldInfer()) {
+                numInferred++;
+            }
+        }
+        assertEquals(6, numInferred);
+    }
+
+    private static LatencyBudgetController createController() {
+        return new LatencyBudgetController(
+                LatencyBudgetController.createLevels(Model.FLOAT_MOBILENET, Device.CPU), BUDGET_MS);
+    }
+
+    /** Reports up to {@code count} latencies, returning true as soon as the level changes. */
+    private static boolean report(
+            final LatencyBudgetController controller, final int count, final long latencyMs) {
+        for (int i = 0; i < count; i++) {
+            if (controller.onInference(latencyMs)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
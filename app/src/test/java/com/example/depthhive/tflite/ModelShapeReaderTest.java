@@ -0,0 +1,141 @@
+package com.example.depthhive.tflite;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/** Checks {@link ModelShapeReader} on minimal hand-built TensorFlow Lite FlatBuffers. */
+public class ModelShapeReaderTest {
+    @Test
+    public void readsShapeOfIndexedInputTensor() {
+        final ByteBuffer model = buildModel(new int[] {1, 2}, new int[] {1, 10, 10, 3}, true);
+        assertArrayEquals(new int[] {1, 192, 256, 3}, ModelShapeReader.readInputShape(model));
+    }
+
+    @Test
+    public void ignoresBufferPosition() {
+        final ByteBuffer model = buildModel(new int[] {1}, new int[] {1, 4, 4, 1}, true);
+        model.position(16);
+        assertArrayEquals(new int[] {1, 192, 256, 3}, ModelShapeReader.readInputShape(model));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingShape_throws() {
+        ModelShapeReader.readInputShape(buildModel(new int[] {1}, new int[] {1, 4, 4, 1}, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedModel_throws() {
+        final ByteBuffer model = buildModel(new int[] {1}, new int[] {1, 4, 4, 1}, true);
+        model.limit(64);
+        ModelShapeReader.readInputShape(model.slice());
+    }
+
+    /**
+     * Builds a model whose only subgraph has the given inputs and two tensors: an output of shape
+     * {@code otherShape} at index 0 and an input of shape {1, 192, 256, 3} at index 1.
+     *
+     * @param withInputShape Whether the input tensor has a shape field at all.
+     */
+    private static ByteBuffer buildModel(
+            final int[] inputs, final int[] otherShape, final boolean withInputShape) {
+        final Writer w = new Writer();
+        w.putInt(0); // Root offset, patched below.
+        w.putInt(0x334c4654); // "TFL3".
+
+        // Model table with only subgraphs, field 2.
+        final int modelVtable = w.vtable(0, 0, 4);
+        final int model = w.table(modelVtable, 1);
+        w.patchOffset(0, model);
+
+        final int subgraphs = w.vector(1);
+        w.patchOffset(model + 4, subgraphs);
+
+        // SubGraph table with tensors, field 0, and inputs, field 1.
+        final int subgraphVtable = w.vtable(4, 8);
+        final int subgraph = w.table(subgraphVtable, 2);
+        w.patchOffset(subgraphs + 4, subgraph);
+
+        final int tensors = w.vector(2);
+        w.patchOffset(subgraph + 4, tensors);
+        final int inputVector = w.vector(inputs.length);
+        for (int i = 0; i < inputs.length; i++) {
+            w.buffer.putInt(inputVector + 4 + 4 * i, inputs[i]);
+        }
+        w.patchOffset(subgraph + 8, inputVector);
+
+        final int tensorVtable = w.vtable(4);
+        final int emptyVtable = w.vtable();
+        final int[][] shapes = {otherShape, {1, 192, 256, 3}};
+        for (int t = 0; t < 2; t++) {
+            if (t == 1 && !withInputShape) {
+                w.patchOffset(tensors + 4 + 4 * t, w.table(emptyVtable, 0));
+                continue;
+            }
+            final int tensor = w.table(tensorVtable, 1);
+            w.patchOffset(tensors + 4 + 4 * t, tensor);
+            final int shape = w.vector(shapes[t].length);
+            for (int i = 0; i < shapes[t].length; i++) {
+                w.buffer.putInt(shape + 4 + 4 * i, shapes[t][i]);
+            }
+            w.patchOffset(tensor + 4, shape);
+        }
+        w.buffer.limit(w.buffer.position());
+        w.buffer.position(0);
+        return w.buffer;
+    }
+
+    /** Appends FlatBuffer tables and vectors, with forward offsets patched in afterwards. */
+    private static final class Writer {
+        final ByteBuffer buffer = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+
+        void putInt(final int value) {
+            buffer.putInt(value);
+        }
+
+        /** Writes a vtable for a table whose fields sit at the given offsets; 0 is absent. */
+        int vtable(final int... fieldOffsets) {
+            final int position = buffer.position();
+            buffer.putShort((short) (4 + 2 * fieldOffsets.length));
+            buffer.putShort((short) (4 + 4 * fieldOffsets.length));
+            for (final int offset : fieldOffsets) {
+                buffer.putShort((short) offset);
+            }
+            align();
+            return position;
+        }
+
+        /** Writes a table with {@code numFields} 4-byte fields, to be patched. */
+        int table(final int vtable, final int numFields) {
+            final int position = buffer.position();
+            buffer.putInt(position - vtable);
+            for (int i = 0; i < numFields; i++) {
+                buffer.putInt(0);
+            }
+            return position;
+        }
+
+        /** Writes a vector of {@code length} 4-byte elements, to be filled in. */
+        int vector(final int length) {
+            final int position = buffer.position();
+            buffer.putInt(length);
+            for (int i = 0; i < length; i++) {
+                buffer.putInt(0);
+            }
+            return position;
+        }
+
+        void patchOffset(final int position, final int target) {
+            buffer.putInt(position, target - position);
+        }
+
+        private void align() {
+            while (buffer.position() % 4 != 0) {
+                buffer.put((byte) 0);
+            }
+        }
+    }
+}
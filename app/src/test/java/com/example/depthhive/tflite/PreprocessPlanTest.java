@@ -0,0 +1,102 @@
+package com.example.depthhive.tflite;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link PreprocessPlan} against cropping, resizing, rotating and normalizing in separate
+ * passes, and its integer path for quantized inputs.
+ */
+public class PreprocessPlanTest {
+    private static final int SIZE = 8;
+
+    @Test
+    public void floatPlan_matchesReferenceOnAllRotations() {
+        final int[][] frameSizes = {{30, 20}, {20, 31}, {17, 17}};
+        final int outputWidth = 8;
+        final int outputHeight = 6;
+        final Random random = new Random(6);
+        for (final int[] frameSize : frameSizes) {
+            final int width = frameSize[0];
+            final int height = frameSize[1];
+            final int[] argb = new int[width * height];
+            for (int i = 0; i < argb.length; i++) {
+                argb[i] = 0xff000000 | random.nextInt(0x1000000);
+            }
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                final PreprocessPlan plan =
+                        new PreprocessPlan(outputWidth, outputHeight, false, 127.5f, 127.5f);
+                final ByteBuffer output = allocate(plan.getOutputByteSize());
+                plan.configure(width, height, rotation);
+                plan.apply(argb, output);
+
+                final int[] expected =
+                        ReferencePreprocessing.cropResizeRotate(
+                                argb, width, height, outputWidth, outputHeight, rotation);
+                for (int i = 0; i < expected.length; i++) {
+                    for (int c = 0; c < 3; c++) {
+                        final int channel = (expected[i] >> (16 - 8 * c)) & 0xff;
+                        assertEquals(
+                                width + "x" + height + "@" + rotation + " pixel " + i,
+                                (channel - 127.5f) / 127.5f,
+                                output.getFloat((i * 3 + c) * 4),
+                                0f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void quantizedIdentity_copiesChannels() {
+        final PreprocessPlan plan = new PreprocessPlan(SIZE, SIZE, true, 0f, 1f);
+        final int[] argb = createFrame();
+        final ByteBuffer output = allocate(plan.getOutputByteSize());
+        plan.configure(SIZE, SIZE, 0);
+        plan.apply(argb, output);
+
+        assertEquals(0, output.position());
+        final int[] sampleMap = plan.getSampleMap();
+        for (int i = 0; i < sampleMap.length; i++) {
+            final int pixel = argb[sampleMap[i]];
+            assertEquals((pixel >> 16) & 0xff, output.get(i * 3) & 0xff);
+            assertEquals((pixel >> 8) & 0xff, output.get(i * 3 + 1) & 0xff);
+            assertEquals(pixel & 0xff, output.get(i * 3 + 2) & 0xff);
+        }
+    }
+
+    @Test
+    public void quantizedNormalization_appliesTable() {
+        final PreprocessPlan plan = new PreprocessPlan(SIZE, SIZE, true, 128f, 0.5f);
+        final int[] argb = createFrame();
+        final ByteBuffer output = allocate(plan.getOutputByteSize());
+        plan.configure(SIZE, SIZE, 0);
+        plan.apply(argb, output);
+
+        final int[] sampleMap = plan.getSampleMap();
+        for (int i = 0; i < sampleMap.length; i++) {
+            final int red = (argb[sampleMap[i]] >> 16) & 0xff;
+            final int expected = Math.max(0, Math.min(255, Math.round((red - 128f) / 0.5f)));
+            assertEquals(expected, output.get(i * 3) & 0xff);
+        }
+    }
+
+    private static int[] createFrame() {
+        final int[] argb = new int[SIZE * SIZE];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xff000000 | (i * 4 << 16) | ((255 - i) << 8) | (i * 3 & 0xff);
+        }
+        return argb;
+    }
+
+    private static ByteBuffer allocate(final int size) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.depthhive.tflite;
+
+/**
+ * The center crop, nearest-neighbour resize and counter-clockwise rotation that the per-frame
+ * ImageProcessor chain did, as separate passes over whole ARGB images, to check the fused paths
+ * against.
+ */
+final class ReferencePreprocessing {
+    private ReferencePreprocessing() {}
+
+    /**
+     * Crops the center square of {@code argb}, resizes it so that rotating it by {@code
+     * sensorOrientation} yields {@code outputWidth} x {@code outputHeight}, and rotates it.
+     */
+    static int[] cropResizeRotate(
+            final int[] argb,
+            final int width,
+            final int height,
+            final int outputWidth,
+            final int outputHeight,
+            final int sensorOrientation) {
+        final int cropSize = Math.min(width, height);
+        final int[] cropped = new int[cropSize * cropSize];
+        final int left = (width - cropSize) / 2;
+        final int top = (height - cropSize) / 2;
+        for (int y = 0; y < cropSize; y++) {
+            System.arraycopy(argb, (top + y) * width + left, cropped, y * cropSize, cropSize);
+        }
+
+        final int numRotation = ((sensorOrientation / 90) % 4 + 4) % 4;
+        final int resizedWidth = numRotation % 2 == 0 ? outputWidth : outputHeight;
+        final int resizedHeight = numRotation % 2 == 0 ? outputHeight : outputWidth;
+        int[] image = new int[resizedWidth * resizedHeight];
+        for (int y = 0; y < resizedHeight; y++) {
+            // Nearest neighbour at the center of each resized pixel.
+            final int sy = (int) Math.floor((y + 0.5) * cropSize / resizedHeight);
+            for (int x = 0; x < resizedWidth; x++) {
+                final int sx = (int) Math.floor((x + 0.5) * cropSize / resizedWidth);
+                image[y * resizedWidth + x] = cropped[sy * cropSize + sx];
+            }
+        }
+
+        int imageWidth = resizedWidth;
+        int imageHeight = resizedHeight;
+        for (int r = 0; r < numRotation; r++) {
+            image = rotateCounterClockwise(image, imageWidth, imageHeight);
+            final int swap = imageWidth;
+            imageWidth = imageHeight;
+            imageHeight = swap;
+        }
+        return image;
+    }
+
+    /** Rotates an image by 90 degrees counter-clockwise, into a {@code height} x {@code width} one. */
+    private static int[] rotateCounterClockwise(
+            final int[] image, final int width, final int height) {
+        final int[] rotated = new int[width * height];
+        for (int y = 0; y < width; y++) {
+            for (int x = 0; x < height; x++) {
+                rotated[y * height + x] = image[x * width + (width - 1 - y)];
+            }
+        }
+        return rotated;
+    }
+}
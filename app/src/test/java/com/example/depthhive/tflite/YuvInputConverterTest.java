@@ -0,0 +1,188 @@
+package com.example.depthhive.tflite;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.example.depthhive.env.ImageUtils;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link YuvInputConverter} against converting the whole frame to ARGB first and then
+ * cropping, resizing and rotating it.
+ */
+public class YuvInputConverterTest {
+    private static final int OUTPUT_WIDTH = 8;
+    private static final int OUTPUT_HEIGHT = 6;
+    private static final float MEAN = 127.5f;
+    private static final float STD = 127.5f;
+
+    @Test
+    public void yuv420_matchesConvertThenResizeOnAllRotations() {
+        final Random random = new Random(8);
+        final int[][] geometries = {
+            // width, height, yRowStride, uvRowStride, uvPixelStride
+            {40, 30, 40, 20, 1}, {30, 41, 32, 32, 2}, {17, 17, 24, 20, 1}
+        };
+        for (final int[] g : geometries) {
+            final YuvFrame frame = new YuvFrame(random, g[0], g[1], g[2], g[3], g[4]);
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                final PreprocessPlan plan =
+                        new PreprocessPlan(OUTPUT_WIDTH, OUTPUT_HEIGHT, false, MEAN, STD);
+                final YuvInputConverter converter = new YuvInputConverter(plan);
+                converter.configure(
+                        frame.width,
+                        frame.height,
+                        frame.yRowStride,
+                        frame.uvRowStride,
+                        frame.uvPixelStride,
+                        rotation);
+
+                final ByteBuffer output = allocate(plan.getOutputByteSize());
+                converter.convertYUV420(frame.y, frame.u, frame.v, output);
+                assertMatchesReference(frame, rotation, output);
+
+                final ByteBuffer bufferOutput = allocate(plan.getOutputByteSize());
+                converter.convertYUV420(
+                        toDirectBuffer(frame.y),
+                        toDirectBuffer(frame.u),
+                        toDirectBuffer(frame.v),
+                        bufferOutput);
+                assertMatchesReference(frame, rotation, bufferOutput);
+            }
+        }
+    }
+
+    @Test
+    public void yuv420sp_matchesConvertThenResizeOnAllRotations() {
+        final Random random = new Random(9);
+        final int[][] sizes = {{40, 30}, {30, 42}, {18, 18}};
+        for (final int[] size : sizes) {
+            final int width = size[0];
+            final int height = size[1];
+            final byte[] input = new byte[ImageUtils.getYUVByteSize(width, height)];
+            random.nextBytes(input);
+            final int[] argb = new int[width * height];
+            ImageUtils.convertYUV420SPToARGB8888(input, width, height, argb);
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                final PreprocessPlan plan =
+                        new PreprocessPlan(OUTPUT_WIDTH, OUTPUT_HEIGHT, false, MEAN, STD);
+                final YuvInputConverter converter = new YuvInputConverter(plan);
+                // NV21 has a single interleaved chroma plane, V first.
+                converter.configure(width, height, width, width, 2, rotation);
+                final ByteBuffer output = allocate(plan.getOutputByteSize());
+                converter.convertYUV420SP(input, output);
+
+                final int[] expected =
+                        ReferencePreprocessing.cropResizeRotate(
+                                argb, width, height, OUTPUT_WIDTH, OUTPUT_HEIGHT, rotation);
+                assertMatchesNormalized(
+                        width + "x" + height + "@" + rotation, expected, output);
+            }
+        }
+    }
+
+    @Test
+    public void reconfiguredAfterArgbFrame_rebuildsIndexMaps() {
+        final PreprocessPlan plan =
+                new PreprocessPlan(OUTPUT_WIDTH, OUTPUT_HEIGHT, false, MEAN, STD);
+        final YuvInputConverter converter = new YuvInputConverter(plan);
+        final ByteBuffer output = allocate(plan.getOutputByteSize());
+        final Random random = new Random(7);
+
+        // A YUV frame of one size, then an ARGB frame of another through the shared plan.
+        final YuvFrame first = new YuvFrame(random, 40, 30, 48, 48, 2);
+        converter.configure(40, 30, 48, 48, 2, 90);
+        converter.convertYUV420(first.y, first.u, first.v, output);
+        plan.configure(32, 24, 90);
+        plan.apply(new int[32 * 24], output);
+
+        // The same strides as the first frame, at the size of the ARGB frame.
+        final YuvFrame second = new YuvFrame(random, 32, 24, 48, 48, 2);
+        converter.configure(32, 24, 48, 48, 2, 90);
+        converter.convertYUV420(second.y, second.u, second.v, output);
+        assertMatchesReference(second, 90, output);
+    }
+
+    private static void assertMatchesReference(
+            final YuvFrame frame, final int rotation, final ByteBuffer output) {
+        final int[] argb = new int[frame.width * frame.height];
+        ImageUtils.convertYUV420ToARGB8888(
+                frame.y,
+                frame.u,
+                frame.v,
+                frame.width,
+                frame.height,
+                frame.yRowStride,
+                frame.uvRowStride,
+                frame.uvPixelStride,
+                argb);
+        final int[] expected =
+                ReferencePreprocessing.cropResizeRotate(
+                        argb, frame.width, frame.height, OUTPUT_WIDTH, OUTPUT_HEIGHT, rotation);
+        assertMatchesNormalized(frame.width + "x" + frame.height + "@" + rotation, expected, output);
+    }
+
+    /** Checks that {@code output} holds the normalized channels of the ARGB pixels. */
+    private static void assertMatchesNormalized(
+            final String message, final int[] expected, final ByteBuffer output) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int c = 0; c < 3; c++) {
+                final int channel = (expected[i] >> (16 - 8 * c)) & 0xff;
+                assertEquals(
+                        message + " pixel " + i,
+                        (channel - MEAN) / STD,
+                        output.getFloat((i * 3 + c) * 4),
+                        0f);
+            }
+        }
+    }
+
+    private static ByteBuffer toDirectBuffer(final byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(final int size) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /** A random YUV_420_888 frame with one array per plane. */
+    private static final class YuvFrame {
+        final int width;
+        final int height;
+        final int yRowStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final byte[] y;
+        final byte[] u;
+        final byte[] v;
+
+        YuvFrame(
+                final Random random,
+                final int width,
+                final int height,
+                final int yRowStride,
+                final int uvRowStride,
+                final int uvPixelStride) {
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            y = new byte[yRowStride * height];
+            u = new byte[uvRowStride * ((height + 1) / 2)];
+            v = new byte[u.length];
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+        }
+    }
+}